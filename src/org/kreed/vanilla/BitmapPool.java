@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import java.util.ArrayList;
+
+/**
+ * A small pool of mutable bitmaps that can be decoded into again through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} or drawn into
+ * again, avoiding an allocation for each decode.
+ *
+ * Only bitmaps that are not referenced anywhere else may be put into the pool.
+ */
+public final class BitmapPool {
+	/**
+	 * The bitmaps in the pool, least recently added first.
+	 */
+	private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+	/**
+	 * The maximum number of bitmaps to hold.
+	 */
+	private final int mMaxCount;
+
+	/**
+	 * Create an empty pool.
+	 *
+	 * @param maxCount The maximum number of bitmaps to hold. When more
+	 * bitmaps are added, the oldest are dropped.
+	 */
+	public BitmapPool(int maxCount)
+	{
+		mMaxCount = maxCount;
+	}
+
+	/**
+	 * Returns true if bitmaps can be reused for decoding on this device.
+	 */
+	public static boolean isSupported()
+	{
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * Remove and return a bitmap that can hold a decoded image with the given
+	 * dimensions.
+	 *
+	 * Before KitKat, BitmapFactory can only decode into bitmaps that exactly
+	 * match the size of the image, and only without subsampling. Later
+	 * versions accept any bitmap that is large enough.
+	 *
+	 * @param width The width of the decoded image.
+	 * @param height The height of the decoded image.
+	 * @param sampled True if the image will be decoded with an inSampleSize
+	 * greater than 1.
+	 * @return A matching bitmap, or null if there is none.
+	 */
+	public synchronized Bitmap get(int width, int height, boolean sampled)
+	{
+		boolean exact = Build.VERSION.SDK_INT < 19;
+		if (exact && sampled)
+			return null;
+
+		ArrayList<Bitmap> bitmaps = mBitmaps;
+		for (int i = bitmaps.size(); --i != -1; ) {
+			Bitmap bitmap = bitmaps.get(i);
+			boolean match;
+			if (exact)
+				match = bitmap.getWidth() == width && bitmap.getHeight() == height;
+			else
+				match = bitmap.getWidth() * bitmap.getHeight() >= width * height;
+			if (match)
+				return bitmaps.remove(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Remove and return a bitmap with exactly the given dimensions and
+	 * config, to be drawn into with a Canvas.
+	 *
+	 * @return A matching bitmap, or null if there is none.
+	 */
+	public synchronized Bitmap getExact(int width, int height, Bitmap.Config config)
+	{
+		ArrayList<Bitmap> bitmaps = mBitmaps;
+		for (int i = bitmaps.size(); --i != -1; ) {
+			Bitmap bitmap = bitmaps.get(i);
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config)
+				return bitmaps.remove(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Add a bitmap to the pool. The caller must not use the bitmap after this
+	 * call.
+	 *
+	 * @param bitmap The bitmap to add. Must be mutable to be reused;
+	 * immutable bitmaps are ignored.
+	 */
+	public synchronized void put(Bitmap bitmap)
+	{
+		if (!bitmap.isMutable() || bitmap.isRecycled())
+			return;
+
+		ArrayList<Bitmap> bitmaps = mBitmaps;
+		bitmaps.add(bitmap);
+		while (bitmaps.size() > mMaxCount)
+			bitmaps.remove(0);
+	}
+
+	/**
+	 * Drop all the bitmaps in the pool.
+	 */
+	public synchronized void clear()
+	{
+		mBitmaps.clear();
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers PlaybackService change events to registered listeners.
+ *
+ * Listeners may be added and removed from any thread while events are being
+ * delivered. Events are delivered on the thread that posts them; listeners
+ * are expected to hand them to their own thread, keeping only the latest
+ * value if several arrive before they are handled (and reporting that
+ * through {@link #recordCoalesced(int)}).
+ *
+ * Counts of posted, delivered and coalesced events are kept for the
+ * diagnostics screen.
+ */
+public final class ChangeBus {
+	/**
+	 * Receives change events.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the PlaybackService state changes.
+		 *
+		 * @param uptime The uptime at which the change was posted.
+		 * @param state The new state.
+		 */
+		void setState(long uptime, int state);
+		/**
+		 * Called when the current song changes.
+		 *
+		 * @param uptime The uptime at which the change was posted.
+		 * @param song The new current song.
+		 */
+		void setSong(long uptime, Song song);
+		/**
+		 * Called when an active song (previous, current or next) is
+		 * replaced.
+		 *
+		 * @param delta The position of the song relative to the current song.
+		 * @param song The new song.
+		 */
+		void replaceSong(int delta, Song song);
+		/**
+		 * Called when the timeline position or size changes.
+		 */
+		void onPositionInfoChanged();
+		/**
+		 * Called when the content of the MediaStore changes.
+		 */
+		void onMediaChange();
+	}
+
+	/**
+	 * Event type for {@link Listener#setState(long, int)}.
+	 */
+	public static final int EVENT_STATE = 0;
+	/**
+	 * Event type for {@link Listener#setSong(long, Song)}.
+	 */
+	public static final int EVENT_SONG = 1;
+	/**
+	 * Event type for {@link Listener#replaceSong(int, Song)}.
+	 */
+	public static final int EVENT_REPLACE_SONG = 2;
+	/**
+	 * Event type for {@link Listener#onPositionInfoChanged()}.
+	 */
+	public static final int EVENT_POSITION_INFO = 3;
+	/**
+	 * Event type for {@link Listener#onMediaChange()}.
+	 */
+	public static final int EVENT_MEDIA_CHANGE = 4;
+	/**
+	 * The number of event types.
+	 */
+	private static final int EVENT_COUNT = 5;
+	/**
+	 * Names of the event types, for diagnostics.
+	 */
+	private static final String[] EVENT_NAMES = { "state", "song", "replace song", "position info", "media change" };
+
+	/**
+	 * The registered listeners.
+	 */
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	/**
+	 * The number of events posted, by type. Access must be synchronized on
+	 * the array.
+	 */
+	private final int[] mPosted = new int[EVENT_COUNT];
+	/**
+	 * The number of listener deliveries, by type. Access must be synchronized
+	 * on mPosted.
+	 */
+	private final int[] mDelivered = new int[EVENT_COUNT];
+	/**
+	 * The number of deliveries that listeners merged into a later one, by
+	 * type. Access must be synchronized on mPosted.
+	 */
+	private final int[] mCoalesced = new int[EVENT_COUNT];
+
+	/**
+	 * Register a listener. Has no effect if it is already registered.
+	 */
+	public void addListener(Listener listener)
+	{
+		mListeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Unregister a listener.
+	 */
+	public void removeListener(Listener listener)
+	{
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Count a posted event and its deliveries.
+	 */
+	private void record(int event, int deliveries)
+	{
+		synchronized (mPosted) {
+			++mPosted[event];
+			mDelivered[event] += deliveries;
+		}
+	}
+
+	/**
+	 * Called by listeners when they drop a delivery because a later one
+	 * replaced it before it was handled.
+	 *
+	 * @param event One of EVENT_*.
+	 */
+	public void recordCoalesced(int event)
+	{
+		synchronized (mPosted) {
+			++mCoalesced[event];
+		}
+	}
+
+	/**
+	 * Deliver a state change to all listeners.
+	 */
+	public void postState(long uptime, int state)
+	{
+		int count = 0;
+		for (Listener listener : mListeners) {
+			listener.setState(uptime, state);
+			++count;
+		}
+		record(EVENT_STATE, count);
+	}
+
+	/**
+	 * Deliver a song change to all listeners.
+	 */
+	public void postSong(long uptime, Song song)
+	{
+		int count = 0;
+		for (Listener listener : mListeners) {
+			listener.setSong(uptime, song);
+			++count;
+		}
+		record(EVENT_SONG, count);
+	}
+
+	/**
+	 * Deliver an active song replacement to all listeners.
+	 */
+	public void postReplaceSong(int delta, Song song)
+	{
+		int count = 0;
+		for (Listener listener : mListeners) {
+			listener.replaceSong(delta, song);
+			++count;
+		}
+		record(EVENT_REPLACE_SONG, count);
+	}
+
+	/**
+	 * Deliver a timeline position change to all listeners.
+	 */
+	public void postPositionInfo()
+	{
+		int count = 0;
+		for (Listener listener : mListeners) {
+			listener.onPositionInfoChanged();
+			++count;
+		}
+		record(EVENT_POSITION_INFO, count);
+	}
+
+	/**
+	 * Deliver a MediaStore change to all listeners.
+	 */
+	public void postMediaChange()
+	{
+		int count = 0;
+		for (Listener listener : mListeners) {
+			listener.onMediaChange();
+			++count;
+		}
+		record(EVENT_MEDIA_CHANGE, count);
+	}
+
+	/**
+	 * Returns a human-readable summary of the event counts, for the
+	 * diagnostics screen.
+	 */
+	public String getStats()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("Change bus: ").append(mListeners.size()).append(" listeners");
+		synchronized (mPosted) {
+			for (int i = 0; i != EVENT_COUNT; ++i) {
+				sb.append('\n').append(EVENT_NAMES[i]).append(": ");
+				sb.append(mPosted[i]).append(" posted, ");
+				sb.append(mDelivered[i]).append(" delivered, ");
+				sb.append(mCoalesced[i]).append(" coalesced");
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -27,6 +27,8 @@ import android.app.ActionBar;
 import android.app.ActionBar.Tab;
 import android.app.Activity;
 import android.app.FragmentTransaction;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.view.KeyEvent;
@@ -76,6 +78,27 @@ public class CompatHoneycomb {
 		ab.setNavigationMode(ActionBar.NAVIGATION_MODE_TABS);
 	}
 
+	/**
+	 * Make the given options decode into a mutable bitmap, reusing the given
+	 * bitmap if it is not null.
+	 *
+	 * @param options The options to modify.
+	 * @param inBitmap The value for {@link BitmapFactory.Options#inBitmap}.
+	 */
+	public static void setReuseOptions(BitmapFactory.Options options, Bitmap inBitmap)
+	{
+		options.inMutable = true;
+		options.inBitmap = inBitmap;
+	}
+
+	/**
+	 * Call {@link Activity#invalidateOptionsMenu()} on the given activity.
+	 */
+	public static void invalidateOptionsMenu(Activity activity)
+	{
+		activity.invalidateOptionsMenu();
+	}
+
 	/**
 	 * Call {@link ListView#setFastScrollAlwaysVisible(boolean)} on the given
 	 * ListView with value true.
@@ -27,6 +27,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.LinearGradient;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -62,6 +63,108 @@ public final class CoverBitmap {
 	private static Bitmap ALBUM_ICON;
 	private static Bitmap ARTIST_ICON;
 
+	/**
+	 * Paint for drawing bitmaps.
+	 */
+	private static final Paint sBitmapPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	/**
+	 * Paint for the translucent box behind the text in overlapping style.
+	 */
+	private static Paint sBoxPaint;
+	/**
+	 * Paint for big (title) text.
+	 */
+	private static Paint sBigTextPaint;
+	/**
+	 * Paint for regular text.
+	 */
+	private static Paint sTextPaint;
+
+	/**
+	 * The measured song info text for a song, and the rendered overlay box,
+	 * which are reused when the same song is drawn again.
+	 */
+	private static final class InfoLayout {
+		public final String title;
+		public final String album;
+		public final String artist;
+		/**
+		 * The width of the title in big text.
+		 */
+		public final int titleWidthBig;
+		/**
+		 * The width of the title in regular text.
+		 */
+		public final int titleWidth;
+		public final int albumWidth;
+		public final int artistWidth;
+		/**
+		 * The rendered overlay box for STYLE_OVERLAPPING_BOX, or null if not
+		 * rendered yet. Never changed after construction, so the size of a
+		 * cached layout stays constant; a layout with a new overlay is cached
+		 * in place of the old one instead.
+		 */
+		public final Bitmap overlay;
+
+		public InfoLayout(Song song)
+		{
+			title = song.title == null ? "" : song.title;
+			album = song.album == null ? "" : song.album;
+			artist = song.artist == null ? "" : song.artist;
+			titleWidthBig = (int)sBigTextPaint.measureText(title);
+			titleWidth = (int)sTextPaint.measureText(title);
+			albumWidth = (int)sTextPaint.measureText(album);
+			artistWidth = (int)sTextPaint.measureText(artist);
+			overlay = null;
+		}
+
+		/**
+		 * Create a copy of the given layout with the given overlay box.
+		 */
+		public InfoLayout(InfoLayout source, Bitmap overlay)
+		{
+			title = source.title;
+			album = source.album;
+			artist = source.artist;
+			titleWidthBig = source.titleWidthBig;
+			titleWidth = source.titleWidth;
+			albumWidth = source.albumWidth;
+			artistWidth = source.artistWidth;
+			this.overlay = overlay;
+		}
+
+		/**
+		 * Returns true if this layout was measured for the current info of
+		 * the given song.
+		 */
+		public boolean matches(Song song)
+		{
+			return title.equals(song.title == null ? "" : song.title)
+				&& album.equals(song.album == null ? "" : song.album)
+				&& artist.equals(song.artist == null ? "" : song.artist);
+		}
+	}
+
+	/**
+	 * Recently used InfoLayouts, keyed by song id. Sized in bytes, counting
+	 * the overlay boxes.
+	 */
+	private static final StripedLruCache<Long, InfoLayout> sLayouts = new StripedLruCache<Long, InfoLayout>(2 * 1024 * 1024, 1) {
+		@Override
+		protected int sizeOf(Long key, InfoLayout value)
+		{
+			int size = 256;
+			if (value.overlay != null)
+				size += value.overlay.getRowBytes() * value.overlay.getHeight();
+			return size;
+		}
+	};
+	/**
+	 * Composed bitmaps returned through {@link #recycle(Bitmap)}, to be drawn
+	 * into again.
+	 */
+	private static final BitmapPool sPool = new BitmapPool(3);
+
 	/**
 	 * Initialize the regular text size members.
 	 *
@@ -74,6 +177,61 @@ public final class CoverBitmap {
 		TEXT_SIZE_BIG = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 20, metrics);
 		PADDING = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 10, metrics);
 		TEXT_SPACE = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 150, metrics);
+
+		Paint paint = new Paint();
+		paint.setAntiAlias(true);
+		paint.setColor(Color.WHITE);
+		paint.setTextSize(TEXT_SIZE);
+		sTextPaint = paint;
+
+		paint = new Paint(paint);
+		paint.setTextSize(TEXT_SIZE_BIG);
+		sBigTextPaint = paint;
+
+		paint = new Paint();
+		paint.setARGB(150, 0, 0, 0);
+		sBoxPaint = paint;
+	}
+
+	/**
+	 * Returns the InfoLayout for the given song, measuring its text if it
+	 * has not been measured recently.
+	 */
+	private static InfoLayout getLayout(Song song)
+	{
+		Long key = song.id;
+		InfoLayout layout = sLayouts.get(key);
+		if (layout == null || !layout.matches(song)) {
+			layout = new InfoLayout(song);
+			sLayouts.put(key, layout);
+		}
+		return layout;
+	}
+
+	/**
+	 * Returns a blank RGB_565 bitmap of the given size to draw into, reusing
+	 * a recycled bitmap if one of the right size is available.
+	 */
+	private static Bitmap obtainBitmap(int width, int height)
+	{
+		Bitmap bitmap = sPool.getExact(width, height, Bitmap.Config.RGB_565);
+		if (bitmap == null)
+			return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		bitmap.eraseColor(Color.BLACK);
+		return bitmap;
+	}
+
+	/**
+	 * Return a bitmap created by {@link #createBitmap(Context, int, Bitmap, Song, int, int)}
+	 * so that it can be drawn into again. The caller must not use the
+	 * bitmap after this call.
+	 *
+	 * @param bitmap The bitmap to recycle.
+	 */
+	public static void recycle(Bitmap bitmap)
+	{
+		if (bitmap.getConfig() == Bitmap.Config.RGB_565)
+			sPool.put(bitmap);
 	}
 
 	/**
@@ -137,29 +295,47 @@ public final class CoverBitmap {
 		}
 	}
 
+	/**
+	 * Render the overlay box for the given layout: a translucent box with
+	 * the title, album and artist drawn on it.
+	 */
+	private static Bitmap createOverlay(InfoLayout layout, int boxWidth, int boxHeight)
+	{
+		int titleSize = TEXT_SIZE_BIG;
+		int subSize = TEXT_SIZE;
+		int padding = PADDING;
+
+		Bitmap overlay = Bitmap.createBitmap(boxWidth, boxHeight, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(overlay);
+		canvas.drawRect(0, 0, boxWidth, boxHeight, sBoxPaint);
+
+		int maxWidth = boxWidth - padding * 2;
+		int top = padding;
+		int left = padding;
+
+		drawText(canvas, layout.title, left, top, layout.titleWidthBig, maxWidth, sBigTextPaint);
+		top += titleSize + padding;
+
+		drawText(canvas, layout.album, left, top, layout.albumWidth, maxWidth, sTextPaint);
+		top += subSize + padding;
+
+		drawText(canvas, layout.artist, left, top, layout.artistWidth, maxWidth, sTextPaint);
+
+		return overlay;
+	}
+
 	private static Bitmap createOverlappingBitmap(Context context, Bitmap cover, Song song, int width, int height)
 	{
 		if (TEXT_SIZE == -1)
 			loadTextSizes(context);
 
-		Paint paint = new Paint();
-		paint.setAntiAlias(true);
-
-		String title = song.title == null ? "" : song.title;
-		String album = song.album == null ? "" : song.album;
-		String artist = song.artist == null ? "" : song.artist;
+		InfoLayout layout = getLayout(song);
 
 		int titleSize = TEXT_SIZE_BIG;
 		int subSize = TEXT_SIZE;
 		int padding = PADDING;
 
-		paint.setTextSize(titleSize);
-		int titleWidth = (int)paint.measureText(title);
-		paint.setTextSize(subSize);
-		int albumWidth = (int)paint.measureText(album);
-		int artistWidth = (int)paint.measureText(artist);
-
-		int boxWidth = Math.min(width, Math.max(titleWidth, Math.max(artistWidth, albumWidth)) + padding * 2);
+		int boxWidth = Math.min(width, Math.max(layout.titleWidthBig, Math.max(layout.artistWidth, layout.albumWidth)) + padding * 2);
 		int boxHeight = Math.min(height, titleSize + subSize * 2 + padding * 4);
 
 		int coverWidth;
@@ -181,38 +357,25 @@ public final class CoverBitmap {
 		int bitmapWidth = Math.max(coverWidth, boxWidth);
 		int bitmapHeight = Math.max(coverHeight, boxHeight);
 
-		Bitmap bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.RGB_565);
+		Bitmap bitmap = obtainBitmap(bitmapWidth, bitmapHeight);
 		Canvas canvas = new Canvas(bitmap);
 
 		if (cover != null) {
 			int x = (bitmapWidth - coverWidth) / 2;
 			int y = (bitmapHeight - coverHeight) / 2;
 			Rect rect = new Rect(x, y, x + coverWidth, y + coverHeight);
-			canvas.drawBitmap(cover, null, rect, paint);
+			canvas.drawBitmap(cover, null, rect, sBitmapPaint);
 		}
 
-		int left = (bitmapWidth - boxWidth) / 2;
-		int top = (bitmapHeight - boxHeight) / 2;
-		int right = (bitmapWidth + boxWidth) / 2;
-		int bottom = (bitmapHeight + boxHeight) / 2;
-
-		paint.setARGB(150, 0, 0, 0);
-		canvas.drawRect(left, top, right, bottom, paint);
-
-		int maxWidth = boxWidth - padding * 2;
-		paint.setARGB(255, 255, 255, 255);
-		top += padding;
-		left += padding;
-
-		paint.setTextSize(titleSize);
-		drawText(canvas, title, left, top, titleWidth, maxWidth, paint);
-		top += titleSize + padding;
-
-		paint.setTextSize(subSize);
-		drawText(canvas, album, left, top, albumWidth, maxWidth, paint);
-		top += subSize + padding;
+		Bitmap overlay = layout.overlay;
+		if (overlay == null || overlay.getWidth() != boxWidth || overlay.getHeight() != boxHeight) {
+			overlay = createOverlay(layout, boxWidth, boxHeight);
+			// Replace the cached layout rather than changing it, so the
+			// cache counts the size of the new overlay.
+			sLayouts.put(song.id, new InfoLayout(layout, overlay));
+		}
 
-		drawText(canvas, artist, left, top, artistWidth, maxWidth, paint);
+		canvas.drawBitmap(overlay, (bitmapWidth - boxWidth) / 2, (bitmapHeight - boxHeight) / 2, null);
 
 		return bitmap;
 	}
@@ -226,12 +389,8 @@ public final class CoverBitmap {
 
 		boolean horizontal = width > height;
 
-		Paint paint = new Paint();
-		paint.setAntiAlias(true);
-
-		String title = song.title == null ? "" : song.title;
-		String album = song.album == null ? "" : song.album;
-		String artist = song.artist == null ? "" : song.artist;
+		InfoLayout layout = getLayout(song);
+		Paint paint = sTextPaint;
 
 		int textSize = TEXT_SIZE;
 		int padding = PADDING;
@@ -254,10 +413,9 @@ public final class CoverBitmap {
 			coverHeight *= scale;
 		}
 
-		paint.setTextSize(textSize);
-		int titleWidth = (int)paint.measureText(title);
-		int albumWidth = (int)paint.measureText(album);
-		int artistWidth = (int)paint.measureText(artist);
+		int titleWidth = layout.titleWidth;
+		int albumWidth = layout.albumWidth;
+		int artistWidth = layout.artistWidth;
 
 		int maxBoxWidth = horizontal ? width - coverWidth : width;
 		int maxBoxHeight = horizontal ? height : height - coverHeight;
@@ -267,14 +425,14 @@ public final class CoverBitmap {
 		int bitmapWidth = horizontal ? coverWidth + boxWidth : Math.max(coverWidth, boxWidth);
 		int bitmapHeight = horizontal ? Math.max(coverHeight, boxHeight) : coverHeight + boxHeight;
 
-		Bitmap bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.RGB_565);
+		Bitmap bitmap = obtainBitmap(bitmapWidth, bitmapHeight);
 		Canvas canvas = new Canvas(bitmap);
 
 		if (cover != null) {
 			int x = horizontal ? 0 : (bitmapWidth - coverWidth) / 2;
 			int y = horizontal ? (bitmapHeight - coverHeight) / 2 : 0;
 			Rect rect = new Rect(x, y, x + coverWidth, y + coverHeight);
-			canvas.drawBitmap(cover, null, rect, paint);
+			canvas.drawBitmap(cover, null, rect, sBitmapPaint);
 		}
 
 		int top;
@@ -289,18 +447,17 @@ public final class CoverBitmap {
 		}
 
 		int maxWidth = boxWidth - padding * 3 - textSize;
-		paint.setARGB(255, 255, 255, 255);
 
-		canvas.drawBitmap(SONG_ICON, left, top, paint);
-		drawText(canvas, title, left + padding + textSize, top, maxWidth, maxWidth, paint);
+		canvas.drawBitmap(SONG_ICON, left, top, sBitmapPaint);
+		drawText(canvas, layout.title, left + padding + textSize, top, maxWidth, maxWidth, paint);
 		top += textSize + padding;
 
-		canvas.drawBitmap(ALBUM_ICON, left, top, paint);
-		drawText(canvas, album, left + padding + textSize, top, maxWidth, maxWidth, paint);
+		canvas.drawBitmap(ALBUM_ICON, left, top, sBitmapPaint);
+		drawText(canvas, layout.album, left + padding + textSize, top, maxWidth, maxWidth, paint);
 		top += textSize + padding;
 
-		canvas.drawBitmap(ARTIST_ICON, left, top, paint);
-		drawText(canvas, artist, left + padding + textSize, top, maxWidth, maxWidth, paint);
+		canvas.drawBitmap(ARTIST_ICON, left, top, sBitmapPaint);
+		drawText(canvas, layout.artist, left + padding + textSize, top, maxWidth, maxWidth, paint);
 
 		return bitmap;
 	}
@@ -313,7 +470,7 @@ public final class CoverBitmap {
 	 * @param source The bitmap to be scaled
 	 * @param width Maximum width of image
 	 * @param height Maximum height of image
-	 * @return The scaled bitmap.
+	 * @return The scaled bitmap. This is always a new bitmap, never source.
 	 */
 	private static Bitmap createScaledBitmap(Bitmap source, int width, int height)
 	{
@@ -322,7 +479,12 @@ public final class CoverBitmap {
 		float scale = Math.min((float)width / sourceWidth, (float)height / sourceHeight);
 		sourceWidth *= scale;
 		sourceHeight *= scale;
-		return Bitmap.createScaledBitmap(source, sourceWidth, sourceHeight, false);
+		Bitmap bitmap = Bitmap.createScaledBitmap(source, sourceWidth, sourceHeight, false);
+		// Covers are shared through the cover cache; don't hand out the
+		// cached bitmap itself.
+		if (bitmap == source)
+			bitmap = source.copy(Bitmap.Config.RGB_565, false);
+		return bitmap;
 	}
 
 	/**
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * A size-bounded cache of composed cover bitmaps, stored on disk as raw
+ * RGB_565 pixels so they can be loaded without decoding or redrawing.
+ *
+ * Each entry is stored in its own file: a small header (magic, width,
+ * height) followed by the pixels. The file modification time is used as the
+ * access time; when the cache grows larger than its maximum size, the least
+ * recently used files are deleted.
+ *
+ * Entry keys start with the album id, so the entries for an album can be
+ * removed when its art changes; see {@link CoverInvalidator}. There is one
+ * instance per directory, obtained through {@link #get(Context, String, long)}.
+ */
+public final class CoverDiskCache {
+	/**
+	 * Identifies the file format. Change this when the format changes.
+	 */
+	private static final int MAGIC = 0x56434331;
+	/**
+	 * The size of the header at the start of each file, in bytes.
+	 */
+	private static final int HEADER_SIZE = 12;
+
+	/**
+	 * The caches created in this process, keyed by directory name. Access
+	 * must be synchronized on the class.
+	 */
+	private static final HashMap<String, CoverDiskCache> sCaches = new HashMap<String, CoverDiskCache>();
+
+	/**
+	 * The directory the entries are stored in.
+	 */
+	private final File mDirectory;
+	/**
+	 * The maximum total size of the entries, in bytes.
+	 */
+	private final long mMaxSize;
+	/**
+	 * The total size of the entries, in bytes, or -1 if it has not been
+	 * computed yet.
+	 */
+	private long mSize = -1;
+
+	private CoverDiskCache(File directory, long maxSize)
+	{
+		mDirectory = directory;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Returns the cache stored in the given directory of the application
+	 * cache directory, creating it if needed.
+	 *
+	 * @param context A context to use.
+	 * @param name The name of the directory to store entries in.
+	 * @param maxSize The maximum total size of the entries, in bytes. Only
+	 * used when the cache is created.
+	 */
+	public static synchronized CoverDiskCache get(Context context, String name, long maxSize)
+	{
+		CoverDiskCache cache = sCaches.get(name);
+		if (cache == null) {
+			cache = new CoverDiskCache(new File(context.getCacheDir(), name), maxSize);
+			sCaches.put(name, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Delete the entries for the given albums from the cache stored in the
+	 * given directory, whether or not the cache has been created in this
+	 * process.
+	 *
+	 * @param context A context to use.
+	 * @param name The name of the directory the entries are stored in.
+	 * @param albumIds The sorted ids of the albums, or null to delete all
+	 * entries.
+	 */
+	public static synchronized void removeAlbums(Context context, String name, long[] albumIds)
+	{
+		CoverDiskCache cache = sCaches.get(name);
+		if (cache != null) {
+			cache.removeAlbums(albumIds);
+		} else {
+			File[] files = new File(context.getCacheDir(), name).listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (isForAlbums(file, albumIds))
+						file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the given entry file holds a bitmap for one of the
+	 * given albums.
+	 *
+	 * @param file The entry file.
+	 * @param albumIds The sorted ids of the albums, or null to match all
+	 * entries.
+	 */
+	private static boolean isForAlbums(File file, long[] albumIds)
+	{
+		if (albumIds == null)
+			return true;
+		String name = file.getName();
+		int end = name.indexOf('_');
+		if (end == -1)
+			return true;
+		try {
+			return Arrays.binarySearch(albumIds, Long.parseLong(name.substring(0, end))) >= 0;
+		} catch (NumberFormatException e) {
+			// Not a valid entry.
+			return true;
+		}
+	}
+
+	/**
+	 * Build the key for a cover composed by CoverBitmap.
+	 *
+	 * @param song The song the cover was composed for.
+	 * @param style The style the cover was composed in. One of
+	 * CoverBitmap.STYLE_*.
+	 * @param width The maximum width passed to CoverBitmap.
+	 * @param height The maximum height passed to CoverBitmap.
+	 */
+	public static String getKey(Song song, int style, int width, int height)
+	{
+		int hash = 0;
+		if (style != CoverBitmap.STYLE_NO_INFO) {
+			hash = hash * 31 + (song.title == null ? 0 : song.title.hashCode());
+			hash = hash * 31 + (song.album == null ? 0 : song.album.hashCode());
+			hash = hash * 31 + (song.artist == null ? 0 : song.artist.hashCode());
+		}
+		return String.format("%d_%d_%dx%d_%08x", song.albumId, style, width, height, hash);
+	}
+
+	/**
+	 * Load the bitmap stored with the given key.
+	 *
+	 * @param key The key, from {@link #getKey(Song, int, int, int)}.
+	 * @return The bitmap, or null if there is no entry for the key.
+	 */
+	public synchronized Bitmap get(String key)
+	{
+		File file = new File(mDirectory, key);
+		if (!file.exists())
+			return null;
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header) == -1)
+					throw new IOException("Truncated header");
+			}
+			header.flip();
+			int magic = header.getInt();
+			int width = header.getInt();
+			int height = header.getInt();
+			long size = (long)width * height * 2;
+			if (magic != MAGIC || width <= 0 || height <= 0 || channel.size() != HEADER_SIZE + size)
+				throw new IOException("Invalid cover cache entry");
+
+			ByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+			Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+			bitmap.copyPixelsFromBuffer(pixels);
+			file.setLastModified(System.currentTimeMillis());
+			return bitmap;
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to read cover cache entry " + key, e);
+			delete(file);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Store the given bitmap under the given key, evicting old entries if
+	 * the cache has grown too large.
+	 *
+	 * @param key The key, from {@link #getKey(Song, int, int, int)}.
+	 * @param bitmap The bitmap to store. Must be in RGB_565 format; other
+	 * bitmaps are ignored.
+	 */
+	public synchronized void put(String key, Bitmap bitmap)
+	{
+		if (bitmap.getConfig() != Bitmap.Config.RGB_565)
+			return;
+
+		File directory = mDirectory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			return;
+
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + width * height * 2);
+		buffer.putInt(MAGIC);
+		buffer.putInt(width);
+		buffer.putInt(height);
+		bitmap.copyPixelsToBuffer(buffer);
+		buffer.flip();
+
+		File file = new File(directory, key);
+		File temp = new File(directory, key + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			out.close();
+			out = null;
+
+			long oldSize = file.length();
+			if (!temp.renameTo(file))
+				throw new IOException("Failed to rename " + temp);
+			if (mSize != -1)
+				mSize += file.length() - oldSize;
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to write cover cache entry " + key, e);
+			temp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		trim();
+	}
+
+	/**
+	 * Delete the entries for the given albums.
+	 *
+	 * @param albumIds The sorted ids of the albums, or null to delete all
+	 * entries.
+	 */
+	private synchronized void removeAlbums(long[] albumIds)
+	{
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (isForAlbums(file, albumIds))
+				delete(file);
+		}
+	}
+
+	/**
+	 * Delete the given entry file, keeping mSize up to date.
+	 */
+	private void delete(File file)
+	{
+		long length = file.length();
+		if (file.delete() && mSize != -1)
+			mSize -= length;
+	}
+
+	/**
+	 * If the cache is larger than its maximum size, delete the least recently
+	 * used entries until it is at three quarters of the maximum size.
+	 */
+	private void trim()
+	{
+		File[] files = null;
+		if (mSize == -1) {
+			files = mDirectory.listFiles();
+			if (files == null)
+				return;
+			long size = 0;
+			for (File file : files)
+				size += file.length();
+			mSize = size;
+		}
+
+		if (mSize <= mMaxSize)
+			return;
+
+		if (files == null) {
+			files = mDirectory.listFiles();
+			if (files == null)
+				return;
+		}
+
+		final long[] times = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = files.length; --i != -1; ) {
+			times[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				long ta = times[a];
+				long tb = times[b];
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+
+		long target = mMaxSize * 3 / 4;
+		for (int i = 0; i != order.length && mSize > target; ++i)
+			delete(files[order[i]]);
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Removes cached bitmaps containing cover art when the art of their album
+ * may have changed.
+ *
+ * After the MediaStore has stopped changing for a moment, the songs added
+ * or modified since the last check are queried on a background thread, and
+ * the entries for their albums are removed from the disk caches and
+ * reported to the listeners. The point to check from is saved, so changes
+ * made while the app was not running are found on the first check.
+ */
+public final class CoverInvalidator implements Handler.Callback {
+	/**
+	 * Receives the albums whose cached art should be dropped.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the background thread when the art of albums may have
+		 * changed.
+		 *
+		 * @param albumIds The sorted ids of the albums, or null if any
+		 * album may have changed.
+		 */
+		void onCoversChanged(long[] albumIds);
+	}
+
+	/**
+	 * The names of the disk caches whose entries are removed.
+	 */
+	private static final String[] DISK_CACHES = { "covers", "thumbnails" };
+	/**
+	 * Identifies the stamp file format. Change this when the format changes.
+	 */
+	private static final int MAGIC = 0x56434931;
+	/**
+	 * How long the MediaStore must stay unchanged before the check runs, in
+	 * milliseconds. A media scan sends many notifications; they are handled
+	 * once when it finishes.
+	 */
+	private static final long CHECK_DELAY = 3000;
+	/**
+	 * Projection used to find the newest song and modification date.
+	 */
+	private static final String[] STAMP_PROJECTION = { "max(" + MediaStore.Audio.Media.DATE_MODIFIED + ")", "max(" + MediaStore.Audio.Media._ID + ")" };
+	/**
+	 * Projection used to find the songs changed since the last check.
+	 */
+	private static final String[] CHANGED_PROJECTION = { MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.DATE_MODIFIED, MediaStore.Audio.Media._ID };
+	/**
+	 * Selection used to find the songs changed since the last check.
+	 */
+	private static final String CHANGED_SELECTION = MediaStore.Audio.Media.DATE_MODIFIED + ">? OR " + MediaStore.Audio.Media._ID + ">?";
+
+	/**
+	 * Check for changed albums. Run on the background thread.
+	 */
+	private static final int MSG_CHECK = 0;
+
+	/**
+	 * The instance, or null if not created yet.
+	 */
+	private static CoverInvalidator sInstance;
+
+	private final Context mContext;
+	/**
+	 * Handler for the background thread.
+	 */
+	private final Handler mHandler;
+	/**
+	 * The file the point to check from is saved to.
+	 */
+	private final File mFile;
+	/**
+	 * The listeners to report changed albums to.
+	 */
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+	private CoverInvalidator(Context context)
+	{
+		mContext = context;
+		mFile = new File(context.getCacheDir(), "cover_stamp");
+
+		HandlerThread thread = new HandlerThread("CoverInvalidator", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper(), this);
+		// Find the changes made while we were not running.
+		mHandler.sendEmptyMessage(MSG_CHECK);
+	}
+
+	/**
+	 * Returns the instance, creating it if needed.
+	 *
+	 * @param context A context to use.
+	 */
+	public static synchronized CoverInvalidator get(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new CoverInvalidator(context.getApplicationContext());
+		return sInstance;
+	}
+
+	/**
+	 * Schedule a check for changed albums. Call when the MediaStore changes.
+	 *
+	 * @param context A context to use.
+	 */
+	public static void onMediaChange(Context context)
+	{
+		Handler handler = get(context).mHandler;
+		handler.removeMessages(MSG_CHECK);
+		handler.sendEmptyMessageDelayed(MSG_CHECK, CHECK_DELAY);
+	}
+
+	/**
+	 * Add a listener to report changed albums to.
+	 */
+	public void addListener(Listener listener)
+	{
+		mListeners.add(listener);
+	}
+
+	/**
+	 * Stop reporting changed albums to the given listener.
+	 */
+	public void removeListener(Listener listener)
+	{
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Read the saved point to check from.
+	 *
+	 * @return { latest modification date, largest song id }, or null if
+	 * there is no valid saved point.
+	 */
+	private long[] loadStamp()
+	{
+		if (!mFile.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(mFile));
+			if (in.readInt() != MAGIC)
+				return null;
+			return new long[] { in.readLong(), in.readLong() };
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to load " + mFile, e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Save the point to check from.
+	 *
+	 * @param stamp { latest modification date, largest song id }
+	 */
+	private void saveStamp(long[] stamp)
+	{
+		File temp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(temp));
+			out.writeInt(MAGIC);
+			out.writeLong(stamp[0]);
+			out.writeLong(stamp[1]);
+			out.close();
+			out = null;
+			if (!temp.renameTo(mFile))
+				temp.delete();
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to save " + mFile, e);
+			temp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the albums of the songs changed since the last check, remove
+	 * their cached bitmaps and report them to the listeners.
+	 */
+	private void check()
+	{
+		ContentResolver resolver = mContext.getContentResolver();
+		long[] stamp = loadStamp();
+		long[] albumIds = null;
+		Cursor cursor = null;
+		try {
+			if (stamp == null) {
+				// Nothing to compare with; drop everything and start here.
+				cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, STAMP_PROJECTION, null, null, null);
+				if (cursor == null)
+					return;
+				stamp = new long[2];
+				if (cursor.moveToFirst()) {
+					stamp[0] = cursor.getLong(0);
+					stamp[1] = cursor.getLong(1);
+				}
+			} else {
+				String[] args = { Long.toString(stamp[0]), Long.toString(stamp[1]) };
+				cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, CHANGED_PROJECTION, CHANGED_SELECTION, args, null);
+				if (cursor == null)
+					return;
+				HashSet<Long> changed = new HashSet<Long>();
+				while (cursor.moveToNext()) {
+					changed.add(cursor.getLong(0));
+					stamp[0] = Math.max(stamp[0], cursor.getLong(1));
+					stamp[1] = Math.max(stamp[1], cursor.getLong(2));
+				}
+				if (changed.isEmpty())
+					return;
+				albumIds = new long[changed.size()];
+				int i = 0;
+				for (Long id : changed)
+					albumIds[i++] = id;
+				Arrays.sort(albumIds);
+			}
+		} catch (RuntimeException e) {
+			Log.w("VanillaMusic", "Failed to query changed songs", e);
+			return;
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+
+		for (String name : DISK_CACHES)
+			CoverDiskCache.removeAlbums(mContext, name, albumIds);
+		for (Listener listener : mListeners)
+			listener.onCoversChanged(albumIds);
+		saveStamp(stamp);
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_CHECK:
+			check();
+			break;
+		default:
+			return false;
+		}
+		return true;
+	}
+}
@@ -36,6 +36,9 @@ import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewConfiguration;
 import android.widget.Scroller;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Displays a flingable/draggable View of cover art/song info images
@@ -51,6 +54,28 @@ public final class CoverView extends View implements Handler.Callback {
 	 * The screen density, from {@link DisplayMetrics#density}.
 	 */
 	private static double sDensity = -1;
+	/**
+	 * The on-disk cache of generated bitmaps, shared between all CoverViews.
+	 * Will be null until the first bitmap is generated.
+	 */
+	private static CoverDiskCache sDiskCache;
+	/**
+	 * The number of full-size bitmaps the disk cache is sized for. Each is a
+	 * full screen of RGB_565 pixels (about 4MB at 1080p), so this is kept
+	 * small; only bitmaps shown as the current song for SAVE_DELAY are
+	 * written.
+	 */
+	private static final int DISK_CACHE_COVERS = 8;
+	/**
+	 * The minimum size of the disk cache, in bytes.
+	 */
+	private static final long MIN_DISK_CACHE_SIZE = 8 * 1024 * 1024;
+	/**
+	 * How long, in milliseconds, a composed bitmap must stay the current
+	 * bitmap before it is written to the disk cache, so that swiping through
+	 * the queue does not write a file for every song passed.
+	 */
+	private static final int SAVE_DELAY = 5000;
 	/**
 	 * The Handler with which to do background work. Will be null until
 	 * setupHandler is called.
@@ -104,6 +129,22 @@ public final class CoverView extends View implements Handler.Callback {
 	 * Cover art to use when a song has no cover art in no info display styles.
 	 */
 	private Bitmap mDefaultCover;
+	/**
+	 * The number of songs on each side of the current song to generate
+	 * bitmaps for ahead of time, beyond the previous and next songs.
+	 */
+	private int mPrefetchCount;
+	/**
+	 * Bitmaps generated ahead of time for songs near the current song, which
+	 * can be handed to the view as soon as they are needed. Access must be
+	 * synchronized on the map.
+	 */
+	private final HashMap<Song, Bitmap> mPrefetched = new HashMap<Song, Bitmap>();
+	/**
+	 * Disk cache keys of composed bitmaps that have not been saved to the
+	 * disk cache. Only accessed on the worker thread.
+	 */
+	private final HashMap<Bitmap, String> mUnsaved = new HashMap<Bitmap, String>();
 	/**
 	 * Computes scroll animations.
 	 */
@@ -178,6 +219,7 @@ public final class CoverView extends View implements Handler.Callback {
 		mHandler = new Handler(looper, this);
 		mCallback = callback;
 		mCoverStyle = style;
+		mPrefetchCount = Integer.parseInt(PlaybackService.getSettings(getContext()).getString(PrefKeys.COVER_PREFETCH, "2"));
 	}
 
 	/**
@@ -353,29 +395,155 @@ public final class CoverView extends View implements Handler.Callback {
 	}
 
 	/**
-	 * Generates a bitmap for the given song.
+	 * Returns the disk cache, creating it if necessary.
 	 *
-	 * @param i The position of the song in mSongs.
+	 * @param context A context to use.
+	 * @param width The width of the bitmaps to be cached.
+	 * @param height The height of the bitmaps to be cached.
 	 */
-	private void generateBitmap(int i)
+	private static synchronized CoverDiskCache getDiskCache(Context context, int width, int height)
 	{
-		Song song = mSongs[i];
+		if (sDiskCache == null) {
+			long size = Math.max(MIN_DISK_CACHE_SIZE, DISK_CACHE_COVERS * 2L * width * height);
+			sDiskCache = CoverDiskCache.get(context.getApplicationContext(), "covers", size);
+			// Removes the entries of albums whose art changes.
+			CoverInvalidator.get(context);
+		}
+		return sDiskCache;
+	}
 
+	/**
+	 * Creates the bitmap to display for the given song, loading it from the
+	 * disk cache if possible. Newly composed bitmaps are saved to the disk
+	 * cache later, through MSG_SAVE_BITMAP, if they remain the current bitmap
+	 * for a while.
+	 *
+	 * Must be called on the worker thread.
+	 *
+	 * @param song The song to create the bitmap for. Must not be null.
+	 */
+	private Bitmap createBitmap(Song song)
+	{
 		int style = mCoverStyle;
+		int width = getWidth();
+		int height = getHeight();
 		Context context = getContext();
-		Bitmap cover = song == null ? null : song.getCover(context);
+
+		// Cached bitmaps include cover art, so skip the cache when art is
+		// disabled.
+		boolean useDiskCache = !Song.mDisableCoverArt;
+		String key = CoverDiskCache.getKey(song, style, width, height);
+		Bitmap bitmap;
+		if (useDiskCache) {
+			bitmap = getDiskCache(context, width, height).get(key);
+			if (bitmap != null)
+				return bitmap;
+		}
+
+		Bitmap cover = song.getCover(context, width, height);
 
 		if (cover == null && style == CoverBitmap.STYLE_NO_INFO) {
 			Bitmap def = mDefaultCover;
 			if (def == null) {
-				mDefaultCover = def = CoverBitmap.generateDefaultCover(getWidth(), getHeight());
+				mDefaultCover = def = CoverBitmap.generateDefaultCover(width, height);
 			}
-			mBitmaps[i] = def;
-		} else {
-			mBitmaps[i] = CoverBitmap.createBitmap(context, style, cover, song, getWidth(), getHeight());
+			return def;
 		}
 
+		bitmap = CoverBitmap.createBitmap(context, style, cover, song, width, height);
+		if (bitmap != null && useDiskCache)
+			mUnsaved.put(bitmap, key);
+		return bitmap;
+	}
+
+	/**
+	 * Generates a bitmap for the given song.
+	 *
+	 * @param i The position of the song in mSongs.
+	 */
+	private void generateBitmap(int i)
+	{
+		Song song = mSongs[i];
+		if (song == null)
+			return;
+
+		Bitmap bitmap;
+		synchronized (mPrefetched) {
+			bitmap = mPrefetched.get(song);
+		}
+		if (bitmap == null)
+			bitmap = createBitmap(song);
+		mBitmaps[i] = bitmap;
 		postInvalidate();
+
+		if (i == 1 && !mHandler.hasMessages(MSG_SAVE_BITMAP))
+			mHandler.sendEmptyMessageDelayed(MSG_SAVE_BITMAP, SAVE_DELAY);
+	}
+
+	/**
+	 * Save the current bitmap to the disk cache, if it was composed and has
+	 * not been saved yet. Must be called on the worker thread.
+	 */
+	private void saveCurrentBitmap()
+	{
+		Bitmap bitmap = mBitmaps[1];
+		if (bitmap == null)
+			return;
+		String key = mUnsaved.remove(bitmap);
+		if (key != null && !Song.mDisableCoverArt)
+			getDiskCache(getContext(), bitmap.getWidth(), bitmap.getHeight()).put(key, bitmap);
+	}
+
+	/**
+	 * Generates a bitmap for the given song ahead of time and stores it in
+	 * mPrefetched.
+	 *
+	 * @param song The song to generate the bitmap for.
+	 */
+	private void prefetchBitmap(Song song)
+	{
+		synchronized (mPrefetched) {
+			if (mPrefetched.containsKey(song))
+				return;
+		}
+
+		Bitmap bitmap = createBitmap(song);
+		synchronized (mPrefetched) {
+			mPrefetched.put(song, bitmap);
+		}
+	}
+
+	/**
+	 * Returns the bitmap prefetched for the given song, or null if there is
+	 * none.
+	 */
+	private Bitmap getPrefetched(Song song)
+	{
+		synchronized (mPrefetched) {
+			return mPrefetched.get(song);
+		}
+	}
+
+	/**
+	 * Return a bitmap that is no longer needed to CoverBitmap so it can be
+	 * drawn into again, unless it is still in use. Runs on the worker thread.
+	 */
+	private void recycleBitmap(Bitmap bitmap)
+	{
+		for (Bitmap used : mBitmaps) {
+			if (used == bitmap)
+				return;
+		}
+		for (Bitmap used : mActiveBitmaps) {
+			if (used == bitmap)
+				return;
+		}
+		synchronized (mPrefetched) {
+			if (mPrefetched.containsValue(bitmap))
+				return;
+		}
+		mUnsaved.remove(bitmap);
+		CoverBitmap.recycle(bitmap);
 	}
 
 	/**
@@ -390,13 +558,25 @@ public final class CoverView extends View implements Handler.Callback {
 		mSongs[i] = song;
 		mBitmaps[i] = null;
 		if (song != null) {
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_GENERATE_BITMAP, i, 0));
+			Bitmap bitmap = getPrefetched(song);
+			if (bitmap != null) {
+				mBitmaps[i] = bitmap;
+				invalidate();
+			} else {
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_GENERATE_BITMAP, i, 0));
+			}
 		}
 	}
 
 	/**
 	 * Query all songs. Must be called on the UI thread.
 	 *
+	 * Bitmaps are generated for the current song first, then the next and
+	 * previous songs. Afterwards, bitmaps for the songs further away (up to
+	 * mPrefetchCount songs on each side) are prefetched, nearest first and
+	 * following songs before preceding songs. Pending work for the previous
+	 * queue state is cancelled.
+	 *
 	 * @param service Service to query from.
 	 */
 	public void querySongs(PlaybackService service)
@@ -407,6 +587,13 @@ public final class CoverView extends View implements Handler.Callback {
 		}
 
 		mHandler.removeMessages(MSG_GENERATE_BITMAP);
+		mHandler.removeMessages(MSG_PREFETCH);
+		// Restart the wait before saving the current bitmap.
+		mHandler.removeMessages(MSG_SAVE_BITMAP);
+		mHandler.sendEmptyMessageDelayed(MSG_SAVE_BITMAP, SAVE_DELAY);
+
+		int radius = mPrefetchCount + 1;
+		Song[] window = service.getSongWindow(radius);
 
 		Song[] songs = mSongs;
 		Bitmap[] bitmaps = mBitmaps;
@@ -417,7 +604,38 @@ public final class CoverView extends View implements Handler.Callback {
 		if (!mScrolling)
 			mActiveBitmaps = newBitmaps;
 
-		for (int i = 0; i != 3; ++i) {
+		synchronized (mPrefetched) {
+			HashMap<Song, Bitmap> prefetched = mPrefetched;
+			// Keep the bitmaps that are leaving the view, in case the user
+			// scrolls back.
+			for (int j = 0; j != 3; ++j) {
+				if (songs[j] != null && bitmaps[j] != null)
+					prefetched.put(songs[j], bitmaps[j]);
+			}
+			// Drop bitmaps for songs that have left the prefetch window.
+			Iterator<Map.Entry<Song, Bitmap>> it = prefetched.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Song, Bitmap> entry = it.next();
+				Song song = entry.getKey();
+				boolean keep = false;
+				for (int j = 0; j != window.length; ++j) {
+					if (window[j] == song) {
+						keep = true;
+						break;
+					}
+				}
+				if (!keep) {
+					it.remove();
+					Bitmap bitmap = entry.getValue();
+					if (bitmap != null && bitmap != mDefaultCover)
+						mHandler.sendMessage(mHandler.obtainMessage(MSG_RECYCLE_BITMAP, bitmap));
+				}
+			}
+		}
+
+		// current, then next, then previous
+		int[] order = { 1, 2, 0 };
+		for (int i : order) {
 			if (newSongs[i] == null)
 				continue;
 
@@ -428,11 +646,23 @@ public final class CoverView extends View implements Handler.Callback {
 				}
 			}
 
+			if (newBitmaps[i] == null)
+				newBitmaps[i] = getPrefetched(newSongs[i]);
+
 			if (newBitmaps[i] == null) {
 				mHandler.sendMessage(mHandler.obtainMessage(MSG_GENERATE_BITMAP, i, 0));
 			}
 		}
 
+		for (int d = 2; d <= radius; ++d) {
+			Song next = window[radius + d];
+			if (next != null)
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_PREFETCH, next));
+			Song previous = window[radius - d];
+			if (previous != null)
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_PREFETCH, previous));
+		}
+
 		resetScroll();
 	}
 
@@ -455,6 +685,18 @@ public final class CoverView extends View implements Handler.Callback {
 	 * finished.
 	 */
 	private static final int MSG_SCROLL = 3;
+	/**
+	 * Call {@link CoverView#prefetchBitmap(Song)} for the song in obj.
+	 */
+	private static final int MSG_PREFETCH = 4;
+	/**
+	 * Call {@link CoverView#saveCurrentBitmap()}.
+	 */
+	private static final int MSG_SAVE_BITMAP = 5;
+	/**
+	 * Call {@link CoverView#recycleBitmap(Bitmap)} with the bitmap in obj.
+	 */
+	private static final int MSG_RECYCLE_BITMAP = 6;
 
 	@Override
 	public boolean handleMessage(Message message)
@@ -463,6 +705,15 @@ public final class CoverView extends View implements Handler.Callback {
 		case MSG_GENERATE_BITMAP:
 			generateBitmap(message.arg1);
 			break;
+		case MSG_PREFETCH:
+			prefetchBitmap((Song)message.obj);
+			break;
+		case MSG_RECYCLE_BITMAP:
+			recycleBitmap((Bitmap)message.obj);
+			break;
+		case MSG_SAVE_BITMAP:
+			saveCurrentBitmap();
+			break;
 		case MSG_LONG_CLICK:
 			if (Math.abs(mStartX - mLastMotionX) + Math.abs(mStartY - mLastMotionY) < 10) {
 				mIgnoreNextUp = true;
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The contents of a directory, stat'd once and stored in compact arrays.
+ *
+ * Entries are sorted with folders first, then alphabetically by name
+ * (ignoring case). Dot files are excluded.
+ *
+ * Recently used listings are cached. A cached listing is reused as long as
+ * the modification time of its directory is unchanged, which covers entries
+ * being created, deleted or renamed. Changes inside entries (e.g. a file
+ * growing) do not change the directory modification time; call
+ * {@link #invalidate(String)} when such a change is known (FileSystemAdapter
+ * does this from its FileObserver).
+ */
+public final class DirectoryListing {
+	/**
+	 * The maximum number of listings to keep in the cache.
+	 */
+	private static final int CACHE_SIZE = 8;
+	/**
+	 * Recently used listings, keyed by directory path. Access must be
+	 * synchronized on the map.
+	 */
+	private static final LinkedHashMap<String, DirectoryListing> sCache =
+		new LinkedHashMap<String, DirectoryListing>(CACHE_SIZE * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DirectoryListing> eldest)
+			{
+				return size() > CACHE_SIZE;
+			}
+		};
+
+	/**
+	 * The directory that was listed.
+	 */
+	public final File directory;
+	/**
+	 * The modification time of the directory when it was listed.
+	 */
+	public final long modified;
+	/**
+	 * The names of the entries.
+	 */
+	public final String[] names;
+	/**
+	 * True for each entry that is a directory.
+	 */
+	public final boolean[] folders;
+	/**
+	 * The size of each entry in bytes, or 0 for folders.
+	 */
+	public final long[] sizes;
+	/**
+	 * The modification time of each entry.
+	 */
+	public final long[] times;
+	/**
+	 * The names in lower case, for filtering. Created on first use.
+	 */
+	private String[] mLowerNames;
+	/**
+	 * The canonical path of the directory, with a trailing slash. Created on
+	 * first use.
+	 */
+	private String mBase;
+	/**
+	 * The library statistics for the entries, or null if they have not been
+	 * computed yet.
+	 */
+	private Stats mStats;
+
+	/**
+	 * Library statistics for the entries of a listing.
+	 */
+	public static final class Stats {
+		/**
+		 * The index the statistics were computed from.
+		 */
+		final MediaPathIndex index;
+		/**
+		 * The number of songs in each entry (including subfolders).
+		 */
+		public final int[] counts;
+		/**
+		 * The total duration of the songs in each entry, in milliseconds.
+		 */
+		public final long[] durations;
+
+		Stats(MediaPathIndex index, int[] counts, long[] durations)
+		{
+			this.index = index;
+			this.counts = counts;
+			this.durations = durations;
+		}
+	}
+
+	private DirectoryListing(File directory, long modified, String[] names, boolean[] folders, long[] sizes, long[] times)
+	{
+		this.directory = directory;
+		this.modified = modified;
+		this.names = names;
+		this.folders = folders;
+		this.sizes = sizes;
+		this.times = times;
+	}
+
+	/**
+	 * Returns the listing for the given directory, from the cache if it is
+	 * still current.
+	 *
+	 * @param directory The directory to list.
+	 * @return The listing, or null if the directory could not be read.
+	 */
+	public static DirectoryListing get(File directory)
+	{
+		String path = directory.getPath();
+		long modified = directory.lastModified();
+
+		DirectoryListing listing;
+		synchronized (sCache) {
+			listing = sCache.get(path);
+		}
+		if (listing != null && listing.modified == modified && modified != 0)
+			return listing;
+
+		listing = create(directory, modified);
+		synchronized (sCache) {
+			if (listing == null)
+				sCache.remove(path);
+			else
+				sCache.put(path, listing);
+		}
+		return listing;
+	}
+
+	/**
+	 * Drop the cached listing for the given directory, if any.
+	 *
+	 * @param path The path of the directory.
+	 */
+	public static void invalidate(String path)
+	{
+		synchronized (sCache) {
+			sCache.remove(path);
+		}
+	}
+
+	/**
+	 * Drop all cached listings.
+	 */
+	public static void clear()
+	{
+		synchronized (sCache) {
+			sCache.clear();
+		}
+	}
+
+	/**
+	 * Read the given directory, statting each entry once.
+	 *
+	 * @param directory The directory to list.
+	 * @param modified The modification time of the directory.
+	 * @return The listing, or null if the directory could not be read.
+	 */
+	private static DirectoryListing create(File directory, long modified)
+	{
+		String[] list = directory.list();
+		if (list == null)
+			return null;
+
+		int count = 0;
+		for (String name : list) {
+			if (name.length() != 0 && name.charAt(0) != '.')
+				list[count++] = name;
+		}
+
+		final String[] names = new String[count];
+		System.arraycopy(list, 0, names, 0, count);
+		final boolean[] folders = new boolean[count];
+		long[] sizes = new long[count];
+		long[] times = new long[count];
+		for (int i = 0; i != count; ++i) {
+			File file = new File(directory, names[i]);
+			boolean folder = file.isDirectory();
+			folders[i] = folder;
+			if (!folder)
+				sizes[i] = file.length();
+			times[i] = file.lastModified();
+		}
+
+		Integer[] order = new Integer[count];
+		for (int i = count; --i != -1; )
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				boolean aIsFolder = folders[a];
+				boolean bIsFolder = folders[b];
+				if (bIsFolder == aIsFolder) {
+					return names[a].compareToIgnoreCase(names[b]);
+				} else if (bIsFolder) {
+					return 1;
+				}
+				return -1;
+			}
+		});
+
+		String[] sortedNames = new String[count];
+		boolean[] sortedFolders = new boolean[count];
+		long[] sortedSizes = new long[count];
+		long[] sortedTimes = new long[count];
+		for (int i = 0; i != count; ++i) {
+			int j = order[i];
+			sortedNames[i] = names[j];
+			sortedFolders[i] = folders[j];
+			sortedSizes[i] = sizes[j];
+			sortedTimes[i] = times[j];
+		}
+
+		return new DirectoryListing(directory, modified, sortedNames, sortedFolders, sortedSizes, sortedTimes);
+	}
+
+	/**
+	 * Returns the number of entries.
+	 */
+	public int size()
+	{
+		return names.length;
+	}
+
+	/**
+	 * Returns a File for the entry at the given index.
+	 */
+	public File getFile(int i)
+	{
+		return new File(directory, names[i]);
+	}
+
+	/**
+	 * Returns the canonical path of the directory, with a trailing slash.
+	 * The path is resolved once per listing.
+	 */
+	public synchronized String getBase()
+	{
+		String base = mBase;
+		if (base == null) {
+			try {
+				// MediaStore stores canonical paths
+				base = directory.getCanonicalPath();
+			} catch (IOException e) {
+				base = directory.getAbsolutePath();
+			}
+			if (!base.endsWith("/"))
+				base += '/';
+			mBase = base;
+		}
+		return base;
+	}
+
+	/**
+	 * Returns the path of the entry at the given index, in the form
+	 * MediaStore stores it.
+	 */
+	public String getPath(int i)
+	{
+		return getBase() + names[i];
+	}
+
+	/**
+	 * Returns the library statistics for the entries, computing them from
+	 * the given index if they have not been computed from it already. The
+	 * statistics are cached with the listing.
+	 *
+	 * @param index The index to compute the statistics from.
+	 */
+	public synchronized Stats getStats(MediaPathIndex index)
+	{
+		Stats stats = mStats;
+		if (stats == null || stats.index != index) {
+			int count = names.length;
+			int[] counts = new int[count];
+			long[] durations = new long[count];
+			String base = getBase();
+			for (int i = 0; i != count; ++i) {
+				String path = base + names[i];
+				counts[i] = index.getCount(path);
+				durations[i] = index.getDuration(path);
+			}
+			stats = new Stats(index, counts, durations);
+			mStats = stats;
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the indices of the entries whose names contain all of the
+	 * given terms.
+	 *
+	 * @param terms Lower case search terms. If null, all entries match.
+	 * @param stats If not null, folders that contain no songs according to
+	 * these statistics are excluded.
+	 * @return The matching indices, in order, or null if all entries match.
+	 */
+	public int[] filter(String[] terms, Stats stats)
+	{
+		if (terms == null && stats == null)
+			return null;
+		if (terms == null)
+			terms = new String[0];
+
+		String[] lowerNames;
+		synchronized (this) {
+			lowerNames = mLowerNames;
+			if (lowerNames == null && terms.length != 0) {
+				lowerNames = new String[names.length];
+				for (int i = names.length; --i != -1; )
+					lowerNames[i] = names[i].toLowerCase();
+				mLowerNames = lowerNames;
+			}
+		}
+
+		int[] rows = new int[names.length];
+		int count = 0;
+		outer:
+		for (int i = 0, n = names.length; i != n; ++i) {
+			if (stats != null && folders[i] && stats.counts[i] == 0)
+				continue;
+			for (String term : terms) {
+				if (!lowerNames[i].contains(term))
+					continue outer;
+			}
+			rows[count++] = i;
+		}
+		int[] result = new int[count];
+		System.arraycopy(rows, 0, result, 0, count);
+		return result;
+	}
+}
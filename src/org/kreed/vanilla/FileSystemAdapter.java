@@ -24,10 +24,15 @@ package org.kreed.vanilla;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
+import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.os.Environment;
 import android.os.FileObserver;
-import android.util.Log;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.format.DateUtils;
+import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -35,10 +40,6 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 import java.io.File;
-import java.io.FilenameFilter;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.regex.Pattern;
 
 /**
@@ -68,51 +69,33 @@ public class FileSystemAdapter
 	/**
 	 * The files and folders in the current directory.
 	 */
-	private File[] mFiles;
+	private DirectoryListing mListing;
 	/**
-	 * The folder icon shown for folder rows.
+	 * The indices of the entries in mListing that match mFilter, or null if
+	 * all entries are shown.
 	 */
-	private final Drawable mFolderIcon;
+	private int[] mRows;
 	/**
-	 * The currently active filter, entered by the user from the search box.
+	 * Library statistics for the entries in mListing, or null if they are
+	 * not available.
 	 */
-	String[] mFilter;
+	private DirectoryListing.Stats mStats;
 	/**
-	 * Excludes dot files and files not matching mFilter.
+	 * If true, folders that contain no songs are not shown.
 	 */
-	private final FilenameFilter mFileFilter = new FilenameFilter() {
-		@Override
-		public boolean accept(File dir, String filename)
-		{
-			if (filename.charAt(0) == '.')
-				return false;
-			if (mFilter != null) {
-				filename = filename.toLowerCase();
-				for (String term : mFilter) {
-					if (!filename.contains(term))
-						return false;
-				}
-			}
-			return true;
-		}
-	};
+	private boolean mHideEmptyFolders;
 	/**
-	 * Sorts folders before files first, then sorts alphabetically by name.
+	 * Reused to format durations.
 	 */
-	private final Comparator<File> mFileComparator = new Comparator<File>() {
-		@Override
-		public int compare(File a, File b)
-		{
-			boolean aIsFolder = a.isDirectory();
-			boolean bIsFolder = b.isDirectory();
-			if (bIsFolder == aIsFolder) {
-				return a.getName().compareToIgnoreCase(b.getName());
-			} else if (bIsFolder) {
-				return 1;
-			}
-			return -1;
-		}
-	};
+	private final StringBuilder mTimeBuilder = new StringBuilder();
+	/**
+	 * The folder icon shown for folder rows.
+	 */
+	private final Drawable mFolderIcon;
+	/**
+	 * The currently active filter, entered by the user from the search box.
+	 */
+	String[] mFilter;
 	/**
 	 * The Observer instance for the current directory.
 	 */
@@ -148,38 +131,83 @@ public class FileSystemAdapter
 			mFileObserver = new Observer(file.getPath());
 		}
 
-		File[] files = file.listFiles(mFileFilter);
-		if (files != null)
-			Arrays.sort(files, mFileComparator);
-		return files;
+		DirectoryListing listing = DirectoryListing.get(file);
+		if (listing == null)
+			return null;
+
+		DirectoryListing.Stats stats = null;
+		MediaPathIndex index = MediaPathIndex.get(mActivity.getContentResolver());
+		if (index != null)
+			stats = listing.getStats(index);
+
+		int[] rows = listing.filter(mFilter, mHideEmptyFolders ? stats : null);
+		return new QueryResult(listing, rows, stats);
+	}
+
+	/**
+	 * The result of {@link FileSystemAdapter#query()}.
+	 */
+	private static class QueryResult {
+		public final DirectoryListing listing;
+		public final int[] rows;
+		public final DirectoryListing.Stats stats;
+
+		public QueryResult(DirectoryListing listing, int[] rows, DirectoryListing.Stats stats)
+		{
+			this.listing = listing;
+			this.rows = rows;
+			this.stats = stats;
+		}
 	}
 
 	@Override
 	public void commitQuery(Object data)
 	{
-		mFiles = (File[])data;
+		QueryResult result = (QueryResult)data;
+		if (result == null) {
+			mListing = null;
+			mRows = null;
+			mStats = null;
+		} else {
+			mListing = result.listing;
+			mRows = result.rows;
+			mStats = result.stats;
+		}
 		notifyDataSetInvalidated();
 	}
 
 	@Override
 	public void clear()
 	{
-		mFiles = null;
+		mListing = null;
+		mRows = null;
+		mStats = null;
 		notifyDataSetInvalidated();
 	}
 
 	@Override
 	public int getCount()
 	{
-		if (mFiles == null)
+		if (mListing == null)
 			return 0;
-		return mFiles.length;
+		if (mRows != null)
+			return mRows.length;
+		return mListing.size();
+	}
+
+	/**
+	 * Returns the index in mListing of the entry shown at the given
+	 * position.
+	 */
+	private int getEntry(int pos)
+	{
+		return mRows == null ? pos : mRows[pos];
 	}
 
 	@Override
 	public Object getItem(int pos)
 	{
-		return mFiles[pos];
+		return mListing.getFile(getEntry(pos));
 	}
 
 	@Override
@@ -215,16 +243,48 @@ public class FileSystemAdapter
 			holder = (ViewHolder)view.getTag();
 		}
 
-		File file = mFiles[pos];
-		boolean isDirectory = file.isDirectory();
+		DirectoryListing listing = mListing;
+		int entry = getEntry(pos);
+		boolean isDirectory = listing.folders[entry];
 		holder.id = pos;
-		holder.text.setText(file.getName());
+		holder.text.setText(formatEntry(listing, entry));
 		holder.divider.setVisibility(isDirectory ? View.VISIBLE : View.GONE);
 		holder.arrow.setVisibility(isDirectory ? View.VISIBLE : View.GONE);
 		holder.text.setCompoundDrawablesWithIntrinsicBounds(isDirectory ? mFolderIcon : null, null, null, null);
+		holder.text.setSelected(mActivity.isSelected(listing, entry));
 		return view;
 	}
 
+	/**
+	 * Returns the text for the given entry's row. Folders that contain songs
+	 * get a second line with the song count and total duration.
+	 */
+	private CharSequence formatEntry(DirectoryListing listing, int entry)
+	{
+		String name = listing.names[entry];
+		DirectoryListing.Stats stats = mStats;
+		if (!listing.folders[entry] || stats == null || stats.counts[entry] == 0)
+			return name;
+
+		int count = stats.counts[entry];
+		Resources res = mActivity.getResources();
+		String duration = DateUtils.formatElapsedTime(mTimeBuilder, stats.durations[entry] / 1000);
+		SpannableStringBuilder sb = new SpannableStringBuilder(name);
+		sb.append('\n');
+		sb.append(res.getQuantityString(R.plurals.folder_songs, count, count, duration));
+		sb.setSpan(new ForegroundColorSpan(Color.GRAY), name.length() + 1, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		return sb;
+	}
+
+	/**
+	 * Set whether folders that contain no songs are hidden. Takes effect on
+	 * the next query.
+	 */
+	public void setHideEmptyFolders(boolean hide)
+	{
+		mHideEmptyFolders = hide;
+	}
+
 	@Override
 	public void setFilter(String filter)
 	{
@@ -265,7 +325,7 @@ public class FileSystemAdapter
 	@Override
 	public Limiter buildLimiter(long id)
 	{
-		return buildLimiter(mFiles[(int)id]);
+		return buildLimiter(mListing.getFile(getEntry((int)id)));
 	}
 
 	@Override
@@ -275,18 +335,26 @@ public class FileSystemAdapter
 	}
 
 	/**
-	 * FileObserver that reloads the files in this adapter.
+	 * FileObserver that drops the cached listing of the current directory
+	 * and reloads the files in this adapter.
 	 */
 	private class Observer extends FileObserver {
+		/**
+		 * The path of the watched directory.
+		 */
+		private final String mPath;
+
 		public Observer(String path)
 		{
 			super(path, FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM);
+			mPath = path;
 			startWatching();
 		}
 
 		@Override
 		public void onEvent(int event, String path)
 		{
+			DirectoryListing.invalidate(mPath);
 			mActivity.mPagerAdapter.postRequestRequery(FileSystemAdapter.this);
 		}
 	}
@@ -295,22 +363,15 @@ public class FileSystemAdapter
 	public Intent createData(View view)
 	{
 		ViewHolder holder = (ViewHolder)view.getTag();
-		File file = mFiles[holder.id];
+		int entry = getEntry(holder.id);
 
 		Intent intent = new Intent();
 		intent.putExtra(LibraryAdapter.DATA_TYPE, MediaUtils.TYPE_FILE);
 		intent.putExtra(LibraryAdapter.DATA_ID, (long)holder.id);
-		intent.putExtra(LibraryAdapter.DATA_TITLE, holder.text.getText().toString());
-		intent.putExtra(LibraryAdapter.DATA_EXPANDABLE, file.isDirectory());
-
-		String path;
-		try {
-			path = file.getCanonicalPath();
-		} catch (IOException e) {
-			path = file.getAbsolutePath();
-			Log.e("VanillaMusic", "Failed to canonicalize path", e);
-		}
-		intent.putExtra(LibraryAdapter.DATA_FILE, path);
+		intent.putExtra(LibraryAdapter.DATA_TITLE, mListing.names[entry]);
+		intent.putExtra(LibraryAdapter.DATA_EXPANDABLE, mListing.folders[entry]);
+
+		intent.putExtra(LibraryAdapter.DATA_FILE, mListing.getPath(entry));
 		return intent;
 	}
 
@@ -30,6 +30,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.os.Bundle;
 import android.view.View;
 import android.widget.RemoteViews;
 
@@ -52,9 +53,20 @@ public class FourWhiteWidget extends AppWidgetProvider {
 		sEnabled = false;
 	}
 
+	/**
+	 * Called on API 16+ when a widget is resized. Not annotated with
+	 * Override since older SDKs do not have this method.
+	 */
+	public void onAppWidgetOptionsChanged(Context context, AppWidgetManager manager, int id, Bundle options)
+	{
+		WidgetUpdater.onOptionsChanged(context);
+	}
+
 	@Override
 	public void onUpdate(Context context, AppWidgetManager manager, int[] ids)
 	{
+		// A new widget may have been placed; size its cover again.
+		WidgetUpdater.clearCovers();
 		Song song = null;
 		int state = 0;
 
@@ -113,7 +125,7 @@ public class FourWhiteWidget extends AppWidgetProvider {
 			views.setViewVisibility(R.id.title, View.VISIBLE);
 			views.setTextViewText(R.id.title, song.title);
 			views.setTextViewText(R.id.artist, song.artist);
-			Bitmap cover = song.getCover(context);
+			Bitmap cover = WidgetUpdater.getCover(context, manager, song, FourWhiteWidget.class);
 			if (cover == null) {
 				views.setViewVisibility(R.id.cover, View.GONE);
 			} else {
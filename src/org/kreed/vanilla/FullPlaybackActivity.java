@@ -25,7 +25,6 @@ package org.kreed.vanilla;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
-import android.media.MediaMetadataRetriever;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Message;
@@ -307,6 +306,14 @@ public class FullPlaybackActivity extends PlaybackActivity
 		updateElapsedTime();
 
 		if (mExtraInfoVisible) {
+			// Show the prefetched metadata if we have it, to avoid showing the
+			// previous song's info while the new info loads. The load still
+			// runs to check that the file has not changed since.
+			MetadataCache.Entry info = song == null || song.path == null ? null : MetadataCache.get(this).peek(song.path);
+			if (info != null) {
+				setExtraInfo(info);
+				commitExtraInfo();
+			}
 			mHandler.sendEmptyMessage(MSG_LOAD_EXTRA_INFO);
 		}
 	}
@@ -503,69 +510,65 @@ public class FullPlaybackActivity extends PlaybackActivity
 	}
 
 	/**
-	 * Retrieve the extra metadata for the current song.
+	 * Copy the given metadata into the extra info fields. Call
+	 * {@link #commitExtraInfo()} to display them.
+	 *
+	 * @param info The metadata, or null to clear the fields.
 	 */
-	private void loadExtraInfo()
+	private void setExtraInfo(MetadataCache.Entry info)
 	{
-		Song song = mCurrentSong;
-
-		if (song == null) {
+		if (info == null) {
 			mGenre = null;
 			mTrack = null;
 			mYear = null;
 			mComposer = null;
 			mFormat = null;
-		} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) {
-			CompatMetadata data = new CompatMetadata(song.path);
-
-			mGenre = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
-			mTrack = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
-			String composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER);
-			if (composer == null)
-				composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_WRITER);
-			mComposer = composer;
-
-			String year = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR);
-			if (year == null || "0".equals(year)) {
-				year = null;
-			} else {
-				int dash = year.indexOf('-');
-				if (dash != -1)
-					year = year.substring(0, dash);
-			}
-			mYear = year;
-
-			StringBuilder sb = new StringBuilder(12);
-			sb.append(decodeMimeType(data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE)));
-			String bitrate = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
-			if (bitrate != null && bitrate.length() > 3) {
-				sb.append(' ');
-				sb.append(bitrate.substring(0, bitrate.length() - 3));
-				sb.append("kbps");
-			}
-			mFormat = sb.toString();
-
-			data.release();
+		} else {
+			mGenre = info.genre;
+			mTrack = info.track;
+			mYear = info.year;
+			mComposer = info.composer;
+			mFormat = info.format;
 		}
+	}
+
+	/**
+	 * Display the extra info fields. Must be called on the UI thread.
+	 */
+	private void commitExtraInfo()
+	{
+		mGenreView.setText(mGenre);
+		mTrackView.setText(mTrack);
+		mYearView.setText(mYear);
+		mComposerView.setText(mComposer);
+		mFormatView.setText(mFormat);
+	}
 
+	/**
+	 * Retrieve the extra metadata for the current song, then prefetch the
+	 * metadata for the next song so it can be shown immediately when that
+	 * song starts.
+	 */
+	private void loadExtraInfo()
+	{
+		Song song = mCurrentSong;
+		MetadataCache cache = MetadataCache.get(this);
+		setExtraInfo(song == null || song.path == null ? null : cache.get(song.path));
 		mUiHandler.sendEmptyMessage(MSG_COMMIT_INFO);
+		prefetchExtraInfo();
 	}
 
 	/**
-	 * Decode the given mime type into a more human-friendly description.
+	 * Load the extra metadata for the next song in the timeline into the
+	 * cache.
 	 */
-	private static String decodeMimeType(String mime)
+	private void prefetchExtraInfo()
 	{
-		if ("audio/mpeg".equals(mime)) {
-			return "MP3";
-		} else if ("audio/mp4".equals(mime)) {
-			return "AAC";
-		} else if ("audio/vorbis".equals(mime)) {
-			return "Ogg Vorbis";
-		} else if ("audio/flac".equals(mime)) {
-			return "FLAC";
-		}
-		return mime;
+		if (!PlaybackService.hasInstance())
+			return;
+		Song next = PlaybackService.get(this).getSong(1);
+		if (next != null && next.path != null)
+			MetadataCache.get(this).get(next.path);
 	}
 
 	/**
@@ -582,7 +585,7 @@ public class FullPlaybackActivity extends PlaybackActivity
 	 */
 	private static final int MSG_LOAD_EXTRA_INFO = 15;
 	/**
-	 * Pass obj to mExtraInfo.setText()
+	 * Call {@link #commitExtraInfo()}.
 	 */
 	private static final int MSG_COMMIT_INFO = 16;
 	/**
@@ -607,14 +610,9 @@ public class FullPlaybackActivity extends PlaybackActivity
 		case MSG_LOAD_EXTRA_INFO:
 			loadExtraInfo();
 			break;
-		case MSG_COMMIT_INFO: {
-			mGenreView.setText(mGenre);
-			mTrackView.setText(mTrack);
-			mYearView.setText(mYear);
-			mComposerView.setText(mComposer);
-			mFormatView.setText(mFormat);
+		case MSG_COMMIT_INFO:
+			commitExtraInfo();
 			break;
-		}
 		case MSG_UPDATE_POSITION:
 			updateQueuePosition();
 			break;
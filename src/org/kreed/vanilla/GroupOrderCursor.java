@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import java.util.HashMap;
+
+/**
+ * Presents the rows of a cursor reordered so that rows are grouped in a
+ * given order of group ids, such as the order of the albums displayed in a
+ * library list. Rows within a group keep their order from the wrapped
+ * cursor. Rows whose group is not in the order come last.
+ */
+public final class GroupOrderCursor extends AbstractCursor {
+	/**
+	 * The wrapped cursor.
+	 */
+	private final Cursor mCursor;
+	/**
+	 * mPositions[i] is the position in mCursor of row i of this cursor.
+	 */
+	private final int[] mPositions;
+
+	/**
+	 * Wrap the given cursor.
+	 *
+	 * @param cursor The cursor to reorder.
+	 * @param column The index of the column holding the group id of each
+	 * row.
+	 * @param order The group ids, in the order the groups should appear.
+	 */
+	public GroupOrderCursor(Cursor cursor, int column, long[] order)
+	{
+		mCursor = cursor;
+
+		HashMap<Long, Integer> ranks = new HashMap<Long, Integer>(order.length * 2);
+		for (int i = order.length; --i != -1; )
+			ranks.put(order[i], i);
+
+		// Counting sort by rank, which keeps rows of a group in order.
+		int count = cursor.getCount();
+		int[] rowRanks = new int[count];
+		int[] starts = new int[order.length + 2];
+		cursor.moveToPosition(-1);
+		for (int i = 0; cursor.moveToNext(); ++i) {
+			Integer rank = ranks.get(cursor.getLong(column));
+			int r = rank == null ? order.length : rank;
+			rowRanks[i] = r;
+			++starts[r + 1];
+		}
+		for (int i = 1; i != starts.length; ++i)
+			starts[i] += starts[i - 1];
+
+		int[] positions = new int[count];
+		for (int i = 0; i != count; ++i)
+			positions[starts[rowRanks[i]]++] = i;
+		mPositions = positions;
+	}
+
+	@Override
+	public int getCount()
+	{
+		return mPositions.length;
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition)
+	{
+		return mCursor.moveToPosition(mPositions[newPosition]);
+	}
+
+	@Override
+	public String[] getColumnNames()
+	{
+		return mCursor.getColumnNames();
+	}
+
+	@Override
+	public String getString(int column)
+	{
+		return mCursor.getString(column);
+	}
+
+	@Override
+	public short getShort(int column)
+	{
+		return mCursor.getShort(column);
+	}
+
+	@Override
+	public int getInt(int column)
+	{
+		return mCursor.getInt(column);
+	}
+
+	@Override
+	public long getLong(int column)
+	{
+		return mCursor.getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column)
+	{
+		return mCursor.getFloat(column);
+	}
+
+	@Override
+	public double getDouble(int column)
+	{
+		return mCursor.getDouble(column);
+	}
+
+	@Override
+	public byte[] getBlob(int column)
+	{
+		return mCursor.getBlob(column);
+	}
+
+	@Override
+	public boolean isNull(int column)
+	{
+		return mCursor.isNull(column);
+	}
+
+	@Override
+	public void deactivate()
+	{
+		mCursor.deactivate();
+		super.deactivate();
+	}
+
+	@Override
+	public void close()
+	{
+		mCursor.close();
+		super.close();
+	}
+}
@@ -23,6 +23,7 @@
 package org.kreed.vanilla;
 
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -36,6 +37,7 @@ import android.graphics.drawable.PaintDrawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.MediaStore;
@@ -43,6 +45,7 @@ import android.support.v4.view.ViewPager;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -52,6 +55,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewParent;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.BaseAdapter;
 import android.widget.HorizontalScrollView;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -62,6 +66,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.viewpagerindicator.TabPageIndicator;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import junit.framework.Assert;
 
 /**
@@ -72,6 +79,7 @@ public class LibraryActivity
 	implements TextWatcher
 	         , DialogInterface.OnClickListener
 	         , DialogInterface.OnDismissListener
+	         , Playlist.ProgressListener
 {
 	/**
 	 * Action for row click: play the row.
@@ -139,6 +147,10 @@ public class LibraryActivity
 	 * The action to execute when a row is tapped.
 	 */
 	private int mDefaultAction;
+	/**
+	 * Shows the progress of a long addToPlaylist. Null when not shown.
+	 */
+	private ProgressDialog mPlaylistProgress;
 	/**
 	 * The last used action from the menu. Used with ACTION_LAST_USED.
 	 */
@@ -152,6 +164,10 @@ public class LibraryActivity
 	 * The pager adapter that manages each media ListView.
 	 */
 	public LibraryPagerAdapter mPagerAdapter;
+	/**
+	 * Loads album art thumbnails for the library rows. Created on first use.
+	 */
+	private ThumbnailLoader mThumbnailLoader;
 	/**
 	 * The adapter for the currently visible list.
 	 */
@@ -164,6 +180,17 @@ public class LibraryActivity
 	 * ApplicationInfo with targetSdkVersion set to Gingerbread.
 	 */
 	private ApplicationInfo mFakeInfo;
+	/**
+	 * The rows selected in multi-select mode, keyed by
+	 * {@link #getSelectionKey(Intent)}, in the order they were selected. While
+	 * this is non-empty, tapping a row toggles its selection instead of
+	 * performing the default action.
+	 */
+	private final LinkedHashMap<String, Intent> mSelection = new LinkedHashMap<String, Intent>();
+	/**
+	 * The number of files and folders in mSelection.
+	 */
+	private int mSelectedFileCount;
 
 	@Override
 	public void onCreate(Bundle state)
@@ -251,6 +278,40 @@ public class LibraryActivity
 		loadAlbumIntent(getIntent());
 	}
 
+	@Override
+	public void onDestroy()
+	{
+		if (mThumbnailLoader != null)
+			mThumbnailLoader.quit();
+		if (mPlaylistProgress != null) {
+			mPlaylistProgress.dismiss();
+			mPlaylistProgress = null;
+		}
+		super.onDestroy();
+	}
+
+	/**
+	 * Returns the loader for album art thumbnails in library rows, creating
+	 * it if needed.
+	 */
+	public ThumbnailLoader getThumbnailLoader()
+	{
+		if (mThumbnailLoader == null)
+			mThumbnailLoader = new ThumbnailLoader(this);
+		return mThumbnailLoader;
+	}
+
+	/**
+	 * Pause or resume loading thumbnails, if any are being loaded.
+	 *
+	 * @see ThumbnailLoader#setPaused(boolean)
+	 */
+	public void pauseThumbnails(boolean paused)
+	{
+		if (mThumbnailLoader != null)
+			mThumbnailLoader.setPaused(paused);
+	}
+
 	@Override
 	public void onRestart()
 	{
@@ -269,6 +330,7 @@ public class LibraryActivity
 			startActivity(new Intent(this, LibraryActivity.class));
 		}
 		mDefaultAction = Integer.parseInt(settings.getString(PrefKeys.DEFAULT_ACTION_INT, "7"));
+		mPagerAdapter.setHideEmptyFolders(settings.getBoolean(PrefKeys.HIDE_EMPTY_FOLDERS, false));
 		mLastActedId = LibraryAdapter.INVALID_ID;
 		updateHeaders();
 	}
@@ -349,7 +411,9 @@ public class LibraryActivity
 	{
 		switch (keyCode) {
 		case KeyEvent.KEYCODE_BACK:
-			if (mSearchBoxVisible) {
+			if (!mSelection.isEmpty()) {
+				clearSelection();
+			} else if (mSearchBoxVisible) {
 				mTextFilter.setText("");
 				setSearchBoxVisible(false);
 			} else {
@@ -498,6 +562,12 @@ public class LibraryActivity
 	 */
 	public void onItemClicked(Intent rowData)
 	{
+		if (!mSelection.isEmpty()) {
+			if (rowData.getLongExtra(LibraryAdapter.DATA_ID, LibraryAdapter.INVALID_ID) != LibraryAdapter.HEADER_ID)
+				toggleSelection(rowData);
+			return;
+		}
+
 		int action = mDefaultAction;
 		if (action == ACTION_LAST_USED)
 			action = mLastAction;
@@ -532,6 +602,182 @@ public class LibraryActivity
 			expand(rowData);
 	}
 
+	/**
+	 * Returns the key used to identify the row represented by the given
+	 * intent in the selection.
+	 *
+	 * @param rowData An intent created with
+	 * {@link LibraryAdapter#createData(View)}.
+	 */
+	private static String getSelectionKey(Intent rowData)
+	{
+		int type = rowData.getIntExtra(LibraryAdapter.DATA_TYPE, MediaUtils.TYPE_INVALID);
+		if (type == MediaUtils.TYPE_FILE)
+			return type + ":" + rowData.getStringExtra(LibraryAdapter.DATA_FILE);
+		return type + ":" + rowData.getLongExtra(LibraryAdapter.DATA_ID, LibraryAdapter.INVALID_ID);
+	}
+
+	/**
+	 * Add the row represented by the given intent to the selection, or remove
+	 * it if it is already selected.
+	 *
+	 * @param rowData An intent created with
+	 * {@link LibraryAdapter#createData(View)}.
+	 */
+	private void toggleSelection(Intent rowData)
+	{
+		String key = getSelectionKey(rowData);
+		int delta = rowData.getIntExtra(LibraryAdapter.DATA_TYPE, MediaUtils.TYPE_INVALID) == MediaUtils.TYPE_FILE ? 1 : 0;
+		if (mSelection.remove(key) == null) {
+			mSelection.put(key, rowData);
+			mSelectedFileCount += delta;
+		} else {
+			mSelectedFileCount -= delta;
+		}
+		refreshSelection();
+	}
+
+	/**
+	 * Clear the selection, leaving multi-select mode.
+	 */
+	private void clearSelection()
+	{
+		mSelection.clear();
+		mSelectedFileCount = 0;
+		refreshSelection();
+	}
+
+	/**
+	 * Redraw the rows of each list to reflect the current selection.
+	 */
+	private void refreshSelection()
+	{
+		for (LibraryAdapter adapter : mPagerAdapter.mAdapters) {
+			if (adapter != null)
+				((BaseAdapter)adapter).notifyDataSetChanged();
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			CompatHoneycomb.invalidateOptionsMenu(this);
+	}
+
+	/**
+	 * Returns true if the row with the given type and id is selected.
+	 *
+	 * @param type The media type of the row. One of MediaUtils.TYPE_*, except
+	 * TYPE_FILE.
+	 * @param id The MediaStore id of the row.
+	 */
+	public boolean isSelected(int type, long id)
+	{
+		return !mSelection.isEmpty() && mSelection.containsKey(type + ":" + id);
+	}
+
+	/**
+	 * Returns true if the given file or folder is selected.
+	 *
+	 * @param listing The listing containing the entry.
+	 * @param entry The index of the entry in the listing.
+	 */
+	public boolean isSelected(DirectoryListing listing, int entry)
+	{
+		if (mSelectedFileCount == 0)
+			return false;
+		return mSelection.containsKey(MediaUtils.TYPE_FILE + ":" + listing.getPath(entry));
+	}
+
+	/**
+	 * Builds a single query for all the songs in the given rows.
+	 *
+	 * Artists, albums, songs, files and folders are compiled into one
+	 * selection on the songs table. Genres and playlists are stored in
+	 * separate tables and so are queried separately; their results are
+	 * appended to the results of the main query.
+	 *
+	 * @param rows Intents created with
+	 * {@link LibraryAdapter#createData(View)}, usually the values of
+	 * mSelection.
+	 * @param empty If true, use the empty projection (only query id).
+	 */
+	private static QueryTask buildSelectionQuery(Iterable<Intent> rows, boolean empty)
+	{
+		String[] projection = empty ? Song.EMPTY_PROJECTION : Song.FILLED_PROJECTION;
+		String[] playlistProjection = empty ? Song.EMPTY_PLAYLIST_PROJECTION : Song.FILLED_PLAYLIST_PROJECTION;
+
+		StringBuilder[] ids = new StringBuilder[MediaUtils.TYPE_COUNT];
+		ArrayList<String> files = new ArrayList<String>();
+		ArrayList<QueryTask> extra = new ArrayList<QueryTask>();
+
+		for (Intent row : rows) {
+			int type = row.getIntExtra(LibraryAdapter.DATA_TYPE, MediaUtils.TYPE_INVALID);
+			long id = row.getLongExtra(LibraryAdapter.DATA_ID, LibraryAdapter.INVALID_ID);
+			switch (type) {
+			case MediaUtils.TYPE_ARTIST:
+			case MediaUtils.TYPE_ALBUM:
+			case MediaUtils.TYPE_SONG:
+				if (ids[type] == null) {
+					ids[type] = new StringBuilder();
+				} else {
+					ids[type].append(',');
+				}
+				ids[type].append(id);
+				break;
+			case MediaUtils.TYPE_FILE:
+				files.add(row.getStringExtra(LibraryAdapter.DATA_FILE));
+				break;
+			case MediaUtils.TYPE_PLAYLIST:
+				extra.add(MediaUtils.buildPlaylistQuery(id, playlistProjection, null));
+				break;
+			case MediaUtils.TYPE_GENRE:
+				extra.add(MediaUtils.buildQuery(type, id, projection, null));
+				break;
+			}
+		}
+
+		String[] columns = { "artist_id", "album_id", "_id" };
+		StringBuilder selection = new StringBuilder();
+		for (int type = MediaUtils.TYPE_ARTIST; type <= MediaUtils.TYPE_SONG; ++type) {
+			if (ids[type] == null)
+				continue;
+			if (selection.length() != 0)
+				selection.append(" OR ");
+			selection.append(columns[type]);
+			selection.append(" IN (");
+			selection.append(ids[type]);
+			selection.append(')');
+		}
+
+		QueryTask query;
+		if (selection.length() != 0) {
+			selection.insert(0, "is_music!=0 AND (");
+			selection.append(')');
+			query = new QueryTask(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection.toString(), null, MediaUtils.DEFAULT_SORT);
+		} else if (!files.isEmpty()) {
+			query = new QueryTask(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, null, null, MediaUtils.DEFAULT_SORT);
+		} else {
+			query = new QueryTask(null, projection, null, null, null);
+		}
+		if (!files.isEmpty())
+			query.paths = files.toArray(new String[files.size()]);
+		if (!extra.isEmpty())
+			query.extra = extra.toArray(new QueryTask[extra.size()]);
+		query.type = MediaUtils.TYPE_INVALID;
+		return query;
+	}
+
+	/**
+	 * Adds the songs in the selected rows to the song timeline as a single
+	 * batch and leaves multi-select mode.
+	 *
+	 * @param action ACTION_PLAY or ACTION_ENQUEUE.
+	 */
+	private void pickSelection(int action)
+	{
+		QueryTask query = buildSelectionQuery(mSelection.values(), false);
+		query.mode = modeForAction[action];
+		PlaybackService.get(this).addSongs(query);
+		clearSelection();
+	}
+
 	@Override
 	public void afterTextChanged(Editable editable)
 	{
@@ -702,6 +948,14 @@ public class LibraryActivity
 	private static final int MENU_ENQUEUE_ALL = 10;
 	private static final int MENU_MORE_FROM_ALBUM = 11;
 	private static final int MENU_MORE_FROM_ARTIST = 12;
+	private static final int MENU_SELECT = 13;
+	private static final int MENU_IMPORT_PLAYLIST = 14;
+	private static final int MENU_EXPORT_PLAYLIST = 15;
+	private static final int MENU_PLAY_SELECTION = 20;
+	private static final int MENU_ENQUEUE_SELECTION = 21;
+	private static final int MENU_ADD_SELECTION_TO_PLAYLIST = 22;
+	private static final int MENU_CLEAR_SELECTION = 23;
+	private static final int MENU_NEW_SMART_PLAYLIST = 24;
 
 	/**
 	 * Creates a context menu for an adapter row.
@@ -728,17 +982,24 @@ public class LibraryActivity
 			if (isAllAdapter)
 				menu.add(0, MENU_ENQUEUE_ALL, 0, R.string.enqueue_all).setIntent(rowData);
 			if (type == MediaUtils.TYPE_PLAYLIST) {
-				menu.add(0, MENU_RENAME_PLAYLIST, 0, R.string.rename).setIntent(rowData);
+				// Smart playlists are renamed in the editor.
+				if (rowData.getLongExtra(LibraryAdapter.DATA_ID, LibraryAdapter.INVALID_ID) >= 0)
+					menu.add(0, MENU_RENAME_PLAYLIST, 0, R.string.rename).setIntent(rowData);
 				menu.add(0, MENU_EXPAND, 0, R.string.edit).setIntent(rowData);
+				menu.add(0, MENU_EXPORT_PLAYLIST, 0, R.string.export_playlist).setIntent(rowData);
 			} else if (rowData.getBooleanExtra(LibraryAdapter.DATA_EXPANDABLE, false)) {
 				menu.add(0, MENU_EXPAND, 0, R.string.expand).setIntent(rowData);
 			}
+			if (type == MediaUtils.TYPE_FILE && PlaylistFile.isPlaylistFile(rowData.getStringExtra(LibraryAdapter.DATA_FILE)))
+				menu.add(0, MENU_IMPORT_PLAYLIST, 0, R.string.import_playlist).setIntent(rowData);
 			if (type == MediaUtils.TYPE_ALBUM || type == MediaUtils.TYPE_SONG)
 				menu.add(0, MENU_MORE_FROM_ARTIST, 0, R.string.more_from_artist).setIntent(rowData);
 			if (type == MediaUtils.TYPE_SONG)
 				menu.add(0, MENU_MORE_FROM_ALBUM, 0, R.string.more_from_album).setIntent(rowData);
 			menu.addSubMenu(0, MENU_ADD_TO_PLAYLIST, 0, R.string.add_to_playlist).getItem().setIntent(rowData);
 			menu.add(0, MENU_DELETE, 0, R.string.delete).setIntent(rowData);
+			boolean selected = mSelection.containsKey(getSelectionKey(rowData));
+			menu.add(0, MENU_SELECT, 0, selected ? R.string.deselect : R.string.select).setIntent(rowData);
 		}
 	}
 
@@ -752,24 +1013,103 @@ public class LibraryActivity
 	 */
 	private void addToPlaylist(long playlistId, Intent intent)
 	{
-		QueryTask query = buildQueryFromIntent(intent, true, false);
-		int count = Playlist.addToPlaylist(getContentResolver(), playlistId, query);
+		QueryTask query;
+		ArrayList<Intent> selection = intent.getParcelableArrayListExtra("selection");
+		if (selection != null)
+			query = buildSelectionQuery(selection, true);
+		else
+			query = buildQueryFromIntent(intent, true, false);
+		boolean skipDuplicates = PlaybackService.getSettings(this).getBoolean(PrefKeys.PLAYLIST_SKIP_DUPLICATES, false);
+		int count = Playlist.addToPlaylist(getContentResolver(), playlistId, query, skipDuplicates, this);
 
 		String message = getResources().getQuantityString(R.plurals.added_to_playlist, count, count, intent.getStringExtra("playlistName"));
 		Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
 	}
 
+	/**
+	 * Create a playlist from the playlist file represented by the intent.
+	 * Displays a Toast with the result.
+	 *
+	 * @param intent An intent created with
+	 * {@link LibraryAdapter#createData(View)}.
+	 */
+	private void importPlaylist(Intent intent)
+	{
+		File file = new File(intent.getStringExtra(LibraryAdapter.DATA_FILE));
+		String name = PlaylistFile.getPlaylistName(file);
+		String message;
+		try {
+			PlaylistFile.ImportResult result = PlaylistFile.importPlaylist(getContentResolver(), file, name, this);
+			Resources res = getResources();
+			if (result.playlistId == -1)
+				message = res.getString(R.string.import_playlist_empty, file.getName());
+			else
+				message = res.getQuantityString(R.plurals.added_to_playlist, result.added, result.added, result.name);
+			if (result.playlistId != -1 && result.missing != 0)
+				message += '\n' + res.getQuantityString(R.plurals.playlist_missing, result.missing, result.missing);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to import " + file, e);
+			message = getResources().getString(R.string.import_playlist_failed, file.getName());
+		}
+		Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+	}
+
+	/**
+	 * Write the playlist represented by the intent to Playlists/&lt;name&gt;.m3u8
+	 * on external storage. Displays a Toast with the result.
+	 *
+	 * @param intent An intent created with
+	 * {@link LibraryAdapter#createData(View)}.
+	 */
+	private void exportPlaylist(Intent intent)
+	{
+		long id = intent.getLongExtra(LibraryAdapter.DATA_ID, LibraryAdapter.INVALID_ID);
+		String name = intent.getStringExtra(LibraryAdapter.DATA_TITLE);
+		File directory = new File(Environment.getExternalStorageDirectory(), "Playlists");
+		File file = new File(directory, name.replace('/', '_') + ".m3u8");
+		String message;
+		try {
+			int count = PlaylistFile.exportPlaylist(getContentResolver(), id, file);
+			message = getResources().getQuantityString(R.plurals.exported_playlist, count, count, file.getPath());
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to export " + file, e);
+			message = getResources().getString(R.string.export_playlist_failed, name);
+		}
+		Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+	}
+
 	/**
 	 * Open the playlist editor for the playlist with the given id.
 	 */
 	private void editPlaylist(Intent rowData)
 	{
+		long id = rowData.getLongExtra(LibraryAdapter.DATA_ID, LibraryAdapter.INVALID_ID);
+		if (id < 0) {
+			SmartPlaylist playlist = SmartPlaylistIndex.get(this).getPlaylist(id);
+			if (playlist != null)
+				showSmartPlaylistDialog(playlist);
+			return;
+		}
+
 		Intent launch = new Intent(this, PlaylistActivity.class);
-		launch.putExtra("playlist", rowData.getLongExtra(LibraryAdapter.DATA_ID, LibraryAdapter.INVALID_ID));
+		launch.putExtra("playlist", id);
 		launch.putExtra("title", rowData.getStringExtra(LibraryAdapter.DATA_TITLE));
 		startActivity(launch);
 	}
 
+	/**
+	 * Show a dialog to create or edit a smart playlist. The playlist is saved
+	 * on the worker thread when the dialog is accepted.
+	 *
+	 * @param playlist The playlist to edit, or null to create a new one.
+	 */
+	private void showSmartPlaylistDialog(SmartPlaylist playlist)
+	{
+		SmartPlaylistDialog dialog = new SmartPlaylistDialog(this, playlist);
+		dialog.setDismissMessage(mHandler.obtainMessage(MSG_SAVE_SMART_PLAYLIST, dialog));
+		dialog.show();
+	}
+
 	/**
 	 * Delete the media represented by the given intent and show a Toast
 	 * informing the user of this.
@@ -791,7 +1131,12 @@ public class LibraryActivity
 				message = res.getString(R.string.delete_file_failed, file);
 			}
 		} else if (type == MediaUtils.TYPE_PLAYLIST) {
-			Playlist.deletePlaylist(getContentResolver(), id);
+			if (id < 0) {
+				SmartPlaylistIndex.get(this).removePlaylist(id);
+				mPagerAdapter.invalidatePlaylists();
+			} else {
+				Playlist.deletePlaylist(getContentResolver(), id);
+			}
 		} else {
 			int count = PlaybackService.get(this).deleteMedia(type, id);
 			message = res.getQuantityString(R.plurals.deleted, count, count);
@@ -833,6 +1178,8 @@ public class LibraryActivity
 			pickSongs(intent, ACTION_ENQUEUE_ALL);
 			break;
 		case MENU_NEW_PLAYLIST: {
+			if (intent.hasExtra("selection"))
+				clearSelection();
 			NewPlaylistDialog dialog = new NewPlaylistDialog(this, null, R.string.create, intent);
 			dialog.setDismissMessage(mHandler.obtainMessage(MSG_NEW_PLAYLIST, dialog));
 			dialog.show();
@@ -847,27 +1194,23 @@ public class LibraryActivity
 		case MENU_DELETE:
 			mHandler.sendMessage(mHandler.obtainMessage(MSG_DELETE, intent));
 			break;
-		case MENU_ADD_TO_PLAYLIST: {
-			SubMenu playlistMenu = item.getSubMenu();
-			playlistMenu.add(0, MENU_NEW_PLAYLIST, 0, R.string.new_playlist).setIntent(intent);
-			Cursor cursor = Playlist.queryPlaylists(getContentResolver());
-			if (cursor != null) {
-				for (int i = 0, count = cursor.getCount(); i != count; ++i) {
-					cursor.moveToPosition(i);
-					long id = cursor.getLong(0);
-					String name = cursor.getString(1);
-					Intent copy = new Intent(intent);
-					copy.putExtra("playlist", id);
-					copy.putExtra("playlistName", name);
-					playlistMenu.add(0, MENU_SELECT_PLAYLIST, 0, name).setIntent(copy);
-				}
-				cursor.close();
-			}
+		case MENU_IMPORT_PLAYLIST:
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_IMPORT_PLAYLIST, intent));
+			break;
+		case MENU_EXPORT_PLAYLIST:
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_EXPORT_PLAYLIST, intent));
+			break;
+		case MENU_ADD_TO_PLAYLIST:
+			populatePlaylistMenu(item.getSubMenu(), intent);
 			break;
-		}
 		case MENU_SELECT_PLAYLIST:
+			if (intent.hasExtra("selection"))
+				clearSelection();
 			mHandler.sendMessage(mHandler.obtainMessage(MSG_ADD_TO_PLAYLIST, intent));
 			break;
+		case MENU_SELECT:
+			toggleSelection(intent);
+			break;
 		case MENU_MORE_FROM_ARTIST: {
 			String selection;
 			if (intent.getIntExtra(LibraryAdapter.DATA_TYPE, -1) == MediaUtils.TYPE_ALBUM) {
@@ -889,6 +1232,33 @@ public class LibraryActivity
 		return true;
 	}
 
+	/**
+	 * Fill the given menu with an item to create a new playlist and an item
+	 * for each existing playlist.
+	 *
+	 * @param playlistMenu The menu to fill.
+	 * @param intent The intent for the songs to add, which will be copied
+	 * into each item.
+	 */
+	private void populatePlaylistMenu(SubMenu playlistMenu, Intent intent)
+	{
+		playlistMenu.clear();
+		playlistMenu.add(0, MENU_NEW_PLAYLIST, 0, R.string.new_playlist).setIntent(intent);
+		Cursor cursor = Playlist.queryPlaylists(getContentResolver());
+		if (cursor != null) {
+			for (int i = 0, count = cursor.getCount(); i != count; ++i) {
+				cursor.moveToPosition(i);
+				long id = cursor.getLong(0);
+				String name = cursor.getString(1);
+				Intent copy = new Intent(intent);
+				copy.putExtra("playlist", id);
+				copy.putExtra("playlistName", name);
+				playlistMenu.add(0, MENU_SELECT_PLAYLIST, 0, name).setIntent(copy);
+			}
+			cursor.close();
+		}
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu)
 	{
@@ -903,6 +1273,11 @@ public class LibraryActivity
 			menu.add(0, MENU_PLAYBACK, 0, R.string.playback_view).setIcon(R.drawable.ic_menu_gallery);
 		}
 		menu.add(0, MENU_SORT, 0, R.string.sort_by).setIcon(R.drawable.ic_menu_sort_alphabetically);
+		menu.add(0, MENU_PLAY_SELECTION, 0, R.string.play_selection);
+		menu.add(0, MENU_ENQUEUE_SELECTION, 0, R.string.enqueue_selection);
+		menu.addSubMenu(0, MENU_ADD_SELECTION_TO_PLAYLIST, 0, R.string.add_selection_to_playlist);
+		menu.add(0, MENU_CLEAR_SELECTION, 0, R.string.clear_selection).setIcon(R.drawable.ic_menu_close_clear_cancel);
+		menu.add(0, MENU_NEW_SMART_PLAYLIST, 0, R.string.new_smart_playlist);
 		return super.onCreateOptionsMenu(menu);
 	}
 
@@ -911,6 +1286,12 @@ public class LibraryActivity
 	{
 		LibraryAdapter adapter = mCurrentAdapter;
 		menu.findItem(MENU_SORT).setEnabled(adapter != null && adapter.getMediaType() != MediaUtils.TYPE_FILE);
+		boolean selecting = !mSelection.isEmpty();
+		menu.findItem(MENU_PLAY_SELECTION).setVisible(selecting);
+		menu.findItem(MENU_ENQUEUE_SELECTION).setVisible(selecting);
+		menu.findItem(MENU_ADD_SELECTION_TO_PLAYLIST).setVisible(selecting);
+		menu.findItem(MENU_CLEAR_SELECTION).setVisible(selecting);
+		menu.findItem(MENU_NEW_SMART_PLAYLIST).setVisible(adapter != null && adapter.getMediaType() == MediaUtils.TYPE_PLAYLIST);
 		return super.onPrepareOptionsMenu(menu);
 	}
 
@@ -924,6 +1305,24 @@ public class LibraryActivity
 		case MENU_PLAYBACK:
 			openPlaybackActivity();
 			return true;
+		case MENU_PLAY_SELECTION:
+			pickSelection(ACTION_PLAY);
+			return true;
+		case MENU_ENQUEUE_SELECTION:
+			pickSelection(ACTION_ENQUEUE);
+			return true;
+		case MENU_ADD_SELECTION_TO_PLAYLIST: {
+			Intent intent = new Intent();
+			intent.putParcelableArrayListExtra("selection", new ArrayList<Intent>(mSelection.values()));
+			populatePlaylistMenu(item.getSubMenu(), intent);
+			return true;
+		}
+		case MENU_CLEAR_SELECTION:
+			clearSelection();
+			return true;
+		case MENU_NEW_SMART_PLAYLIST:
+			showSmartPlaylistDialog(null);
+			return true;
 		case MENU_SORT: {
 			MediaAdapter adapter = (MediaAdapter)mCurrentAdapter;
 			int mode = adapter.getSortMode();
@@ -957,6 +1356,9 @@ public class LibraryActivity
 			return true;
 		}
 		default:
+			// Items in the add selection to playlist submenu
+			if (item.getIntent() != null)
+				return onContextItemSelected(item);
 			return super.onOptionsItemSelected(item);
 		}
 	}
@@ -983,6 +1385,59 @@ public class LibraryActivity
 	 * Save the current page, passed in arg1, to SharedPreferences.
 	 */
 	private static final int MSG_SAVE_PAGE = 16;
+	/**
+	 * Update the playlist progress dialog. arg1 is the number of songs
+	 * processed and arg2 the total. Sent to mUiHandler.
+	 */
+	private static final int MSG_PLAYLIST_PROGRESS = 17;
+	/**
+	 * Import the playlist file represented by the intent stored in obj.
+	 */
+	private static final int MSG_IMPORT_PLAYLIST = 18;
+	/**
+	 * Export the playlist represented by the intent stored in obj.
+	 */
+	private static final int MSG_EXPORT_PLAYLIST = 19;
+	/**
+	 * Save the smart playlist from the SmartPlaylistDialog stored in obj.
+	 */
+	private static final int MSG_SAVE_SMART_PLAYLIST = 20;
+
+	@Override
+	public void onAddProgress(int processed, int total)
+	{
+		mUiHandler.removeMessages(MSG_PLAYLIST_PROGRESS);
+		mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_PLAYLIST_PROGRESS, processed, total));
+	}
+
+	/**
+	 * Show, update or dismiss the playlist progress dialog. The dialog is
+	 * only shown for additions that take more than one chunk.
+	 *
+	 * @param processed The number of songs processed.
+	 * @param total The total number of songs.
+	 */
+	private void updatePlaylistProgress(int processed, int total)
+	{
+		if (processed >= total) {
+			if (mPlaylistProgress != null) {
+				mPlaylistProgress.dismiss();
+				mPlaylistProgress = null;
+			}
+			return;
+		}
+
+		if (mPlaylistProgress == null) {
+			ProgressDialog dialog = new ProgressDialog(this);
+			dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+			dialog.setMessage(getResources().getString(R.string.adding_to_playlist));
+			dialog.setCancelable(false);
+			dialog.show();
+			mPlaylistProgress = dialog;
+		}
+		mPlaylistProgress.setMax(total);
+		mPlaylistProgress.setProgress(processed);
+	}
 
 	@Override
 	public boolean handleMessage(Message message)
@@ -1007,6 +1462,20 @@ public class LibraryActivity
 		case MSG_DELETE:
 			delete((Intent)message.obj);
 			break;
+		case MSG_IMPORT_PLAYLIST:
+			importPlaylist((Intent)message.obj);
+			break;
+		case MSG_EXPORT_PLAYLIST:
+			exportPlaylist((Intent)message.obj);
+			break;
+		case MSG_SAVE_SMART_PLAYLIST: {
+			SmartPlaylistDialog dialog = (SmartPlaylistDialog)message.obj;
+			if (dialog.isAccepted()) {
+				SmartPlaylistIndex.get(this).putPlaylist(dialog.getPlaylistId(), dialog.getName(), dialog.getRules());
+				mPagerAdapter.invalidatePlaylists();
+			}
+			break;
+		}
 		case MSG_RENAME_PLAYLIST: {
 			NewPlaylistDialog dialog = (NewPlaylistDialog)message.obj;
 			if (dialog.isAccepted()) {
@@ -1015,6 +1484,9 @@ public class LibraryActivity
 			}
 			break;
 		}
+		case MSG_PLAYLIST_PROGRESS:
+			updatePlaylistProgress(message.arg1, message.arg2);
+			break;
 		case MSG_SAVE_PAGE: {
 			SharedPreferences.Editor editor = PlaybackService.getSettings(this).edit();
 			editor.putInt("library_page", message.arg1);
@@ -1097,7 +1569,8 @@ public class LibraryActivity
 				String artist = song.artist == null ? res.getString(R.string.unknown) : song.artist;
 				mTitle.setText(title);
 				mArtist.setText(artist);
-				cover = song.getCover(this);
+				int size = (int)(80 * getResources().getDisplayMetrics().density);
+				cover = song.getCover(this, size, size);
 			}
 
 			if (Song.mDisableCoverArt)
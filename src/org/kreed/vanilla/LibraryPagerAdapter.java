@@ -39,6 +39,7 @@ import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -53,6 +54,7 @@ public class LibraryPagerAdapter
 	         , ViewPager.OnPageChangeListener
 	         , View.OnCreateContextMenuListener
 	         , AdapterView.OnItemClickListener
+	         , AbsListView.OnScrollListener
 {
 	/**
 	 * The number of unique list types. The number of visible lists may be
@@ -115,6 +117,10 @@ public class LibraryPagerAdapter
 	 * The file adapter instance, also stored at mAdapters[MediaUtils.TYPE_FILE].
 	 */
 	private FileSystemAdapter mFilesAdapter;
+	/**
+	 * If true, folders that contain no songs are hidden in the files tab.
+	 */
+	private boolean mHideEmptyFolders;
 	/**
 	 * The adapter of the currently visible list.
 	 */
@@ -185,9 +191,7 @@ public class LibraryPagerAdapter
 		@Override
 		public void onChange(boolean selfChange)
 		{
-			if (mPlaylistAdapter != null) {
-				postRequestRequery(mPlaylistAdapter);
-			}
+			invalidatePlaylists();
 		}
 	};
 
@@ -329,6 +333,7 @@ public class LibraryPagerAdapter
 				break;
 			case MediaUtils.TYPE_FILE:
 				adapter = mFilesAdapter = new FileSystemAdapter(activity, mPendingFileLimiter);
+				mFilesAdapter.setHideEmptyFolders(mHideEmptyFolders);
 				mPendingFileLimiter = null;
 				break;
 			default:
@@ -338,6 +343,7 @@ public class LibraryPagerAdapter
 			view = (ListView)inflater.inflate(R.layout.listview, null);
 			view.setOnCreateContextMenuListener(this);
 			view.setOnItemClickListener(this);
+			view.setOnScrollListener(this);
 			view.setTag(type);
 			if (header != null) {
 				header.setText(mHeaderText);
@@ -697,6 +703,33 @@ public class LibraryPagerAdapter
 		}
 	}
 
+	/**
+	 * Set whether folders that contain no songs are hidden in the files tab,
+	 * requerying the files adapter if the setting changed.
+	 *
+	 * Must be called on the UI thread.
+	 */
+	public void setHideEmptyFolders(boolean hide)
+	{
+		if (hide == mHideEmptyFolders)
+			return;
+		mHideEmptyFolders = hide;
+		if (mFilesAdapter != null) {
+			mFilesAdapter.setHideEmptyFolders(hide);
+			requestRequery(mFilesAdapter);
+		}
+	}
+
+	/**
+	 * Requery the playlist adapter, if it has been created. May be called
+	 * from any thread.
+	 */
+	public void invalidatePlaylists()
+	{
+		if (mPlaylistAdapter != null)
+			postRequestRequery(mPlaylistAdapter);
+	}
+
 	/**
 	 * Invalidate the data for all adapters.
 	 */
@@ -834,4 +867,16 @@ public class LibraryPagerAdapter
 		}
 		mActivity.mFakeTarget = false;
 	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+	{
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState)
+	{
+		// Don't decode thumbnails for rows that are flying past.
+		mActivity.pauseThumbnails(scrollState == SCROLL_STATE_FLING);
+	}
 }
@@ -0,0 +1,762 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Incrementally rescans the music library.
+ *
+ * The scan roots are walked in parallel, one task per directory. The size
+ * and modification time of each audio file are compared against a manifest
+ * saved by the previous scan; only new, changed or deleted files are passed
+ * to the system MediaScanner through MediaScannerConnection. After the first
+ * scan, a rescan touches only the files that changed.
+ *
+ * Without a usable manifest (the first scan, or after it was lost) every
+ * file looks new. Rather than passing each file to the MediaScanner, the
+ * whole volume is rescanned by broadcasting ACTION_MEDIA_MOUNTED, where the
+ * platform still allows it.
+ *
+ * Only one scan runs at a time. Progress is reported to a {@link Listener}
+ * on the UI thread.
+ */
+public final class LibraryScanner implements Runnable, Handler.Callback, MediaScannerConnection.MediaScannerConnectionClient {
+	/**
+	 * Receives progress updates. Called on the UI thread.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the progress of the scan changes.
+		 *
+		 * @param scanner The running (or finished) scanner. Query its getters
+		 * for the current progress.
+		 */
+		void onScanProgress(LibraryScanner scanner);
+	}
+
+	/**
+	 * Walking the scan roots, looking for changed files.
+	 */
+	public static final int STATE_WALKING = 0;
+	/**
+	 * Passing changed files to the MediaScanner.
+	 */
+	public static final int STATE_SCANNING = 1;
+	/**
+	 * The scan has finished.
+	 */
+	public static final int STATE_DONE = 2;
+
+	/**
+	 * Identifies the manifest file format. Change this when the format
+	 * changes.
+	 */
+	private static final int MAGIC = 0x564c5331;
+	/**
+	 * The name of the manifest file, in the application files directory.
+	 */
+	private static final String MANIFEST_FILE = "scan_manifest";
+	/**
+	 * Give up on the MediaScanner if it reports no progress for this long, in
+	 * milliseconds.
+	 */
+	private static final long SCAN_TIMEOUT = 60000;
+	/**
+	 * Minimum time between progress updates, in milliseconds.
+	 */
+	private static final long PROGRESS_INTERVAL = 250;
+	/**
+	 * The largest number of paths checked per query when confirming that
+	 * deleted files were removed from the MediaStore. SQLite allows at most
+	 * 999 arguments per statement.
+	 */
+	private static final int CONFIRM_CHUNK_SIZE = 500;
+	/**
+	 * The first SDK version that does not allow apps to send
+	 * ACTION_MEDIA_MOUNTED (KitKat).
+	 */
+	private static final int SDK_NO_MOUNT_BROADCAST = 19;
+	/**
+	 * Separates the paths in the scan roots preference.
+	 */
+	private static final Pattern ROOT_SPLIT = Pattern.compile(File.pathSeparator);
+	/**
+	 * Extensions of the files that are checked. Other files are ignored.
+	 */
+	private static final HashSet<String> AUDIO_EXTENSIONS = new HashSet<String>(Arrays.asList(
+		"mp3", "ogg", "oga", "flac", "m4a", "aac", "wav", "wma", "mid", "midi", "amr", "3gp", "mka", "opus", "m3u", "pls"));
+
+	/**
+	 * Send a progress update to the listener.
+	 */
+	private static final int MSG_PROGRESS = 0;
+
+	/**
+	 * The running scan, or the last scan if none is running.
+	 */
+	private static LibraryScanner sScanner;
+
+	private final Context mContext;
+	/**
+	 * The directories to walk.
+	 */
+	private final File[] mRoots;
+	/**
+	 * Posts progress updates to the UI thread.
+	 */
+	private final Handler mUiHandler = new Handler(Looper.getMainLooper(), this);
+	/**
+	 * The listener to report progress to. May be null.
+	 */
+	private volatile Listener mListener;
+	/**
+	 * The current state. One of STATE_*.
+	 */
+	private volatile int mState = STATE_WALKING;
+	/**
+	 * The uptime at which the scan started.
+	 */
+	private final long mStartTime = SystemClock.uptimeMillis();
+	/**
+	 * The uptime at which the scan finished, or 0 if it has not.
+	 */
+	private volatile long mEndTime;
+
+	/**
+	 * Runs the directory walking tasks.
+	 */
+	private ExecutorService mExecutor;
+	/**
+	 * The number of directory tasks that have been submitted but have not
+	 * finished. Notify on this object when it reaches 0.
+	 */
+	private final AtomicInteger mPendingDirs = new AtomicInteger();
+	/**
+	 * The canonical paths of the directories walked so far. A directory
+	 * reached again through a symbolic link is skipped, so link loops do not
+	 * make the walk run forever.
+	 */
+	private final ConcurrentHashMap<String, Boolean> mVisitedDirs = new ConcurrentHashMap<String, Boolean>();
+	/**
+	 * The number of directories walked.
+	 */
+	private final AtomicInteger mDirCount = new AtomicInteger();
+	/**
+	 * The number of audio files checked.
+	 */
+	private final AtomicInteger mFileCount = new AtomicInteger();
+	/**
+	 * The number of files the MediaScanner has finished with.
+	 */
+	private final AtomicInteger mScannedCount = new AtomicInteger();
+	/**
+	 * The uptime at which the MediaScanner last reported progress.
+	 */
+	private volatile long mLastScanProgress;
+
+	/**
+	 * The manifest saved by the previous scan, mapping paths to
+	 * { size, modification time }. Read-only during the walk.
+	 */
+	private HashMap<String, long[]> mOldManifest;
+	/**
+	 * The manifest for this scan, filled during the walk.
+	 */
+	private final ConcurrentHashMap<String, long[]> mManifest = new ConcurrentHashMap<String, long[]>();
+	/**
+	 * The manifest entries for new or changed files, added to mManifest once
+	 * the MediaScanner has processed them, so they are retried if it fails.
+	 */
+	private final ConcurrentHashMap<String, long[]> mPendingEntries = new ConcurrentHashMap<String, long[]>();
+	/**
+	 * The old manifest entries of the files that have been deleted. They are
+	 * kept in the manifest until the MediaStore no longer lists them, so the
+	 * deletion is retried if the MediaScanner does not remove them.
+	 */
+	private final HashMap<String, long[]> mDeletedEntries = new HashMap<String, long[]>();
+	/**
+	 * True if the manifest was missing, invalid or empty, so the whole volume should be
+	 * rescanned instead of passing every file to the MediaScanner.
+	 */
+	private boolean mNoManifest;
+	/**
+	 * True if the whole volume is being rescanned by the system.
+	 */
+	private volatile boolean mVolumeRescan;
+	/**
+	 * New or changed files found by the walk.
+	 */
+	private final ConcurrentLinkedQueue<String> mChangedQueue = new ConcurrentLinkedQueue<String>();
+	/**
+	 * The files to pass to the MediaScanner: the changed files followed by
+	 * the deleted files.
+	 */
+	private String[] mChanged;
+	/**
+	 * The connection to the MediaScanner.
+	 */
+	private MediaScannerConnection mConnection;
+
+	private LibraryScanner(Context context, File[] roots)
+	{
+		mContext = context;
+		mRoots = roots;
+	}
+
+	/**
+	 * Start a scan, unless one is already running.
+	 *
+	 * @param context A context to use.
+	 * @param listener A listener to report progress to. Replaces the listener
+	 * of the running scan, if any. May be null.
+	 * @return The running scan.
+	 */
+	public static synchronized LibraryScanner start(Context context, Listener listener)
+	{
+		LibraryScanner scanner = sScanner;
+		if (scanner == null || scanner.mState == STATE_DONE) {
+			context = context.getApplicationContext();
+			scanner = new LibraryScanner(context, getRoots(context));
+			sScanner = scanner;
+			scanner.mListener = listener;
+			new Thread(scanner, "LibraryScanner").start();
+		} else {
+			scanner.mListener = listener;
+		}
+		return scanner;
+	}
+
+	/**
+	 * Returns the running scan, or the last scan if none is running, or null
+	 * if no scan has been started.
+	 */
+	public static synchronized LibraryScanner getScanner()
+	{
+		return sScanner;
+	}
+
+	/**
+	 * Returns the directories to scan, from the scan roots preference.
+	 * Defaults to the external storage directory.
+	 */
+	private static File[] getRoots(Context context)
+	{
+		SharedPreferences settings = PlaybackService.getSettings(context);
+		String pref = settings.getString(PrefKeys.SCAN_ROOTS, "").trim();
+		ArrayList<File> roots = new ArrayList<File>();
+		if (pref.length() != 0) {
+			for (String path : ROOT_SPLIT.split(pref)) {
+				path = path.trim();
+				if (path.length() != 0)
+					roots.add(new File(path));
+			}
+		}
+		if (roots.isEmpty())
+			roots.add(Environment.getExternalStorageDirectory());
+		return roots.toArray(new File[roots.size()]);
+	}
+
+	/**
+	 * Set the listener to report progress to.
+	 *
+	 * @param listener The listener. May be null.
+	 */
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	/**
+	 * Returns the current state. One of STATE_*.
+	 */
+	public int getState()
+	{
+		return mState;
+	}
+
+	/**
+	 * Returns the number of directories walked so far.
+	 */
+	public int getDirCount()
+	{
+		return mDirCount.get();
+	}
+
+	/**
+	 * Returns the number of audio files checked so far.
+	 */
+	public int getFileCount()
+	{
+		return mFileCount.get();
+	}
+
+	/**
+	 * Returns the number of files found to be new, changed or deleted.
+	 */
+	public int getChangedCount()
+	{
+		String[] changed = mChanged;
+		return changed == null ? mChangedQueue.size() : changed.length;
+	}
+
+	/**
+	 * Returns true if the whole volume is being rescanned by the system
+	 * rather than by this scan. The rescan continues after this scan is done.
+	 */
+	public boolean isVolumeRescan()
+	{
+		return mVolumeRescan;
+	}
+
+	/**
+	 * Returns the number of changed files the MediaScanner has finished
+	 * with.
+	 */
+	public int getScannedCount()
+	{
+		return mScannedCount.get();
+	}
+
+	/**
+	 * Returns the time the scan has taken so far, in milliseconds.
+	 */
+	public long getElapsedTime()
+	{
+		long end = mEndTime;
+		return (end == 0 ? SystemClock.uptimeMillis() : end) - mStartTime;
+	}
+
+	/**
+	 * Returns the number of files checked per second.
+	 */
+	public int getFilesPerSecond()
+	{
+		long elapsed = getElapsedTime();
+		if (elapsed == 0)
+			return 0;
+		return (int)(mFileCount.get() * 1000L / elapsed);
+	}
+
+	/**
+	 * Schedule a progress update, unless one is already pending.
+	 */
+	private void postProgress(boolean now)
+	{
+		if (now) {
+			mUiHandler.removeMessages(MSG_PROGRESS);
+			mUiHandler.sendEmptyMessage(MSG_PROGRESS);
+		} else if (!mUiHandler.hasMessages(MSG_PROGRESS)) {
+			mUiHandler.sendEmptyMessageDelayed(MSG_PROGRESS, PROGRESS_INTERVAL);
+		}
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_PROGRESS: {
+			Listener listener = mListener;
+			if (listener != null)
+				listener.onScanProgress(this);
+			break;
+		}
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public void run()
+	{
+		loadManifest();
+		postProgress(true);
+
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		mExecutor = Executors.newFixedThreadPool(threads);
+		for (File root : mRoots)
+			submitDirectory(root);
+		synchronized (mPendingDirs) {
+			while (mPendingDirs.get() != 0) {
+				try {
+					mPendingDirs.wait();
+				} catch (InterruptedException e) {
+					// keep waiting
+				}
+			}
+		}
+		mExecutor.shutdown();
+
+		ArrayList<String> changed = new ArrayList<String>(mChangedQueue);
+		for (Map.Entry<String, long[]> entry : mOldManifest.entrySet()) {
+			String path = entry.getKey();
+			if (!isUnderRoot(path)) {
+				// Keep entries from roots that were not scanned this time.
+				mManifest.put(path, entry.getValue());
+			} else if (!mManifest.containsKey(path) && !mPendingEntries.containsKey(path)) {
+				// Not seen by the walk, so it has been deleted. Newer
+				// MediaScanners remove the entries for missing files.
+				changed.add(path);
+				mDeletedEntries.put(path, entry.getValue());
+			}
+		}
+		mChanged = changed.toArray(new String[changed.size()]);
+		mOldManifest = null;
+
+		if (mChanged.length != 0) {
+			if (mNoManifest && requestVolumeRescan()) {
+				// The system scans everything; trust it with the new files.
+				mVolumeRescan = true;
+				mManifest.putAll(mPendingEntries);
+			} else {
+				mState = STATE_SCANNING;
+				postProgress(true);
+				scanChanged();
+			}
+		}
+		if (!mDeletedEntries.isEmpty())
+			confirmDeleted();
+
+		saveManifest();
+		mEndTime = SystemClock.uptimeMillis();
+		mState = STATE_DONE;
+		postProgress(true);
+	}
+
+	/**
+	 * Returns true if the given path is inside one of the scan roots.
+	 */
+	private boolean isUnderRoot(String path)
+	{
+		for (File root : mRoots) {
+			String prefix = root.getPath();
+			if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/'))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Queue a task that walks the given directory.
+	 */
+	private void submitDirectory(final File directory)
+	{
+		mPendingDirs.incrementAndGet();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					walkDirectory(directory);
+				} finally {
+					if (mPendingDirs.decrementAndGet() == 0) {
+						synchronized (mPendingDirs) {
+							mPendingDirs.notifyAll();
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Check the files in the given directory against the old manifest and
+	 * queue tasks for its subdirectories. Hidden directories and directories
+	 * containing a .nomedia file are skipped, as the MediaScanner does, as are
+	 * directories that have already been walked through another path.
+	 */
+	private void walkDirectory(File directory)
+	{
+		String canonical;
+		try {
+			canonical = directory.getCanonicalPath();
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to resolve " + directory, e);
+			return;
+		}
+		if (mVisitedDirs.putIfAbsent(canonical, Boolean.TRUE) != null)
+			return;
+
+		String[] names = directory.list();
+		if (names == null)
+			return;
+
+		for (String name : names) {
+			if (name.equals(".nomedia"))
+				return;
+		}
+
+		mDirCount.incrementAndGet();
+
+		for (String name : names) {
+			if (name.length() == 0 || name.charAt(0) == '.')
+				continue;
+			File file = new File(directory, name);
+			if (file.isDirectory()) {
+				submitDirectory(file);
+				continue;
+			}
+
+			int dot = name.lastIndexOf('.');
+			if (dot == -1 || !AUDIO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase()))
+				continue;
+
+			String path = file.getPath();
+			long[] entry = { file.length(), file.lastModified() };
+			long[] old = mOldManifest.get(path);
+			if (old == null || old[0] != entry[0] || old[1] != entry[1]) {
+				mPendingEntries.put(path, entry);
+				mChangedQueue.add(path);
+			} else {
+				mManifest.put(path, entry);
+			}
+			mFileCount.incrementAndGet();
+		}
+
+		postProgress(false);
+	}
+
+	/**
+	 * Ask the system to rescan the whole external volume.
+	 *
+	 * @return True if the request was sent; false if the platform does not
+	 * allow it.
+	 */
+	private boolean requestVolumeRescan()
+	{
+		if (Build.VERSION.SDK_INT >= SDK_NO_MOUNT_BROADCAST)
+			return false;
+		try {
+			Uri uri = Uri.fromFile(Environment.getExternalStorageDirectory());
+			mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_MOUNTED, uri));
+			return true;
+		} catch (SecurityException e) {
+			Log.w("VanillaMusic", "Failed to request a volume rescan", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Put the deleted files that the MediaStore still lists back into the
+	 * manifest, so they are passed to the MediaScanner again next time. If
+	 * the MediaStore can not be queried, all of them are put back.
+	 */
+	private void confirmDeleted()
+	{
+		HashMap<String, long[]> deleted = mDeletedEntries;
+		HashSet<String> remaining = new HashSet<String>();
+		String[] paths = deleted.keySet().toArray(new String[deleted.size()]);
+		Uri[] uris = { MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI };
+		String[] projection = { MediaStore.MediaColumns.DATA };
+
+		try {
+			for (int start = 0; start < paths.length; start += CONFIRM_CHUNK_SIZE) {
+				int count = Math.min(CONFIRM_CHUNK_SIZE, paths.length - start);
+				String[] args = new String[count];
+				System.arraycopy(paths, start, args, 0, count);
+
+				StringBuilder selection = new StringBuilder(MediaStore.MediaColumns.DATA);
+				selection.append(" IN (");
+				for (int i = 0; i != count; ++i) {
+					if (i != 0)
+						selection.append(',');
+					selection.append('?');
+				}
+				selection.append(')');
+
+				for (Uri uri : uris) {
+					Cursor cursor = mContext.getContentResolver().query(uri, projection, selection.toString(), args, null);
+					if (cursor == null) {
+						mManifest.putAll(deleted);
+						return;
+					}
+					try {
+						while (cursor.moveToNext())
+							remaining.add(cursor.getString(0));
+					} finally {
+						cursor.close();
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			Log.w("VanillaMusic", "Failed to confirm deleted files", e);
+			mManifest.putAll(deleted);
+			return;
+		}
+
+		for (String path : remaining) {
+			long[] entry = deleted.get(path);
+			if (entry != null)
+				mManifest.put(path, entry);
+		}
+	}
+
+	/**
+	 * Pass the changed files to the MediaScanner and wait for it to finish
+	 * with them.
+	 */
+	private void scanChanged()
+	{
+		mLastScanProgress = SystemClock.uptimeMillis();
+		MediaScannerConnection connection = new MediaScannerConnection(mContext, this);
+		mConnection = connection;
+		connection.connect();
+
+		synchronized (mScannedCount) {
+			while (mScannedCount.get() != mChanged.length) {
+				long wait = mLastScanProgress + SCAN_TIMEOUT - SystemClock.uptimeMillis();
+				if (wait <= 0) {
+					Log.w("VanillaMusic", "MediaScanner timed out after " + mScannedCount.get() + " of " + mChanged.length + " files");
+					break;
+				}
+				try {
+					mScannedCount.wait(wait);
+				} catch (InterruptedException e) {
+					// keep waiting
+				}
+			}
+		}
+
+		connection.disconnect();
+	}
+
+	@Override
+	public void onMediaScannerConnected()
+	{
+		for (String path : mChanged)
+			mConnection.scanFile(path, null);
+	}
+
+	@Override
+	public void onScanCompleted(String path, Uri uri)
+	{
+		long[] entry = mPendingEntries.get(path);
+		if (entry != null && uri != null)
+			mManifest.put(path, entry);
+
+		mLastScanProgress = SystemClock.uptimeMillis();
+		synchronized (mScannedCount) {
+			mScannedCount.incrementAndGet();
+			mScannedCount.notifyAll();
+		}
+		postProgress(false);
+	}
+
+	/**
+	 * Read the manifest saved by the previous scan into mOldManifest.
+	 */
+	private void loadManifest()
+	{
+		HashMap<String, long[]> manifest = new HashMap<String, long[]>();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(MANIFEST_FILE)));
+			if (in.readInt() == MAGIC) {
+				for (int i = in.readInt(); --i >= 0; ) {
+					String path = in.readUTF();
+					long size = in.readLong();
+					long modified = in.readLong();
+					manifest.put(path, new long[] { size, modified });
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// first scan
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to load scan manifest", e);
+			manifest.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		mOldManifest = manifest;
+		mNoManifest = manifest.isEmpty();
+	}
+
+	/**
+	 * Write mManifest to disk, for the next scan.
+	 */
+	private void saveManifest()
+	{
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(mContext.openFileOutput(MANIFEST_FILE, 0)));
+			out.writeInt(MAGIC);
+			out.writeInt(mManifest.size());
+			for (Map.Entry<String, long[]> entry : mManifest.entrySet()) {
+				long[] value = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(value[0]);
+				out.writeLong(value[1]);
+			}
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to save scan manifest", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+}
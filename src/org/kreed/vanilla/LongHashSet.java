@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+/**
+ * A set of longs backed by an open-addressed array, avoiding the boxing and
+ * per-entry objects of a HashSet&lt;Long&gt;.
+ */
+public final class LongHashSet {
+	/**
+	 * Marks an empty slot. The value itself is tracked by mHasEmptyValue.
+	 */
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	/**
+	 * The slots. The length is always a power of two.
+	 */
+	private long[] mTable;
+	/**
+	 * The number of values in mTable.
+	 */
+	private int mSize;
+	/**
+	 * True if EMPTY itself is in the set.
+	 */
+	private boolean mHasEmptyValue;
+
+	/**
+	 * Create a set.
+	 *
+	 * @param capacity The number of values expected. The set grows as
+	 * needed.
+	 */
+	public LongHashSet(int capacity)
+	{
+		int length = 16;
+		while (length < capacity * 2)
+			length <<= 1;
+		mTable = newTable(length);
+	}
+
+	private static long[] newTable(int length)
+	{
+		long[] table = new long[length];
+		for (int i = length; --i != -1; )
+			table[i] = EMPTY;
+		return table;
+	}
+
+	/**
+	 * Returns the slot index to start probing at for the given value.
+	 */
+	private static int hash(long value, int mask)
+	{
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Returns true if the set contains the given value.
+	 */
+	public boolean contains(long value)
+	{
+		if (value == EMPTY)
+			return mHasEmptyValue;
+
+		long[] table = mTable;
+		int mask = table.length - 1;
+		for (int i = hash(value, mask); ; i = (i + 1) & mask) {
+			long v = table[i];
+			if (v == value)
+				return true;
+			if (v == EMPTY)
+				return false;
+		}
+	}
+
+	/**
+	 * Add the given value to the set.
+	 *
+	 * @return True if the value was added, false if it was already present.
+	 */
+	public boolean add(long value)
+	{
+		if (value == EMPTY) {
+			boolean added = !mHasEmptyValue;
+			mHasEmptyValue = true;
+			return added;
+		}
+
+		if ((mSize + 1) * 2 > mTable.length)
+			grow();
+
+		long[] table = mTable;
+		int mask = table.length - 1;
+		for (int i = hash(value, mask); ; i = (i + 1) & mask) {
+			long v = table[i];
+			if (v == value)
+				return false;
+			if (v == EMPTY) {
+				table[i] = value;
+				++mSize;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Double the size of the table.
+	 */
+	private void grow()
+	{
+		long[] old = mTable;
+		long[] table = newTable(old.length * 2);
+		int mask = table.length - 1;
+		for (long value : old) {
+			if (value == EMPTY)
+				continue;
+			int i = hash(value, mask);
+			while (table[i] != EMPTY)
+				i = (i + 1) & mask;
+			table[i] = value;
+		}
+		mTable = table;
+	}
+
+	/**
+	 * Returns the number of values in the set.
+	 */
+	public int size()
+	{
+		return mHasEmptyValue ? mSize + 1 : mSize;
+	}
+}
@@ -26,6 +26,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.provider.BaseColumns;
@@ -117,10 +118,6 @@ public class MediaAdapter
 	 * The sections used by the indexer.
 	 */
 	private Object[] mSections;
-	/**
-	 * The sort order for use with buildSongQuery().
-	 */
-	private String mSongSort;
 	/**
 	 * The human-readable descriptions for each sort mode.
 	 */
@@ -140,6 +137,16 @@ public class MediaAdapter
 	 * If true, show the expander button on each row.
 	 */
 	private boolean mExpandable;
+	/**
+	 * Loads album art thumbnails for the rows, or null if rows have no
+	 * thumbnails.
+	 */
+	private ThumbnailLoader mThumbnails;
+	/**
+	 * The index of the album id column in mProjection, or -1 if the rows have
+	 * no album.
+	 */
+	private int mAlbumIdColumn = -1;
 
 	/**
 	 * Construct a MediaAdapter representing the given <code>type</code> of
@@ -164,7 +171,6 @@ public class MediaAdapter
 			mStore = MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI;
 			mFields = new String[] { MediaStore.Audio.Artists.ARTIST };
 			mFieldKeys = new String[] { MediaStore.Audio.Artists.ARTIST_KEY };
-			mSongSort = MediaUtils.DEFAULT_SORT;
 			mSortEntries = new int[] { R.string.name, R.string.number_of_tracks };
 			mSortValues = new String[] { "artist_key %1$s", "number_of_tracks %1$s,artist_key %1$s" };
 			break;
@@ -173,7 +179,6 @@ public class MediaAdapter
 			mFields = new String[] { MediaStore.Audio.Albums.ARTIST, MediaStore.Audio.Albums.ALBUM };
 			// Why is there no artist_key column constant in the album MediaStore? The column does seem to exist.
 			mFieldKeys = new String[] { "artist_key", MediaStore.Audio.Albums.ALBUM_KEY };
-			mSongSort = "album_key,track";
 			mSortEntries = new int[] { R.string.name, R.string.artist_album, R.string.year, R.string.number_of_tracks };
 			mSortValues = new String[] { "album_key %1$s", "artist_key %1$s,album_key %1$s", "minyear %1$s,album_key %1$s", "numsongs %1$s,album_key %1$s" };
 			break;
@@ -207,6 +212,19 @@ public class MediaAdapter
 			mProjection = new String[] { BaseColumns._ID, mFields[0] };
 		else
 			mProjection = new String[] { BaseColumns._ID, mFields[mFields.length - 1], mFields[0] };
+
+		if (!Song.mDisableCoverArt && (type == MediaUtils.TYPE_ALBUM || type == MediaUtils.TYPE_SONG)) {
+			mThumbnails = activity.getThumbnailLoader();
+			if (type == MediaUtils.TYPE_ALBUM) {
+				mAlbumIdColumn = 0;
+			} else {
+				String[] projection = new String[mProjection.length + 1];
+				System.arraycopy(mProjection, 0, projection, 0, mProjection.length);
+				projection[mProjection.length] = MediaStore.Audio.Media.ALBUM_ID;
+				mAlbumIdColumn = mProjection.length;
+				mProjection = projection;
+			}
+		}
 	}
 
 	/**
@@ -244,15 +262,7 @@ public class MediaAdapter
 		StringBuilder selection = new StringBuilder();
 		String[] selectionArgs = null;
 
-		int mode = mSortMode;
-		String sortDir;
-		if (mode < 0) {
-			mode = ~mode;
-			sortDir = "DESC";
-		} else {
-			sortDir = "ASC";
-		}
-		String sort = String.format(mSortValues[mode], sortDir);
+		String sort = getSortOrder(mSortValues);
 
 		if (mType == MediaUtils.TYPE_SONG || forceMusicCheck)
 			selection.append("is_music!=0");
@@ -315,7 +325,16 @@ public class MediaAdapter
 	@Override
 	public Object query()
 	{
-		return buildQuery(mProjection, false).runQuery(mActivity.getContentResolver());
+		Cursor cursor = buildQuery(mProjection, false).runQuery(mActivity.getContentResolver());
+		if (mType == MediaUtils.TYPE_PLAYLIST && cursor != null) {
+			// List smart playlists before the MediaStore playlists.
+			Cursor smart = SmartPlaylistIndex.get(mActivity).queryPlaylists(mProjection, mConstraint);
+			if (smart.getCount() != 0)
+				cursor = new MergeCursor(new Cursor[] { smart, cursor });
+			else
+				smart.close();
+		}
+		return cursor;
 	}
 
 	@Override
@@ -332,17 +351,74 @@ public class MediaAdapter
 	 */
 	public QueryTask buildSongQuery(String[] projection)
 	{
+		if (mType == MediaUtils.TYPE_SONG) {
+			QueryTask query = buildQuery(projection, true);
+			query.type = mType;
+			return query;
+		}
+
+		// Songs are returned group by group, in the order the groups are
+		// displayed, and within each group in the order used when a single
+		// row is played.
+		long[] groups = getGroupIds();
+		if (mType == MediaUtils.TYPE_GENRE || mType == MediaUtils.TYPE_PLAYLIST) {
+			// Membership can only be queried one group at a time.
+			QueryTask query = new QueryTask(null, projection, null, null, null);
+			QueryTask[] extra = new QueryTask[groups.length];
+			for (int i = 0; i != groups.length; ++i)
+				extra[i] = MediaUtils.buildQuery(mType, groups[i], projection, null);
+			query.extra = extra;
+			query.type = mType;
+			return query;
+		}
+
 		QueryTask query = buildQuery(projection, true);
 		query.type = mType;
-		if (mType != MediaUtils.TYPE_SONG) {
+		if (mLimiter == null || mLimiter.type != MediaUtils.TYPE_GENRE)
 			query.uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-			// Would be better to match the sort order in the adapter. This
-			// is likely to require significantly more work though.
-			query.sortOrder = mSongSort;
-		}
+		query.sortOrder = MediaUtils.DEFAULT_SORT;
+		query.groupColumn = mType == MediaUtils.TYPE_ARTIST ? MediaStore.Audio.Media.ARTIST_ID : MediaStore.Audio.Media.ALBUM_ID;
+		query.groupOrder = groups;
 		return query;
 	}
 
+	/**
+	 * Returns the ids of the rows currently displayed, in display order.
+	 */
+	private long[] getGroupIds()
+	{
+		Cursor cursor = mCursor;
+		if (cursor == null)
+			return new long[0];
+
+		long[] ids = new long[cursor.getCount()];
+		for (int i = 0; i != ids.length; ++i) {
+			if (!cursor.moveToPosition(i))
+				break;
+			ids[i] = cursor.getLong(0);
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the ORDER BY expression for the current sort mode.
+	 *
+	 * @param values An array of ORDER BY expressions, indexed by sort mode,
+	 * such as mSortValues.
+	 */
+	private String getSortOrder(String[] values)
+	{
+		int mode = mSortMode;
+		String sortDir;
+		if (mode < 0) {
+			mode = ~mode;
+			sortDir = "DESC";
+		} else {
+			sortDir = "ASC";
+		}
+		return String.format(values[mode], sortDir);
+	}
+
 	@Override
 	public void clear()
 	{
@@ -504,6 +580,13 @@ public class MediaAdapter
 			holder.text.setText(title);
 			holder.title = title;
 		}
+		holder.text.setSelected(mActivity.isSelected(mType, holder.id));
+
+		if (mThumbnails != null) {
+			long albumId = cursor.getLong(mAlbumIdColumn);
+			long songId = mType == MediaUtils.TYPE_SONG ? holder.id : -1;
+			mThumbnails.bind(holder.text, albumId, songId);
+		}
 
 		return view;
 	}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.provider.MediaStore;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An in-memory index of the paths of all the songs in the MediaStore,
+ * sorted so that the songs under a folder form a contiguous range that can
+ * be found by binary search.
+ *
+ * This replaces "_data GLOB 'path*'" selections, which force MediaStore to
+ * scan the whole audio table each time a folder is played or enqueued.
+ *
+ * The index is built on first use and dropped by {@link #onMediaChange()}.
+ */
+public final class MediaPathIndex {
+	/**
+	 * Columns queried to build the index.
+	 */
+	private static final String[] PROJECTION = { MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATA, MediaStore.Audio.Media.DURATION };
+	/**
+	 * The largest number of ids written into the selection built by
+	 * {@link #appendSelection(StringBuilder, String[])}.
+	 */
+	private static final int MAX_INLINE_IDS = 1000;
+
+	/**
+	 * The current index, or null if it must be rebuilt.
+	 */
+	private static MediaPathIndex sInstance;
+	/**
+	 * Incremented each time the index is invalidated, so an index built from
+	 * outdated data is not kept. Access must be synchronized on the class.
+	 */
+	private static int sGeneration;
+
+	/**
+	 * The song paths, sorted.
+	 */
+	private final String[] mPaths;
+	/**
+	 * The song ids, in the same order as mPaths.
+	 */
+	private final long[] mIds;
+	/**
+	 * mDurations[i] is the total duration, in milliseconds, of the songs
+	 * before index i. Has one more element than mPaths.
+	 */
+	private final long[] mDurations;
+	/**
+	 * Maps lower case paths to indices in mPaths. Created on first use by
+	 * {@link #getIdIgnoreCase(String)}.
+	 */
+	private HashMap<String, Integer> mLowerPaths;
+
+	private MediaPathIndex(String[] paths, long[] ids, long[] durations)
+	{
+		mPaths = paths;
+		mIds = ids;
+		mDurations = durations;
+	}
+
+	/**
+	 * Returns the index, building it if necessary. Should be called on a
+	 * background thread, since building the index queries every song.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @return The index, or null if the MediaStore could not be queried.
+	 */
+	public static MediaPathIndex get(ContentResolver resolver)
+	{
+		int generation;
+		synchronized (MediaPathIndex.class) {
+			if (sInstance != null)
+				return sInstance;
+			generation = sGeneration;
+		}
+
+		MediaPathIndex index = build(resolver);
+		if (index == null)
+			return null;
+
+		synchronized (MediaPathIndex.class) {
+			if (generation == sGeneration && sInstance == null)
+				sInstance = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Drop the index. Call when the MediaStore changes.
+	 */
+	public static synchronized void onMediaChange()
+	{
+		sInstance = null;
+		++sGeneration;
+	}
+
+	/**
+	 * Query the MediaStore and build a new index.
+	 */
+	private static MediaPathIndex build(ContentResolver resolver)
+	{
+		Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION, "is_music!=0", null, null);
+		if (cursor == null)
+			return null;
+
+		int count = cursor.getCount();
+		final String[] paths = new String[count];
+		long[] ids = new long[count];
+		long[] durations = new long[count];
+		int n = 0;
+		while (n != count && cursor.moveToNext()) {
+			String path = cursor.getString(1);
+			if (path == null)
+				continue;
+			paths[n] = path;
+			ids[n] = cursor.getLong(0);
+			durations[n] = cursor.getLong(2);
+			++n;
+		}
+		cursor.close();
+
+		Integer[] order = new Integer[n];
+		for (int i = n; --i != -1; )
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return paths[a].compareTo(paths[b]);
+			}
+		});
+
+		String[] sortedPaths = new String[n];
+		long[] sortedIds = new long[n];
+		long[] sums = new long[n + 1];
+		for (int i = 0; i != n; ++i) {
+			int j = order[i];
+			sortedPaths[i] = paths[j];
+			sortedIds[i] = ids[j];
+			sums[i + 1] = sums[i] + durations[j];
+		}
+
+		return new MediaPathIndex(sortedPaths, sortedIds, sums);
+	}
+
+	/**
+	 * Returns the index of the first path that is not less than key.
+	 */
+	private int lowerBound(String key)
+	{
+		String[] paths = mPaths;
+		int lo = 0;
+		int hi = paths.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (paths[mid].compareTo(key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Find the songs in the given file or folder.
+	 *
+	 * @param path The path of a file or folder. A trailing separator is
+	 * optional.
+	 * @return The ranges, as { fileStart, fileEnd, folderStart, folderEnd }.
+	 * The first range holds the song at exactly path, if any; the second the
+	 * songs under path as a folder.
+	 */
+	private int[] findRanges(String path)
+	{
+		if (path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		String prefix = path + '/';
+
+		int fileStart = lowerBound(path);
+		int fileEnd = fileStart;
+		if (fileEnd != mPaths.length && mPaths[fileEnd].equals(path))
+			++fileEnd;
+		// '0' is the character after '/', so this bounds all the paths that
+		// start with prefix.
+		int folderStart = lowerBound(prefix);
+		int folderEnd = lowerBound(path + '0');
+		return new int[] { fileStart, fileEnd, folderStart, folderEnd };
+	}
+
+	/**
+	 * Returns the ids of the songs in the given file or folder (including
+	 * subfolders), in path order.
+	 *
+	 * @param path The path of a file or folder.
+	 */
+	public long[] getIds(String path)
+	{
+		int[] r = findRanges(path);
+		int fileCount = r[1] - r[0];
+		int folderCount = r[3] - r[2];
+		long[] ids = new long[fileCount + folderCount];
+		System.arraycopy(mIds, r[0], ids, 0, fileCount);
+		System.arraycopy(mIds, r[2], ids, fileCount, folderCount);
+		return ids;
+	}
+
+	/**
+	 * Returns the number of songs in the given file or folder (including
+	 * subfolders).
+	 *
+	 * @param path The path of a file or folder.
+	 */
+	public int getCount(String path)
+	{
+		int[] r = findRanges(path);
+		return r[1] - r[0] + r[3] - r[2];
+	}
+
+	/**
+	 * Returns the id of the song with exactly the given path.
+	 *
+	 * @param path The path of a file.
+	 * @return The id, or -1 if there is no song with that path.
+	 */
+	public long getId(String path)
+	{
+		int i = lowerBound(path);
+		if (i != mPaths.length && mPaths[i].equals(path))
+			return mIds[i];
+		return -1;
+	}
+
+	/**
+	 * Returns the id of the song with the given path, ignoring case. Useful
+	 * for playlists written on case-insensitive filesystems.
+	 *
+	 * @param path The path of a file.
+	 * @return The id, or -1 if there is no song with that path.
+	 */
+	public long getIdIgnoreCase(String path)
+	{
+		long id = getId(path);
+		if (id != -1)
+			return id;
+
+		HashMap<String, Integer> lowerPaths;
+		synchronized (this) {
+			lowerPaths = mLowerPaths;
+			if (lowerPaths == null) {
+				String[] paths = mPaths;
+				lowerPaths = new HashMap<String, Integer>(paths.length * 2);
+				for (int i = paths.length; --i != -1; )
+					lowerPaths.put(paths[i].toLowerCase(), i);
+				mLowerPaths = lowerPaths;
+			}
+		}
+
+		Integer i = lowerPaths.get(path.toLowerCase());
+		return i == null ? -1 : mIds[i];
+	}
+
+	/**
+	 * Returns the total duration, in milliseconds, of the songs in the given
+	 * file or folder (including subfolders).
+	 *
+	 * @param path The path of a file or folder.
+	 */
+	public long getDuration(String path)
+	{
+		int[] r = findRanges(path);
+		long[] sums = mDurations;
+		return sums[r[1]] - sums[r[0]] + sums[r[3]] - sums[r[2]];
+	}
+
+	/**
+	 * Append a selection matching the songs in the given files and folders
+	 * to the given builder. This is "_id IN (...)" when there are at most
+	 * {@link #MAX_INLINE_IDS} songs. For more, listing every id would make a
+	 * statement large enough to approach SQLite's limits, so the paths are
+	 * matched by range instead.
+	 *
+	 * @param selection The builder to append to.
+	 * @param paths The paths of the files or folders.
+	 */
+	public void appendSelection(StringBuilder selection, String[] paths)
+	{
+		int count = 0;
+		for (String path : paths)
+			count += getCount(path);
+
+		if (count > MAX_INLINE_IDS) {
+			selection.append("is_music!=0 AND (");
+			for (int i = 0; i != paths.length; ++i) {
+				if (i != 0)
+					selection.append(" OR ");
+				appendRangeSelection(selection, paths[i]);
+			}
+			selection.append(')');
+			return;
+		}
+
+		selection.append("_id IN (");
+		boolean first = true;
+		for (String path : paths) {
+			for (long id : getIds(path)) {
+				if (!first)
+					selection.append(',');
+				selection.append(id);
+				first = false;
+			}
+		}
+		selection.append(')');
+	}
+
+	/**
+	 * Append a selection matching the same songs as {@link #findRanges(String)}
+	 * to the given builder: the file at exactly path and everything under
+	 * path as a folder.
+	 *
+	 * @param selection The builder to append to.
+	 * @param path The path of a file or folder.
+	 */
+	private static void appendRangeSelection(StringBuilder selection, String path)
+	{
+		if (path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		selection.append("(_data=");
+		DatabaseUtils.appendEscapedSQLString(selection, path);
+		selection.append(" OR (_data>=");
+		DatabaseUtils.appendEscapedSQLString(selection, path + '/');
+		selection.append(" AND _data<");
+		// '0' is the character after '/'
+		DatabaseUtils.appendEscapedSQLString(selection, path + '0');
+		selection.append("))");
+	}
+}
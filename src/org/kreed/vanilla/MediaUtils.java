@@ -160,13 +160,17 @@ public class MediaUtils {
 	 * Builds a query that will return all the songs in the playlist with the
 	 * given id.
 	 *
-	 * @param id The id of the playlist in MediaStore.Audio.Playlists.
+	 * @param id The id of the playlist in MediaStore.Audio.Playlists, or the
+	 * (negative) id of a smart playlist.
 	 * @param projection The columns to query.
 	 * @param selection The selection to pass to the query, or null.
 	 * @return The initialized query.
 	 */
 	public static QueryTask buildPlaylistQuery(long id, String[] projection, String selection)
 	{
+		if (id < 0)
+			return buildSmartPlaylistQuery(id, projection, selection);
+
 		Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", id);
 		String sort = MediaStore.Audio.Playlists.Members.PLAY_ORDER;
 		QueryTask result = new QueryTask(uri, projection, selection, null, sort);
@@ -174,6 +178,33 @@ public class MediaUtils {
 		return result;
 	}
 
+	/**
+	 * Builds a query that will return all the songs in the smart playlist with
+	 * the given id. The songs are queried from the media table, with
+	 * playlist member columns mapped to the matching media columns.
+	 *
+	 * @param id The id of the smart playlist.
+	 * @param projection The columns to query, as for a MediaStore playlist.
+	 * @param selection The selection to pass to the query, or null.
+	 * @return The initialized query.
+	 */
+	private static QueryTask buildSmartPlaylistQuery(long id, String[] projection, String selection)
+	{
+		String[] columns = new String[projection.length];
+		for (int i = projection.length; --i != -1; ) {
+			if (MediaStore.Audio.Playlists.Members.AUDIO_ID.equals(projection[i]))
+				columns[i] = MediaStore.Audio.Media._ID;
+			else
+				columns[i] = projection[i];
+		}
+
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		QueryTask result = new QueryTask(media, columns, selection, null, DEFAULT_SORT);
+		result.type = TYPE_PLAYLIST;
+		result.smartPlaylist = id;
+		return result;
+	}
+
 	/**
 	 * Builds a query that will return all the songs in the genre with the
 	 * given id.
@@ -438,6 +469,8 @@ public class MediaUtils {
 	{
 		sSongCount = -1;
 		sAllSongs = null;
+		MediaPathIndex.onMediaChange();
+		SmartPlaylistIndex.onMediaChange();
 	}
 
 	/**
@@ -533,25 +566,37 @@ public class MediaUtils {
 
 	/**
 	 * Build a query that will contain all the media under the given path.
+	 * The path is resolved to song ids through {@link MediaPathIndex} when
+	 * the query is run.
 	 *
 	 * @param path The path, e.g. /mnt/sdcard/music/
 	 * @param projection The columns to query
 	 * @return The initialized query.
 	 */
 	public static QueryTask buildFileQuery(String path, String[] projection)
+	{
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		QueryTask result = new QueryTask(media, projection, null, null, DEFAULT_SORT);
+		result.paths = new String[] { path };
+		result.type = TYPE_FILE;
+		return result;
+	}
+
+	/**
+	 * Append a selection matching all the songs in the given file or folder
+	 * to the given builder.
+	 *
+	 * @param selection The builder to append to.
+	 * @param path The path to the file or folder.
+	 */
+	public static void appendFileSelection(StringBuilder selection, String path)
 	{
 		// It would be better to use selectionArgs to pass path here, but there
 		// doesn't appear to be any way to pass the * when using it.
-		StringBuilder selection = new StringBuilder();
 		selection.append("_data GLOB ");
 		DatabaseUtils.appendEscapedSQLString(selection, path);
 		 // delete the quotation mark added by the escape method
 		selection.deleteCharAt(selection.length() - 1);
-		selection.append("*' AND is_music!=0");
-
-		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-		QueryTask result = new QueryTask(media, projection, selection.toString(), null, DEFAULT_SORT);
-		result.type = TYPE_FILE;
-		return result;
+		selection.append("*'");
 	}
 }
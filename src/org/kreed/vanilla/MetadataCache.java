@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A cache of the extended metadata shown by FullPlaybackActivity (genre,
+ * track, year, composer and format), which MediaStore does not provide and
+ * which otherwise requires opening and parsing the file with
+ * MediaMetadataRetriever.
+ *
+ * Entries are kept in a small in-memory LRU cache and in a file in the
+ * application cache directory, keyed by path and validated by the file
+ * modification time. The file is a log of length-prefixed records; an
+ * in-memory map from path to record offset is built on first use, so each
+ * lookup reads a single record. Replaced records are dropped by rewriting
+ * the file once they outnumber the live ones.
+ */
+public final class MetadataCache {
+	/**
+	 * The extended metadata of a file.
+	 */
+	public static final class Entry {
+		/**
+		 * The modification time of the file the metadata was read from.
+		 */
+		public final long modified;
+		public final String genre;
+		public final String track;
+		public final String year;
+		public final String composer;
+		/**
+		 * The codec and bitrate, e.g. "MP3 192kbps".
+		 */
+		public final String format;
+
+		public Entry(long modified, String genre, String track, String year, String composer, String format)
+		{
+			this.modified = modified;
+			this.genre = genre;
+			this.track = track;
+			this.year = year;
+			this.composer = composer;
+			this.format = format;
+		}
+	}
+
+	/**
+	 * Identifies the file format. Change this when the format changes.
+	 */
+	private static final int MAGIC = 0x564d4331;
+	/**
+	 * The number of entries kept in memory.
+	 */
+	private static final int MEMORY_SIZE = 64;
+	/**
+	 * The maximum number of live records in the file. When exceeded, the
+	 * file is cleared.
+	 */
+	private static final int MAX_RECORDS = 8192;
+	/**
+	 * The minimum number of replaced records before the file is compacted.
+	 */
+	private static final int MIN_STALE_RECORDS = 64;
+
+	/**
+	 * The maximum length of a record. Longer lengths mean the file is
+	 * corrupt.
+	 */
+	private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+	/**
+	 * The cache, or null if it has not been created yet.
+	 */
+	private static MetadataCache sInstance;
+
+	/**
+	 * The entries most recently used.
+	 */
+	private final StripedLruCache<String, Entry> mMemory = new StripedLruCache<String, Entry>(MEMORY_SIZE, 2);
+	/**
+	 * The file the records are stored in.
+	 */
+	private final File mFile;
+	/**
+	 * Maps paths to the offsets of their records in mFile, or null if the
+	 * file has not been indexed yet. Access must be synchronized on this
+	 * cache.
+	 */
+	private HashMap<String, Long> mOffsets;
+	/**
+	 * The length of mFile.
+	 */
+	private long mLength;
+	/**
+	 * The number of records in mFile that have been replaced by later ones.
+	 */
+	private int mStaleRecords;
+
+	/**
+	 * Reads the metadata of entries missing from the memory cache.
+	 */
+	private final StripedLruCache.Creator<String, Entry> mCreator = new StripedLruCache.Creator<String, Entry>() {
+		@Override
+		public Entry create(String path, Entry stale)
+		{
+			long modified = new File(path).lastModified();
+			if (modified == 0)
+				return null;
+			Entry entry = read(path, modified);
+			if (entry == null) {
+				entry = retrieve(path, modified);
+				if (entry != null)
+					write(path, entry);
+			}
+			return entry;
+		}
+	};
+
+	private MetadataCache(Context context)
+	{
+		mFile = new File(context.getCacheDir(), "extra_metadata");
+	}
+
+	/**
+	 * Returns the cache, creating it if necessary.
+	 *
+	 * @param context A context to use.
+	 */
+	public static synchronized MetadataCache get(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new MetadataCache(context.getApplicationContext());
+		return sInstance;
+	}
+
+	/**
+	 * Returns the metadata for the file at the given path if it is in the
+	 * memory cache, or null otherwise. Does no I/O, so may be called on the
+	 * UI thread. The entry is not checked against the file's modification
+	 * time; use {@link #get(String)} to validate it.
+	 */
+	public Entry peek(String path)
+	{
+		return mMemory.peek(path);
+	}
+
+	/**
+	 * Returns the metadata for the file at the given path, reading it from
+	 * the file cache or from the file itself if necessary. Should be called
+	 * on a background thread.
+	 *
+	 * @param path The path of the file.
+	 * @return The metadata, or null if it could not be read.
+	 */
+	public Entry get(String path)
+	{
+		// Let getOrCreate() do the counting, so each lookup counts once.
+		Entry entry = mMemory.peek(path);
+		if (entry != null && entry.modified == new File(path).lastModified())
+			entry = null;
+		return mMemory.getOrCreate(path, entry, mCreator);
+	}
+
+	/**
+	 * Read the metadata from the file itself.
+	 *
+	 * @param path The path of the file.
+	 * @param modified The modification time of the file.
+	 * @return The metadata, or null if it could not be read.
+	 */
+	private static Entry retrieve(String path, long modified)
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1)
+			return null;
+
+		CompatMetadata data;
+		try {
+			data = new CompatMetadata(path);
+		} catch (RuntimeException e) {
+			Log.w("VanillaMusic", "Failed to read metadata of " + path, e);
+			return null;
+		}
+
+		String genre = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
+		String track = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
+		String composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER);
+		if (composer == null)
+			composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_WRITER);
+
+		String year = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR);
+		if (year == null || "0".equals(year)) {
+			year = null;
+		} else {
+			int dash = year.indexOf('-');
+			if (dash != -1)
+				year = year.substring(0, dash);
+		}
+
+		StringBuilder sb = new StringBuilder(12);
+		sb.append(decodeMimeType(data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE)));
+		String bitrate = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
+		if (bitrate != null && bitrate.length() > 3) {
+			sb.append(' ');
+			sb.append(bitrate.substring(0, bitrate.length() - 3));
+			sb.append("kbps");
+		}
+
+		data.release();
+
+		return new Entry(modified, genre, track, year, composer, sb.toString());
+	}
+
+	/**
+	 * Decode the given mime type into a more human-friendly description.
+	 */
+	private static String decodeMimeType(String mime)
+	{
+		if ("audio/mpeg".equals(mime)) {
+			return "MP3";
+		} else if ("audio/mp4".equals(mime)) {
+			return "AAC";
+		} else if ("audio/vorbis".equals(mime)) {
+			return "Ogg Vorbis";
+		} else if ("audio/flac".equals(mime)) {
+			return "FLAC";
+		}
+		return mime;
+	}
+
+	/**
+	 * Build the offset map from the records in mFile. Clears the file if it
+	 * is not valid.
+	 */
+	private void loadIndex()
+	{
+		HashMap<String, Long> offsets = new HashMap<String, Long>();
+		int stale = 0;
+		long offset = 4;
+
+		if (mFile.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+				if (in.readInt() != MAGIC)
+					throw new IOException("Invalid metadata cache");
+				try {
+					while (true) {
+						byte[] record = readRecord(in);
+						String path = new DataInputStream(new ByteArrayInputStream(record)).readUTF();
+						if (offsets.put(path, offset) != null)
+							++stale;
+						offset += 4 + record.length;
+					}
+				} catch (EOFException e) {
+					// End of file, or a record cut short by a crash; the
+					// next record will be written over it.
+				}
+			} catch (IOException e) {
+				Log.w("VanillaMusic", "Clearing metadata cache", e);
+				mFile.delete();
+				offsets.clear();
+				stale = 0;
+				offset = 4;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+
+		if (offsets.isEmpty())
+			offset = 0;
+		mOffsets = offsets;
+		mStaleRecords = stale;
+		mLength = offset;
+	}
+
+	/**
+	 * Read the record for the given path from mFile.
+	 *
+	 * @param path The path of the file.
+	 * @param modified The current modification time of the file.
+	 * @return The metadata, or null if there is no record for the path or
+	 * the file has changed since it was written.
+	 */
+	private synchronized Entry read(String path, long modified)
+	{
+		if (mOffsets == null)
+			loadIndex();
+		Long offset = mOffsets.get(path);
+		if (offset == null)
+			return null;
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mFile, "r");
+			file.seek(offset);
+			byte[] record = readRecord(file);
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			if (!path.equals(in.readUTF()) || in.readLong() != modified)
+				return null;
+			return new Entry(modified, readString(in), readString(in), readString(in), readString(in), readString(in));
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to read metadata cache", e);
+			return null;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append a record for the given path to mFile, compacting or clearing
+	 * the file first if needed.
+	 */
+	private synchronized void write(String path, Entry entry)
+	{
+		if (mOffsets == null)
+			loadIndex();
+
+		if (mOffsets.size() >= MAX_RECORDS) {
+			mFile.delete();
+			mOffsets.clear();
+			mStaleRecords = 0;
+			mLength = 0;
+		} else if (mStaleRecords >= MIN_STALE_RECORDS && mStaleRecords > mOffsets.size()) {
+			compact();
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeUTF(path);
+			out.writeLong(entry.modified);
+			writeString(out, entry.genre);
+			writeString(out, entry.track);
+			writeString(out, entry.year);
+			writeString(out, entry.composer);
+			writeString(out, entry.format);
+			byte[] record = bytes.toByteArray();
+			int length = record.length - 4;
+			record[0] = (byte)(length >>> 24);
+			record[1] = (byte)(length >>> 16);
+			record[2] = (byte)(length >>> 8);
+			record[3] = (byte)length;
+
+			append(record);
+			if (mOffsets.put(path, mLength - record.length) != null)
+				++mStaleRecords;
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to write metadata cache", e);
+			// The file may be partially written; start over.
+			mFile.delete();
+			mOffsets.clear();
+			mStaleRecords = 0;
+			mLength = 0;
+		}
+	}
+
+	/**
+	 * Append the given bytes to mFile, writing the header first if the file
+	 * is empty.
+	 */
+	private void append(byte[] record) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			if (mLength == 0) {
+				file.setLength(0);
+				file.writeInt(MAGIC);
+				mLength = 4;
+			}
+			file.seek(mLength);
+			file.write(record);
+			mLength += record.length;
+			// Drop the rest of a partially written record, if any.
+			if (file.length() > mLength)
+				file.setLength(mLength);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Rewrite mFile with only the live records.
+	 */
+	private void compact()
+	{
+		File temp = new File(mFile.getPath() + ".tmp");
+		HashMap<String, Long> offsets = new HashMap<String, Long>(mOffsets.size() * 2);
+		RandomAccessFile in = null;
+		DataOutputStream out = null;
+		try {
+			in = new RandomAccessFile(mFile, "r");
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			long offset = 4;
+			for (Map.Entry<String, Long> live : mOffsets.entrySet()) {
+				in.seek(live.getValue());
+				byte[] record = readRecord(in);
+				out.writeInt(record.length);
+				out.write(record);
+				offsets.put(live.getKey(), offset);
+				offset += 4 + record.length;
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(mFile))
+				throw new IOException("Failed to rename " + temp);
+			mOffsets = offsets;
+			mStaleRecords = 0;
+			mLength = offset;
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to compact metadata cache", e);
+			temp.delete();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a length-prefixed record.
+	 */
+	private static byte[] readRecord(DataInput in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0 || length > MAX_RECORD_LENGTH)
+			throw new IOException("Invalid record length " + length);
+		byte[] record = new byte[length];
+		in.readFully(record);
+		return record;
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Remembers the ids of albums that are known to have no cover art, so their
+ * art is not probed for again. The ids are kept in a sorted array and saved
+ * to a file in the cache directory, so they survive restarts.
+ *
+ * When the MediaStore changes, only the albums of songs that were added or
+ * modified since the last check are forgotten, since only those can have
+ * gained art through their songs. Art can also be added without touching
+ * any song (a cover.jpg in the album folder), so each entry also expires
+ * after a day, after which the album is probed again. Changes are saved in
+ * batches rather than after every addition.
+ */
+public final class NoCoverCache {
+	/**
+	 * Identifies the file format. Change this when the format changes.
+	 */
+	private static final int MAGIC = 0x564e4333;
+	/**
+	 * How long an album is remembered as having no art, in milliseconds.
+	 */
+	private static final long EXPIRY = 24 * 60 * 60 * 1000;
+	/**
+	 * The minimum time between saves caused by additions, in milliseconds.
+	 */
+	private static final long SAVE_INTERVAL = 30000;
+
+	/**
+	 * Projection used to find the newest song and modification date.
+	 */
+	private static final String[] STAMP_PROJECTION = { "max(" + MediaStore.Audio.Media.DATE_MODIFIED + ")", "max(" + MediaStore.Audio.Media._ID + ")" };
+	/**
+	 * Projection used to find the songs changed since the last check.
+	 */
+	private static final String[] CHANGED_PROJECTION = { MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.DATE_MODIFIED, MediaStore.Audio.Media._ID };
+	/**
+	 * Selection used to find the songs changed since the last check.
+	 */
+	private static final String CHANGED_SELECTION = MediaStore.Audio.Media.DATE_MODIFIED + ">? OR " + MediaStore.Audio.Media._ID + ">?";
+
+	/**
+	 * The file the ids are saved to.
+	 */
+	private final File mFile;
+	/**
+	 * A ContentResolver to use.
+	 */
+	private final ContentResolver mResolver;
+	/**
+	 * Sorted album ids with no cover art, or null if not loaded yet.
+	 */
+	private long[] mIds;
+	/**
+	 * mTimes[i] is the time, from {@link System#currentTimeMillis()}, at
+	 * which mIds[i] was found to have no art.
+	 */
+	private long[] mTimes;
+	/**
+	 * The latest song modification date seen when the ids were last checked.
+	 */
+	private long mModified;
+	/**
+	 * The largest song id seen when the ids were last checked.
+	 */
+	private long mLastId;
+	/**
+	 * True if the MediaStore may have changed since the ids were last
+	 * checked.
+	 */
+	private boolean mStale;
+	/**
+	 * True if the ids have changed since they were last saved.
+	 */
+	private boolean mDirty;
+	/**
+	 * The time of the last save, from {@link SystemClock#uptimeMillis()}.
+	 */
+	private long mLastSave;
+
+	/**
+	 * Create the cache. The saved ids are loaded on first use.
+	 *
+	 * @param context A context to use.
+	 */
+	public NoCoverCache(Context context)
+	{
+		mFile = new File(context.getCacheDir(), "no_cover");
+		mResolver = context.getContentResolver();
+	}
+
+	/**
+	 * Load the saved ids and forget those changed since they were saved.
+	 * Must be called with the lock held.
+	 */
+	private void load()
+	{
+		mIds = new long[0];
+		mTimes = new long[0];
+		mModified = -1;
+		mLastId = -1;
+
+		if (mFile.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+				if (in.readInt() == MAGIC) {
+					long modified = in.readLong();
+					long lastId = in.readLong();
+					int count = in.readInt();
+					long[] ids = new long[count];
+					long[] times = new long[count];
+					for (int i = 0; i != count; ++i) {
+						ids[i] = in.readLong();
+						times[i] = in.readLong();
+					}
+					mIds = ids;
+					mTimes = times;
+					mModified = modified;
+					mLastId = lastId;
+				}
+			} catch (IOException e) {
+				Log.w("VanillaMusic", "Failed to load " + mFile, e);
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+
+		refresh();
+	}
+
+	/**
+	 * Forget the albums of songs added or modified since the ids were last
+	 * checked. Must be called with the lock held.
+	 */
+	private void refresh()
+	{
+		mStale = false;
+
+		if (mIds.length == 0 || mModified == -1) {
+			// Nothing to forget; just record where to check from next time.
+			Cursor cursor = null;
+			try {
+				cursor = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, STAMP_PROJECTION, null, null, null);
+				if (cursor != null && cursor.moveToFirst()) {
+					mModified = cursor.getLong(0);
+					mLastId = cursor.getLong(1);
+				}
+			} catch (RuntimeException e) {
+				Log.w("VanillaMusic", "Failed to query MediaStore state", e);
+			} finally {
+				if (cursor != null)
+					cursor.close();
+			}
+			if (mIds.length != 0) {
+				mIds = new long[0];
+				mTimes = new long[0];
+				mDirty = true;
+			}
+			return;
+		}
+
+		long[] ids = mIds;
+		boolean[] removed = new boolean[ids.length];
+		int removedCount = 0;
+		long modified = mModified;
+		long lastId = mLastId;
+
+		Cursor cursor = null;
+		try {
+			String[] args = { Long.toString(mModified), Long.toString(mLastId) };
+			cursor = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, CHANGED_PROJECTION, CHANGED_SELECTION, args, null);
+			if (cursor == null)
+				return;
+			while (cursor.moveToNext()) {
+				int index = Arrays.binarySearch(ids, cursor.getLong(0));
+				if (index >= 0 && !removed[index]) {
+					removed[index] = true;
+					++removedCount;
+				}
+				modified = Math.max(modified, cursor.getLong(1));
+				lastId = Math.max(lastId, cursor.getLong(2));
+			}
+		} catch (RuntimeException e) {
+			Log.w("VanillaMusic", "Failed to query changed songs", e);
+			// Could not tell what changed; forget everything.
+			mIds = new long[0];
+			mTimes = new long[0];
+			mModified = -1;
+			mDirty = true;
+			return;
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+
+		if (modified != mModified || lastId != mLastId) {
+			mModified = modified;
+			mLastId = lastId;
+			mDirty = true;
+		}
+
+		if (removedCount != 0) {
+			long[] times = mTimes;
+			long[] newIds = new long[ids.length - removedCount];
+			long[] newTimes = new long[newIds.length];
+			for (int i = 0, j = 0; i != ids.length; ++i) {
+				if (!removed[i]) {
+					newIds[j] = ids[i];
+					newTimes[j] = times[i];
+					++j;
+				}
+			}
+			mIds = newIds;
+			mTimes = newTimes;
+			mDirty = true;
+		}
+	}
+
+	/**
+	 * Save the ids to the file. Must be called with the lock held.
+	 */
+	private void save()
+	{
+		long[] ids = mIds;
+		long[] times = mTimes;
+		File temp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeLong(mModified);
+			out.writeLong(mLastId);
+			out.writeInt(ids.length);
+			for (int i = 0; i != ids.length; ++i) {
+				out.writeLong(ids[i]);
+				out.writeLong(times[i]);
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(mFile))
+				temp.delete();
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to save " + mFile, e);
+			temp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		mDirty = false;
+		mLastSave = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Load the ids if needed and forget albums that may have changed.
+	 * Must be called with the lock held.
+	 */
+	private void ensureFresh()
+	{
+		if (mIds == null)
+			load();
+		else if (mStale)
+			refresh();
+	}
+
+	/**
+	 * Returns true if the album with the given id is known to have no cover
+	 * art.
+	 */
+	public synchronized boolean contains(long albumId)
+	{
+		ensureFresh();
+		int index = Arrays.binarySearch(mIds, albumId);
+		if (index < 0)
+			return false;
+
+		long age = System.currentTimeMillis() - mTimes[index];
+		if (age >= 0 && age < EXPIRY)
+			return true;
+
+		// Expired; probe the album again.
+		long[] ids = mIds;
+		long[] times = mTimes;
+		long[] newIds = new long[ids.length - 1];
+		long[] newTimes = new long[newIds.length];
+		System.arraycopy(ids, 0, newIds, 0, index);
+		System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+		System.arraycopy(times, 0, newTimes, 0, index);
+		System.arraycopy(times, index + 1, newTimes, index, newTimes.length - index);
+		mIds = newIds;
+		mTimes = newTimes;
+		mDirty = true;
+		return false;
+	}
+
+	/**
+	 * Record that the album with the given id has no cover art. The change
+	 * is saved with the next batch, or when {@link #flush()} is called.
+	 */
+	public synchronized void add(long albumId)
+	{
+		ensureFresh();
+
+		long[] ids = mIds;
+		int index = Arrays.binarySearch(ids, albumId);
+		if (index >= 0)
+			return;
+
+		index = -index - 1;
+		long[] times = mTimes;
+		long[] newIds = new long[ids.length + 1];
+		long[] newTimes = new long[newIds.length];
+		System.arraycopy(ids, 0, newIds, 0, index);
+		newIds[index] = albumId;
+		System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+		System.arraycopy(times, 0, newTimes, 0, index);
+		newTimes[index] = System.currentTimeMillis();
+		System.arraycopy(times, index, newTimes, index + 1, times.length - index);
+		mIds = newIds;
+		mTimes = newTimes;
+		mDirty = true;
+
+		if (SystemClock.uptimeMillis() - mLastSave >= SAVE_INTERVAL)
+			save();
+	}
+
+	/**
+	 * Save any unsaved changes.
+	 */
+	public synchronized void flush()
+	{
+		if (mDirty)
+			save();
+	}
+
+	/**
+	 * Called when the MediaStore changes. The albums of added or modified
+	 * songs are forgotten on next use, since art may have been added to
+	 * them.
+	 */
+	public synchronized void onMediaChange()
+	{
+		mStale = true;
+	}
+}
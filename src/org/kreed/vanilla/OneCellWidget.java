@@ -30,6 +30,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.os.Bundle;
 import android.widget.RemoteViews;
 
 /**
@@ -51,9 +52,20 @@ public class OneCellWidget extends AppWidgetProvider {
 		sEnabled = false;
 	}
 
+	/**
+	 * Called on API 16+ when a widget is resized. Not annotated with
+	 * Override since older SDKs do not have this method.
+	 */
+	public void onAppWidgetOptionsChanged(Context context, AppWidgetManager manager, int id, Bundle options)
+	{
+		WidgetUpdater.onOptionsChanged(context);
+	}
+
 	@Override
 	public void onUpdate(Context context, AppWidgetManager manager, int[] ids)
 	{
+		// A new widget may have been placed; size its cover again.
+		WidgetUpdater.clearCovers();
 		Song song = null;
 		int state = 0;
 
@@ -114,7 +126,7 @@ public class OneCellWidget extends AppWidgetProvider {
 			views.setInt(R.id.title, "setText", R.string.app_name);
 		} else {
 			views.setTextViewText(R.id.title, song.title);
-			cover = song.getCover(context);
+			cover = WidgetUpdater.getCover(context, manager, song, OneCellWidget.class);
 		}
 
 		if (cover == null) {
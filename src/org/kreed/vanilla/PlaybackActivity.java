@@ -51,7 +51,8 @@ import android.widget.Toast;
 public abstract class PlaybackActivity extends Activity
 	implements Handler.Callback,
 	           View.OnClickListener,
-	           CoverView.Callback
+	           CoverView.Callback,
+	           ChangeBus.Listener
 {
 	private Action mUpAction;
 	private Action mDownAction;
@@ -78,6 +79,23 @@ public abstract class PlaybackActivity extends Activity
 	protected int mState;
 	private long mLastStateEvent;
 	private long mLastSongEvent;
+	/**
+	 * Guards mState and the pending change fields below.
+	 */
+	private final Object mPendingLock = new Object();
+	/**
+	 * The flags that have changed since onStateChange was last called, or 0
+	 * if no state change is waiting to be delivered.
+	 */
+	private int mPendingToggled;
+	/**
+	 * The latest song that is waiting to be passed to onSongChange.
+	 */
+	private Song mPendingSong;
+	/**
+	 * True if mPendingSong is waiting to be delivered.
+	 */
+	private boolean mSongPending;
 
 	@Override
 	public void onCreate(Bundle state)
@@ -220,21 +238,48 @@ public abstract class PlaybackActivity extends Activity
 		}
 	}
 
-	protected void setState(final int state)
+	/**
+	 * Update the state, calling onStateChange on the UI thread. If several
+	 * changes arrive before the UI thread handles them, they are merged into
+	 * one call with the latest state.
+	 */
+	protected void setState(int state)
 	{
 		mLastStateEvent = SystemClock.uptimeMillis();
 
-		if (mState != state) {
-			final int toggled = mState ^ state;
+		boolean send;
+		synchronized (mPendingLock) {
+			if (mState == state)
+				return;
+			send = mPendingToggled == 0;
+			mPendingToggled |= mState ^ state;
 			mState = state;
-			runOnUiThread(new Runnable() {
-				@Override
-				public void run()
-				{
-					onStateChange(state, toggled);
-				}
-			});
 		}
+
+		if (Looper.myLooper() == mUiHandler.getLooper()) {
+			deliverState();
+		} else if (send) {
+			mUiHandler.sendEmptyMessage(MSG_STATE_CHANGED);
+		} else {
+			PlaybackService.getChangeBus().recordCoalesced(ChangeBus.EVENT_STATE);
+		}
+	}
+
+	/**
+	 * Pass the pending state change, if any, to onStateChange. Must be
+	 * called on the UI thread.
+	 */
+	private void deliverState()
+	{
+		int state;
+		int toggled;
+		synchronized (mPendingLock) {
+			state = mState;
+			toggled = mPendingToggled;
+			mPendingToggled = 0;
+		}
+		if (toggled != 0)
+			onStateChange(state, toggled);
 	}
 
 	/**
@@ -268,16 +313,46 @@ public abstract class PlaybackActivity extends Activity
 			mCoverView.querySongs(PlaybackService.get(this));
 	}
 
-	protected void setSong(final Song song)
+	/**
+	 * Call onSongChange with the given song on the UI thread. If several
+	 * songs arrive before the UI thread handles them, only the latest is
+	 * passed.
+	 */
+	protected void setSong(Song song)
 	{
 		mLastSongEvent = SystemClock.uptimeMillis();
-		runOnUiThread(new Runnable() {
-			@Override
-			public void run()
-			{
-				onSongChange(song);
-			}
-		});
+
+		boolean send;
+		synchronized (mPendingLock) {
+			send = !mSongPending;
+			mPendingSong = song;
+			mSongPending = true;
+		}
+
+		if (Looper.myLooper() == mUiHandler.getLooper()) {
+			deliverSong();
+		} else if (send) {
+			mUiHandler.sendEmptyMessage(MSG_SONG_CHANGED);
+		} else {
+			PlaybackService.getChangeBus().recordCoalesced(ChangeBus.EVENT_SONG);
+		}
+	}
+
+	/**
+	 * Pass the pending song, if any, to onSongChange. Must be called on the
+	 * UI thread.
+	 */
+	private void deliverSong()
+	{
+		Song song;
+		synchronized (mPendingLock) {
+			if (!mSongPending)
+				return;
+			song = mPendingSong;
+			mPendingSong = null;
+			mSongPending = false;
+		}
+		onSongChange(song);
 	}
 
 	/**
@@ -343,10 +418,30 @@ public abstract class PlaybackActivity extends Activity
 		}
 	}
 
+	/**
+	 * Deliver a pending state change to onStateChange. Sent to mUiHandler.
+	 * Subclass message ids must not collide with this one.
+	 */
+	private static final int MSG_STATE_CHANGED = 30;
+	/**
+	 * Deliver a pending song change to onSongChange. Sent to mUiHandler.
+	 * Subclass message ids must not collide with this one.
+	 */
+	private static final int MSG_SONG_CHANGED = 31;
+
 	@Override
 	public boolean handleMessage(Message msg)
 	{
-		return false;
+		switch (msg.what) {
+		case MSG_STATE_CHANGED:
+			deliverState();
+			return true;
+		case MSG_SONG_CHANGED:
+			deliverSong();
+			return true;
+		default:
+			return false;
+		}
 	}
 
 	/**
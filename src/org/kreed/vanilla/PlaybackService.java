@@ -28,6 +28,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -64,7 +65,7 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Handles music playback and pretty much all the other work.
@@ -92,6 +93,16 @@ public final class PlaybackService extends Service
 	private static final int STATE_VERSION = 6;
 
 	private static final int NOTIFICATION_ID = 2;
+	/**
+	 * Minimum time between notification updates, in milliseconds.
+	 */
+	private static final long NOTIFICATION_INTERVAL = 250;
+	/**
+	 * Time to wait for further changes before sending external broadcasts
+	 * for a play/pause change, in milliseconds. Limited by the broadcast
+	 * dwell preference.
+	 */
+	private static final long BROADCAST_BATCH_INTERVAL = 300;
 
 	/**
 	 * Action for startService: toggle playback on/off.
@@ -249,7 +260,10 @@ public final class PlaybackService extends Service
 	 * The appplication-wide instance of the PlaybackService.
 	 */
 	public static PlaybackService sInstance;
-	private static final ArrayList<PlaybackActivity> sActivities = new ArrayList<PlaybackActivity>(5);
+	/**
+	 * Delivers change events to the registered PlaybackActivities.
+	 */
+	private static final ChangeBus sChangeBus = new ChangeBus();
 	/**
 	 * Cached app-wide SharedPreferences instance.
 	 */
@@ -262,6 +276,42 @@ public final class PlaybackService extends Service
 	 * music player.
 	 */
 	private boolean mStockBroadcast;
+	/**
+	 * The time a song must remain current before the stock and scrobble
+	 * broadcasts are sent for it, in milliseconds.
+	 */
+	private int mBroadcastDwell;
+	/**
+	 * The uptime at which the pending POST_BROADCAST message will be
+	 * delivered.
+	 */
+	private long mBroadcastDeadline;
+	/**
+	 * The uptime at which the pending POST_BROADCAST message was first
+	 * scheduled. The message is never postponed past this plus
+	 * mBroadcastDwell.
+	 */
+	private long mBroadcastStart;
+	/**
+	 * Incremented each time a song is started or restarted, so a song that
+	 * is played again (repeated, queued twice, or restarted) is broadcast
+	 * again.
+	 */
+	private int mSongInstance;
+	/**
+	 * The value of mSongInstance the external broadcasts were last sent
+	 * for, or -1 if they have not been sent (or must be sent again).
+	 */
+	private int mBroadcastInstance = -1;
+	/**
+	 * The value of mSongInstance the pending POST_BROADCAST message was
+	 * scheduled for.
+	 */
+	private int mScheduledInstance = -1;
+	/**
+	 * The playing state the external broadcasts were last sent with.
+	 */
+	private boolean mBroadcastPlaying;
 	private int mNotificationMode;
 	/**
 	 * If true, audio will not be played through the speaker.
@@ -289,8 +339,41 @@ public final class PlaybackService extends Service
 	 * Use white text instead of black default text in notification.
 	 */
 	private boolean mInvertNotification;
+	/**
+	 * The song the cached notifications were built for. Access must be
+	 * synchronized on mNotifications.
+	 */
+	private Song mNotificationSong;
+	/**
+	 * Cached notifications for mNotificationSong: index 0 when paused, 1
+	 * when playing. Null entries have not been built yet.
+	 */
+	private final Notification[] mNotifications = new Notification[2];
+	/**
+	 * The cover shown in the notifications for mNotificationSong.
+	 */
+	private Bitmap mNotificationCover;
+	/**
+	 * True if mNotificationCover has been loaded for mNotificationSong.
+	 */
+	private boolean mNotificationCoverLoaded;
+	/**
+	 * PendingIntents for the notification buttons, created once.
+	 */
+	private PendingIntent mNotificationPlayPause;
+	private PendingIntent mNotificationNext;
+	private PendingIntent mNotificationClose;
+	/**
+	 * The uptime at which the notification was last posted through
+	 * updateNotification().
+	 */
+	private long mLastNotificationPost;
 
 	private Looper mLooper;
+	/**
+	 * Coalesces and diffs widget updates.
+	 */
+	private WidgetUpdater mWidgetUpdater;
 	private Handler mHandler;
 	MediaPlayer mMediaPlayer;
 	private boolean mMediaPlayerInitialized;
@@ -411,6 +494,7 @@ public final class PlaybackService extends Service
 		Song.mDisableCoverArt = settings.getBoolean(PrefKeys.DISABLE_COVER_ART, false);
 		mHeadsetOnly = settings.getBoolean(PrefKeys.HEADSET_ONLY, false);
 		mStockBroadcast = settings.getBoolean(PrefKeys.STOCK_BROADCAST, false);
+		mBroadcastDwell = Integer.parseInt(settings.getString(PrefKeys.BROADCAST_DWELL, "1000"));
 		mHeadsetPlay = settings.getBoolean(PrefKeys.HEADSET_PLAY, false);
 		mInvertNotification = settings.getBoolean(PrefKeys.NOTIFICATION_INVERTED_COLOR, false);
 		mNotificationAction = createNotificationAction(settings);
@@ -446,6 +530,8 @@ public final class PlaybackService extends Service
 
 		mLooper = thread.getLooper();
 		mHandler = new Handler(mLooper, this);
+		mWidgetUpdater = new WidgetUpdater(this, mLooper);
+		CoverInvalidator.get(this).addListener(mCoverListener);
 
 		initWidgets();
 
@@ -536,6 +622,12 @@ public final class PlaybackService extends Service
 	{
 		sInstance = null;
 
+		CoverInvalidator.get(this).removeListener(mCoverListener);
+
+		// Make sure receivers see the final state.
+		if (mHandler.hasMessages(POST_BROADCAST))
+			postExternalBroadcast();
+
 		mLooper.quit();
 
 		// clear the notification
@@ -564,6 +656,20 @@ public final class PlaybackService extends Service
 		super.onDestroy();
 	}
 
+	@Override
+	public void onLowMemory()
+	{
+		Song.trimCoverCache(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		super.onLowMemory();
+	}
+
+	@Override
+	public void onTrimMemory(int level)
+	{
+		Song.trimCoverCache(level);
+		super.onTrimMemory(level);
+	}
+
 	/**
 	 * Return the SharedPreferences instance containing the PlaybackService
 	 * settings, creating it if necessary.
@@ -622,9 +728,11 @@ public final class PlaybackService extends Service
 			mHeadsetPause = settings.getBoolean(PrefKeys.HEADSET_PAUSE, true);
 		} else if (PrefKeys.NOTIFICATION_ACTION.equals(key)) {
 			mNotificationAction = createNotificationAction(settings);
+			invalidateNotification();
 			updateNotification();
 		} else if (PrefKeys.NOTIFICATION_INVERTED_COLOR.equals(key)) {
 			mInvertNotification = settings.getBoolean(PrefKeys.NOTIFICATION_INVERTED_COLOR, false);
+			invalidateNotification();
 			updateNotification();
 		} else if (PrefKeys.NOTIFICATION_MODE.equals(key)){
 			mNotificationMode = Integer.parseInt(settings.getString(PrefKeys.NOTIFICATION_MODE, "1"));
@@ -635,6 +743,7 @@ public final class PlaybackService extends Service
 			updateNotification();
 		} else if (PrefKeys.SCROBBLE.equals(key)) {
 			mScrobble = settings.getBoolean(PrefKeys.SCROBBLE, false);
+			mBroadcastInstance = -1;
 		} else if (PrefKeys.VOLUME.equals(key)) {
 			mUserVolume = (float)Math.pow(settings.getInt(key, 100) / 100.0, 3);
 			updateVolume();
@@ -645,6 +754,10 @@ public final class PlaybackService extends Service
 			userActionTriggered();
 		} else if (PrefKeys.DISABLE_COVER_ART.equals(key)) {
 			Song.mDisableCoverArt = settings.getBoolean(PrefKeys.DISABLE_COVER_ART, false);
+			invalidateNotification();
+			invalidateWidgets();
+		} else if (PrefKeys.DOUBLE_TAP.equals(key)) {
+			invalidateWidgets();
 		} else if (PrefKeys.NOTIFICATION_INVERTED_COLOR.equals(key)) {
 			updateNotification();
 		} else if (PrefKeys.HEADSET_ONLY.equals(key)) {
@@ -653,6 +766,9 @@ public final class PlaybackService extends Service
 				unsetFlag(FLAG_PLAYING);
 		} else if (PrefKeys.STOCK_BROADCAST.equals(key)) {
 			mStockBroadcast = settings.getBoolean(key, false);
+			mBroadcastInstance = -1;
+		} else if (PrefKeys.BROADCAST_DWELL.equals(key)) {
+			mBroadcastDwell = Integer.parseInt(settings.getString(key, "1000"));
 		} else if (PrefKeys.HEADSET_PLAY.equals(key)) {
 			mHeadsetPlay = settings.getBoolean(key, false);
 		} else if (PrefKeys.ENABLE_SHAKE.equals(key) || PrefKeys.SHAKE_ACTION.equals(key)) {
@@ -791,17 +907,10 @@ public final class PlaybackService extends Service
 
 	private void broadcastChange(int state, Song song, long uptime)
 	{
-		if (state != -1) {
-			ArrayList<PlaybackActivity> list = sActivities;
-			for (int i = list.size(); --i != -1; )
-				list.get(i).setState(uptime, state);
-		}
-
-		if (song != null) {
-			ArrayList<PlaybackActivity> list = sActivities;
-			for (int i = list.size(); --i != -1; )
-				list.get(i).setSong(uptime, song);
-		}
+		if (state != -1)
+			sChangeBus.postState(uptime, state);
+		if (song != null)
+			sChangeBus.postSong(uptime, song);
 
 		updateWidgets();
 
@@ -809,6 +918,61 @@ public final class PlaybackService extends Service
 			CompatIcs.updateRemote(this, mCurrentSong, mState);
 		}
 
+		if (mStockBroadcast || mScrobble)
+			scheduleExternalBroadcast();
+	}
+
+	/**
+	 * Schedule the stock and scrobble broadcasts for the current song and
+	 * state. A new song must stay current for mBroadcastDwell milliseconds
+	 * before it is broadcast, so skipping through songs quickly only sends
+	 * broadcasts for the song that is settled on. Play/pause changes are
+	 * batched for a shorter time.
+	 */
+	private void scheduleExternalBroadcast()
+	{
+		int instance = mSongInstance;
+		boolean songChanged = mCurrentSong == null || instance != mBroadcastInstance;
+		long delay = songChanged ? mBroadcastDwell : Math.min(mBroadcastDwell, BROADCAST_BATCH_INTERVAL);
+		if (delay == 0) {
+			mHandler.removeMessages(POST_BROADCAST);
+			postExternalBroadcast();
+			return;
+		}
+
+		long now = SystemClock.uptimeMillis();
+		boolean pending = mHandler.hasMessages(POST_BROADCAST);
+		if (!pending || instance != mScheduledInstance) {
+			mBroadcastStart = now;
+			mScheduledInstance = instance;
+		}
+
+		// Only ever postpone the pending broadcast, so that a play/pause
+		// change does not cut short the dwell time of a new song, but never
+		// by more than the dwell time in total, so repeated play/pause
+		// changes can not hold it back indefinitely.
+		long when = Math.min(now + delay, mBroadcastStart + mBroadcastDwell);
+		if (!pending || when > mBroadcastDeadline) {
+			mHandler.removeMessages(POST_BROADCAST);
+			mHandler.sendEmptyMessageAtTime(POST_BROADCAST, when);
+			mBroadcastDeadline = when;
+		}
+	}
+
+	/**
+	 * Send the stock and scrobble broadcasts for the current song and state,
+	 * unless they have already been sent for this playback of the song and
+	 * this state.
+	 */
+	private void postExternalBroadcast()
+	{
+		int instance = mCurrentSong == null ? -1 : mSongInstance;
+		boolean playing = (mState & FLAG_PLAYING) != 0;
+		if (instance != -1 && instance == mBroadcastInstance && playing == mBroadcastPlaying)
+			return;
+		mBroadcastInstance = instance;
+		mBroadcastPlaying = playing;
+
 		if (mStockBroadcast)
 			stockMusicBroadcast();
 		if (mScrobble)
@@ -834,15 +998,16 @@ public final class PlaybackService extends Service
 	 */
 	private void updateWidgets()
 	{
-		AppWidgetManager manager = AppWidgetManager.getInstance(this);
-		Song song = mCurrentSong;
-		int state = mState;
-		OneCellWidget.updateWidget(this, manager, song, state);
-		FourLongWidget.updateWidget(this, manager, song, state);
-		FourSquareWidget.updateWidget(this, manager, song, state);
-		FourWhiteWidget.updateWidget(this, manager, song, state);
-		WidgetD.updateWidget(this, manager, song, state);
-		WidgetE.updateWidget(this, manager, song, state);
+		mWidgetUpdater.update(mCurrentSong, mState);
+	}
+
+	/**
+	 * Redraw all the widgets, including their covers.
+	 */
+	public void invalidateWidgets()
+	{
+		mWidgetUpdater.invalidate();
+		updateWidgets();
 	}
 
 	/**
@@ -875,10 +1040,48 @@ public final class PlaybackService extends Service
 
 	private void updateNotification()
 	{
-		if ((mForceNotificationVisible || mNotificationMode == ALWAYS || mNotificationMode == WHEN_PLAYING && (mState & FLAG_PLAYING) != 0) && mCurrentSong != null)
-			mNotificationManager.notify(NOTIFICATION_ID, createNotification(mCurrentSong, mState));
-		else
+		if ((mForceNotificationVisible || mNotificationMode == ALWAYS || mNotificationMode == WHEN_PLAYING && (mState & FLAG_PLAYING) != 0) && mCurrentSong != null) {
+			// Limit the rate of updates so skipping through songs quickly
+			// doesn't flood the system with notifications.
+			long delay = mLastNotificationPost + NOTIFICATION_INTERVAL - SystemClock.uptimeMillis();
+			if (delay <= 0) {
+				mHandler.removeMessages(POST_NOTIFICATION);
+				postNotification();
+			} else if (!mHandler.hasMessages(POST_NOTIFICATION)) {
+				mHandler.sendEmptyMessageDelayed(POST_NOTIFICATION, delay);
+			}
+		} else {
+			mHandler.removeMessages(POST_NOTIFICATION);
 			mNotificationManager.cancel(NOTIFICATION_ID);
+		}
+	}
+
+	/**
+	 * Post the notification for the current song and state, or remove it if
+	 * it should no longer be shown.
+	 */
+	private void postNotification()
+	{
+		Song song = mCurrentSong;
+		if ((mForceNotificationVisible || mNotificationMode == ALWAYS || mNotificationMode == WHEN_PLAYING && (mState & FLAG_PLAYING) != 0) && song != null) {
+			mLastNotificationPost = SystemClock.uptimeMillis();
+			mNotificationManager.notify(NOTIFICATION_ID, createNotification(song, mState));
+		} else {
+			mNotificationManager.cancel(NOTIFICATION_ID);
+		}
+	}
+
+	/**
+	 * Drop the cached notifications, so they are rebuilt on the next update.
+	 * Call when a setting that affects their appearance changes.
+	 */
+	private void invalidateNotification()
+	{
+		synchronized (mNotifications) {
+			mNotificationSong = null;
+			mNotifications[0] = null;
+			mNotifications[1] = null;
+		}
 	}
 
 	/**
@@ -1032,6 +1235,8 @@ public final class PlaybackService extends Service
 
 		mHandler.removeMessages(PROCESS_SONG);
 
+		// Keep clear of -1, which marks "not broadcast".
+		mSongInstance = (mSongInstance + 1) & Integer.MAX_VALUE;
 		mMediaPlayerInitialized = false;
 		mHandler.sendMessage(mHandler.obtainMessage(PROCESS_SONG, song));
 		mHandler.sendMessage(mHandler.obtainMessage(BROADCAST_CHANGE, -1, 0, song));
@@ -1108,6 +1313,18 @@ public final class PlaybackService extends Service
 		return mTimeline.getSong(delta);
 	}
 
+	/**
+	 * Returns the songs around the current song, for prefetching.
+	 *
+	 * @see SongTimeline#getSongWindow(int)
+	 */
+	public Song[] getSongWindow(int radius)
+	{
+		if (mTimeline == null)
+			return new Song[radius * 2 + 1];
+		return mTimeline.getSongWindow(radius);
+	}
+
 	private class Receiver extends BroadcastReceiver {
 		@Override
 		public void onReceive(Context content, Intent intent)
@@ -1167,10 +1384,7 @@ public final class PlaybackService extends Service
 			setFlag(FLAG_NO_MEDIA);
 		}
 
-		ArrayList<PlaybackActivity> list = sActivities;
-		for (int i = list.size(); --i != -1; )
-			list.get(i).onMediaChange();
-
+		sChangeBus.postMediaChange();
 	}
 
 	@Override
@@ -1211,6 +1425,16 @@ public final class PlaybackService extends Service
 	private static final int SAVE_STATE = 12;
 	private static final int PROCESS_SONG = 13;
 	private static final int PROCESS_STATE = 14;
+	/**
+	 * Call {@link PlaybackService#postNotification()}. Sent with a delay when
+	 * notification updates arrive faster than NOTIFICATION_INTERVAL.
+	 */
+	private static final int POST_NOTIFICATION = 15;
+	/**
+	 * Call {@link PlaybackService#postExternalBroadcast()}. Sent with a delay
+	 * by {@link PlaybackService#scheduleExternalBroadcast()}.
+	 */
+	private static final int POST_BROADCAST = 16;
 
 	@Override
 	public boolean handleMessage(Message message)
@@ -1260,6 +1484,12 @@ public final class PlaybackService extends Service
 		case PROCESS_STATE:
 			processNewState(message.arg1, message.arg2);
 			break;
+		case POST_NOTIFICATION:
+			postNotification();
+			break;
+		case POST_BROADCAST:
+			postExternalBroadcast();
+			break;
 		case BROADCAST_CHANGE:
 			broadcastChange(message.arg1, (Song)message.obj, message.getWhen());
 			break;
@@ -1317,9 +1547,7 @@ public final class PlaybackService extends Service
 	@Override
 	public void activeSongReplaced(int delta, Song song)
 	{
-		ArrayList<PlaybackActivity> list = sActivities;
-		for (int i = list.size(); --i != -1; )
-			list.get(i).replaceSong(delta, song);
+		sChangeBus.postReplaceSong(delta, song);
 
 		if (delta == 0)
 			setCurrentSong(0);
@@ -1503,16 +1731,30 @@ public final class PlaybackService extends Service
 	@Override
 	public void positionInfoChanged()
 	{
-		ArrayList<PlaybackActivity> list = sActivities;
-		for (int i = list.size(); --i != -1; )
-			list.get(i).onPositionInfoChanged();
+		sChangeBus.postPositionInfo();
 	}
 
+	/**
+	 * Redraws the widgets when the cover art of the current song may have
+	 * changed.
+	 */
+	private final CoverInvalidator.Listener mCoverListener = new CoverInvalidator.Listener() {
+		@Override
+		public void onCoversChanged(long[] albumIds)
+		{
+			Song song = mCurrentSong;
+			if (albumIds == null || song != null && Arrays.binarySearch(albumIds, song.albumId) >= 0)
+				invalidateWidgets();
+		}
+	};
+
 	private final ContentObserver mObserver = new ContentObserver(null) {
 		@Override
 		public void onChange(boolean selfChange)
 		{
 			MediaUtils.onMediaChange();
+			Song.onMediaChange(PlaybackService.this);
+			CoverInvalidator.onMediaChange(PlaybackService.this);
 			onMediaChange();
 		}
 	};
@@ -1553,7 +1795,7 @@ public final class PlaybackService extends Service
 	 */
 	public static void addActivity(PlaybackActivity activity)
 	{
-		sActivities.add(activity);
+		sChangeBus.addListener(activity);
 	}
 
 	/**
@@ -1563,7 +1805,15 @@ public final class PlaybackService extends Service
 	 */
 	public static void removeActivity(PlaybackActivity activity)
 	{
-		sActivities.remove(activity);
+		sChangeBus.removeListener(activity);
+	}
+
+	/**
+	 * Returns the bus that delivers change events to PlaybackActivities.
+	 */
+	public static ChangeBus getChangeBus()
+	{
+		return sChangeBus;
 	}
 
 	/**
@@ -1673,16 +1923,49 @@ public final class PlaybackService extends Service
 	 * Create a song notification. Call through the NotificationManager to
 	 * display it.
 	 *
+	 * Notifications are cached for the current song, one for each play
+	 * state, so toggling playback does not rebuild them.
+	 *
 	 * @param song The Song to display information about.
 	 * @param state The state. Determines whether to show paused or playing icon.
 	 */
 	public Notification createNotification(Song song, int state)
 	{
 		boolean playing = (state & FLAG_PLAYING) != 0;
+		int index = playing ? 1 : 0;
+
+		synchronized (mNotifications) {
+			if (song != mNotificationSong) {
+				mNotificationSong = song;
+				mNotifications[0] = null;
+				mNotifications[1] = null;
+				mNotificationCover = null;
+				mNotificationCoverLoaded = false;
+			}
+			Notification notification = mNotifications[index];
+			if (notification == null) {
+				notification = buildNotification(song, playing);
+				mNotifications[index] = notification;
+			}
+			return notification;
+		}
+	}
 
+	/**
+	 * Build a notification for the given song and play state. The cover and
+	 * PendingIntents are cached and shared between notifications. Must be
+	 * called with the mNotifications lock held.
+	 */
+	private Notification buildNotification(Song song, boolean playing)
+	{
 		RemoteViews views = new RemoteViews(getPackageName(), R.layout.notification);
 
-		Bitmap cover = song.getCover(this);
+		if (!mNotificationCoverLoaded) {
+			float density = getResources().getDisplayMetrics().density;
+			mNotificationCover = song.getCover(this, (int)(80 * density), (int)(64 * density));
+			mNotificationCoverLoaded = true;
+		}
+		Bitmap cover = mNotificationCover;
 		if (cover == null) {
 			views.setImageViewResource(R.id.cover, R.drawable.fallback_cover);
 		} else {
@@ -1695,19 +1978,25 @@ public final class PlaybackService extends Service
 			int playButton = playing ? R.drawable.pause : R.drawable.play;
 			views.setImageViewResource(R.id.play_pause, playButton);
 
-			ComponentName service = new ComponentName(this, PlaybackService.class);
+			if (mNotificationPlayPause == null) {
+				ComponentName service = new ComponentName(this, PlaybackService.class);
 
-			Intent playPause = new Intent(PlaybackService.ACTION_TOGGLE_PLAYBACK_NOTIFICATION);
-			playPause.setComponent(service);
-			views.setOnClickPendingIntent(R.id.play_pause, PendingIntent.getService(this, 0, playPause, 0));
+				Intent playPause = new Intent(PlaybackService.ACTION_TOGGLE_PLAYBACK_NOTIFICATION);
+				playPause.setComponent(service);
+				mNotificationPlayPause = PendingIntent.getService(this, 0, playPause, 0);
 
-			Intent next = new Intent(PlaybackService.ACTION_NEXT_SONG);
-			next.setComponent(service);
-			views.setOnClickPendingIntent(R.id.next, PendingIntent.getService(this, 0, next, 0));
+				Intent next = new Intent(PlaybackService.ACTION_NEXT_SONG);
+				next.setComponent(service);
+				mNotificationNext = PendingIntent.getService(this, 0, next, 0);
+
+				Intent close = new Intent(PlaybackService.ACTION_CLOSE_NOTIFICATION);
+				close.setComponent(service);
+				mNotificationClose = PendingIntent.getService(this, 0, close, 0);
+			}
 
-			Intent close = new Intent(PlaybackService.ACTION_CLOSE_NOTIFICATION);
-			close.setComponent(service);
-			views.setOnClickPendingIntent(R.id.close, PendingIntent.getService(this, 0, close, 0));
+			views.setOnClickPendingIntent(R.id.play_pause, mNotificationPlayPause);
+			views.setOnClickPendingIntent(R.id.next, mNotificationNext);
+			views.setOnClickPendingIntent(R.id.close, mNotificationClose);
 		} else if (!playing) {
 			title = getResources().getString(R.string.notification_title_paused, song.title);
 		}
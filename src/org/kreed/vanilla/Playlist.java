@@ -33,6 +33,13 @@ import android.provider.MediaStore;
  * Provides various playlist-related utility functions.
  */
 public class Playlist {
+	/**
+	 * The spacing between the PLAY_ORDER values of consecutive songs written
+	 * by this class. The gaps let a song be moved by changing only its own
+	 * PLAY_ORDER; see {@link PlaylistAdapter#move(int, int)}.
+	 */
+	public static final long PLAY_ORDER_GAP = 1024;
+
 	/**
 	 * Queries all the playlists known to the MediaStore.
 	 *
@@ -100,50 +107,245 @@ public class Playlist {
 		return id;
 	}
 
+	/**
+	 * The number of songs inserted per bulkInsert by {@link Appender}.
+	 */
+	private static final int ADD_CHUNK_SIZE = 500;
+
+	/**
+	 * Receives progress updates from the addToPlaylist methods.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called after each chunk of songs has been processed, on the thread
+		 * running addToPlaylist.
+		 *
+		 * @param processed The number of songs from the query processed so
+		 * far.
+		 * @param total The number of songs returned by the query.
+		 */
+		void onAddProgress(int processed, int total);
+	}
+
+	/**
+	 * Returns the greatest PLAY_ORDER in the given playlist, or -1 if the
+	 * playlist is empty.
+	 */
+	private static long getMaxPlayOrder(ContentResolver resolver, Uri uri)
+	{
+		String[] projection = { "max(" + MediaStore.Audio.Playlists.Members.PLAY_ORDER + ")" };
+		Cursor cursor = resolver.query(uri, projection, null, null, null);
+		long max = -1;
+		if (cursor != null) {
+			if (cursor.moveToFirst() && !cursor.isNull(0))
+				max = cursor.getLong(0);
+			cursor.close();
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the ids of the songs in the given playlist.
+	 */
+	private static LongHashSet getAudioIds(ContentResolver resolver, Uri uri)
+	{
+		String[] projection = { MediaStore.Audio.Playlists.Members.AUDIO_ID };
+		Cursor cursor = resolver.query(uri, projection, null, null, null);
+		if (cursor == null)
+			return new LongHashSet(0);
+		LongHashSet ids = new LongHashSet(cursor.getCount());
+		while (cursor.moveToNext())
+			ids.add(cursor.getLong(0));
+		cursor.close();
+		return ids;
+	}
+
+	/**
+	 * Appends songs to a playlist, inserting them in chunks of
+	 * ADD_CHUNK_SIZE so memory use does not grow with the number of songs.
+	 */
+	private static class Appender {
+		private final ContentResolver mResolver;
+		private final Uri mUri;
+		/**
+		 * The ids already in the playlist or added, or null if duplicates
+		 * are allowed.
+		 */
+		private final LongHashSet mExisting;
+		private final ContentValues[] mChunk;
+		private int mChunkSize;
+		/**
+		 * The PLAY_ORDER for the next song.
+		 */
+		private long mOrder;
+		/**
+		 * The number of songs inserted so far.
+		 */
+		public int added;
+
+		/**
+		 * @param resolver A ContentResolver to use.
+		 * @param playlistId The id of the playlist to append to.
+		 * @param skipDuplicates If true, ids that are already in the
+		 * playlist, or that have already been added, are ignored.
+		 * @param count The number of songs that will be added, used to size
+		 * the chunk buffer.
+		 */
+		public Appender(ContentResolver resolver, long playlistId, boolean skipDuplicates, int count)
+		{
+			mResolver = resolver;
+			mUri = MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId);
+			mOrder = Math.max(0, getMaxPlayOrder(resolver, mUri) + PLAY_ORDER_GAP);
+			mExisting = skipDuplicates ? getAudioIds(resolver, mUri) : null;
+			mChunk = new ContentValues[Math.max(1, Math.min(count, ADD_CHUNK_SIZE))];
+		}
+
+		/**
+		 * Queue the song with the given id, inserting the queued songs if the
+		 * chunk is full.
+		 *
+		 * @return True if the chunk was inserted.
+		 */
+		public boolean add(long id)
+		{
+			if (mExisting != null && !mExisting.add(id))
+				return false;
+
+			ContentValues value = new ContentValues(2);
+			value.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, Long.valueOf(mOrder));
+			value.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, id);
+			mChunk[mChunkSize++] = value;
+			mOrder += PLAY_ORDER_GAP;
+
+			if (mChunkSize == mChunk.length) {
+				flush();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Insert the queued songs.
+		 */
+		public void flush()
+		{
+			int size = mChunkSize;
+			if (size == 0)
+				return;
+			ContentValues[] values = mChunk;
+			if (size != values.length) {
+				values = new ContentValues[size];
+				System.arraycopy(mChunk, 0, values, 0, size);
+			}
+			mResolver.bulkInsert(mUri, values);
+			added += size;
+			mChunkSize = 0;
+		}
+	}
+
 	/**
 	 * Run the given query and add the results to the given playlist. Should be
 	 * run on a background thread.
 	 *
+	 * The songs are inserted in chunks of ADD_CHUNK_SIZE, so memory use does
+	 * not grow with the size of the query.
+	 *
 	 * @param resolver A ContentResolver to use.
 	 * @param playlistId The MediaStore.Audio.Playlist id of the playlist to
 	 * modify.
 	 * @param query The query to run. The audio id should be the first column.
+	 * @param skipDuplicates If true, songs that are already in the playlist
+	 * (or that appear earlier in the query) are not added.
+	 * @param listener A listener to report progress to. May be null.
 	 * @return The number of songs that were added to the playlist.
 	 */
-	public static int addToPlaylist(ContentResolver resolver, long playlistId, QueryTask query)
+	public static int addToPlaylist(ContentResolver resolver, long playlistId, QueryTask query, boolean skipDuplicates, ProgressListener listener)
 	{
 		if (playlistId == -1)
 			return 0;
 
-		// Find the greatest PLAY_ORDER in the playlist
-		Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId);
-		String[] projection = new String[] { MediaStore.Audio.Playlists.Members.PLAY_ORDER };
-		Cursor cursor = resolver.query(uri, projection, null, null, null);
-		int base = 0;
-		if (cursor.moveToLast())
-			base = cursor.getInt(0) + 1;
-		cursor.close();
-
 		Cursor from = query.runQuery(resolver);
 		if (from == null)
 			return 0;
 
-		int count = from.getCount();
-		if (count > 0) {
-			ContentValues[] values = new ContentValues[count];
-			for (int i = 0; i != count; ++i) {
-				from.moveToPosition(i);
-				ContentValues value = new ContentValues(2);
-				value.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, Integer.valueOf(base + i));
-				value.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, from.getLong(0));
-				values[i] = value;
+		int total = from.getCount();
+		try {
+			Appender appender = new Appender(resolver, playlistId, skipDuplicates, total);
+			int processed = 0;
+			while (from.moveToNext()) {
+				++processed;
+				if (appender.add(from.getLong(0)) && listener != null)
+					listener.onAddProgress(processed, total);
 			}
-			resolver.bulkInsert(uri, values);
+			appender.flush();
+			return appender.added;
+		} finally {
+			// Report completion even if an insert failed, so a progress
+			// dialog is always dismissed.
+			if (listener != null)
+				listener.onAddProgress(total, total);
+			from.close();
 		}
+	}
 
-		from.close();
+	/**
+	 * Add the songs with the given ids to the given playlist, in order.
+	 * Should be run on a background thread.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @param playlistId The MediaStore.Audio.Playlist id of the playlist to
+	 * modify.
+	 * @param ids The MediaStore ids of the songs to add.
+	 * @param skipDuplicates If true, songs that are already in the playlist
+	 * (or that appear earlier in ids) are not added.
+	 * @param listener A listener to report progress to. May be null.
+	 * @return The number of songs that were added to the playlist.
+	 */
+	public static int addToPlaylist(ContentResolver resolver, long playlistId, long[] ids, boolean skipDuplicates, ProgressListener listener)
+	{
+		if (playlistId == -1)
+			return 0;
 
-		return count;
+		int total = ids.length;
+		try {
+			Appender appender = new Appender(resolver, playlistId, skipDuplicates, total);
+			for (int i = 0; i != total; ++i) {
+				if (appender.add(ids[i]) && listener != null)
+					listener.onAddProgress(i + 1, total);
+			}
+			appender.flush();
+			return appender.added;
+		} finally {
+			// Report completion even if an insert failed, so a progress
+			// dialog is always dismissed.
+			if (listener != null)
+				listener.onAddProgress(total, total);
+		}
+	}
+
+	/**
+	 * Replace the songs in the given playlist, spacing their PLAY_ORDER
+	 * values PLAY_ORDER_GAP apart.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @param playlistId The MediaStore.Audio.Playlist id of the playlist to
+	 * modify.
+	 * @param audioIds The ids of the songs, in playlist order.
+	 */
+	public static void renumberPlaylist(ContentResolver resolver, long playlistId, long[] audioIds)
+	{
+		Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId);
+		resolver.delete(uri, null, null);
+
+		int count = audioIds.length;
+		ContentValues[] values = new ContentValues[count];
+		for (int i = 0; i != count; ++i) {
+			ContentValues value = new ContentValues(2);
+			value.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, Long.valueOf(i * PLAY_ORDER_GAP));
+			value.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, audioIds[i]);
+			values[i] = value;
+		}
+		resolver.bulkInsert(uri, values);
 	}
 
 	/**
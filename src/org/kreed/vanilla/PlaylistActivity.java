@@ -28,6 +28,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.view.ContextMenu;
@@ -127,7 +128,16 @@ public class PlaylistActivity extends Activity
 	@Override
 	public void onDestroy()
 	{
-		mLooper.quit();
+		mAdapter.close();
+		// Quit after the adapter has written its pending edits.
+		final Looper looper = mLooper;
+		new Handler(looper).post(new Runnable() {
+			@Override
+			public void run()
+			{
+				looper.quit();
+			}
+		});
 		super.onDestroy();
 	}
 
@@ -22,27 +22,42 @@
 
 package org.kreed.vanilla;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
 import android.provider.MediaStore;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
+import java.util.ArrayList;
 
 /**
- * CursorAdapter backed by MediaStore playlists.
+ * Adapter backed by MediaStore playlists.
+ *
+ * The songs are loaded into an in-memory model on a worker thread. Edits
+ * (moves and removals) are applied to the model immediately, so the list
+ * updates without waiting for the MediaStore, and are then written to the
+ * MediaStore in batches on the worker thread.
+ *
+ * If the playlist is changed by something else, the model is reloaded
+ * once the pending edits have been written. Edits are keyed by member id,
+ * so edits to rows that were removed externally are dropped.
  */
-public class PlaylistAdapter extends CursorAdapter implements Handler.Callback, DragListView.DragAdapter {
+public class PlaylistAdapter extends BaseAdapter implements Handler.Callback, DragListView.DragAdapter {
 	private static final String[] PROJECTION = new String[] {
 		MediaStore.Audio.Playlists.Members._ID,
 		MediaStore.Audio.Playlists.Members.TITLE,
@@ -51,6 +66,37 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 		MediaStore.Audio.Playlists.Members.PLAY_ORDER,
 	};
 
+	/**
+	 * Time to wait for further edits before writing edits to the MediaStore,
+	 * in milliseconds.
+	 */
+	private static final long PERSIST_DELAY = 300;
+
+	/**
+	 * A song in the playlist.
+	 */
+	private static class Entry {
+		/**
+		 * The id of the playlist member row.
+		 */
+		public final long memberId;
+		public final String title;
+		public final long audioId;
+		/**
+		 * The PLAY_ORDER of the row, as it will be once pending edits are
+		 * written.
+		 */
+		public long order;
+
+		public Entry(long memberId, String title, long audioId, long order)
+		{
+			this.memberId = memberId;
+			this.title = title;
+			this.audioId = audioId;
+			this.order = order;
+		}
+	}
+
 	private final Context mContext;
 	private final Handler mWorkerHandler;
 	private final Handler mUiHandler;
@@ -61,6 +107,42 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 
 	private boolean mEditable;
 
+	/**
+	 * The songs in the playlist, with pending edits applied. Only accessed on
+	 * the UI thread.
+	 */
+	private ArrayList<Entry> mEntries = new ArrayList<Entry>();
+	/**
+	 * Edits that have not been written yet. Access must be synchronized on
+	 * the list.
+	 */
+	private final ArrayList<ContentProviderOperation> mPendingOps = new ArrayList<ContentProviderOperation>();
+	/**
+	 * The audio ids of the model, in order, as of the last edit. If the
+	 * provider refuses the pending edits, the playlist is rewritten with
+	 * these instead. Access must be synchronized on mPendingOps.
+	 */
+	private long[] mPendingOrder;
+	/**
+	 * The playlist mPendingOrder belongs to. Access must be synchronized on
+	 * mPendingOps.
+	 */
+	private long mPendingPlaylistId;
+	/**
+	 * The number of edits made on the UI thread that have not been written
+	 * yet. Only accessed on the UI thread.
+	 */
+	private int mUnwrittenCount;
+	/**
+	 * True if the model should be reloaded once all edits have been written.
+	 * Only accessed on the UI thread.
+	 */
+	private boolean mReloadNeeded;
+	/**
+	 * Watches the members of the current playlist.
+	 */
+	private final ContentObserver mObserver;
+
 	/**
 	 * Create a playlist adapter.
 	 *
@@ -69,13 +151,19 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 	 */
 	public PlaylistAdapter(Context context, Looper worker)
 	{
-		super(context, null, false);
-
 		mContext = context;
 		mUiHandler = new Handler(this);
 		mWorkerHandler = new Handler(worker, this);
 		mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 		mExpander = context.getResources().getDrawable(R.drawable.grabber);
+		mObserver = new ContentObserver(mWorkerHandler) {
+			@Override
+			public void onChange(boolean selfChange)
+			{
+				mWorkerHandler.removeMessages(MSG_RUN_QUERY);
+				mWorkerHandler.sendEmptyMessage(MSG_RUN_QUERY);
+			}
+		};
 	}
 
 	/**
@@ -85,10 +173,30 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 	 */
 	public void setPlaylistId(long id)
 	{
+		ContentResolver resolver = mContext.getContentResolver();
+		resolver.unregisterContentObserver(mObserver);
+		// Write edits to the old playlist before its model is replaced.
+		mWorkerHandler.removeMessages(MSG_PERSIST);
+		mWorkerHandler.sendEmptyMessage(MSG_PERSIST);
 		mPlaylistId = id;
+		resolver.registerContentObserver(MediaStore.Audio.Playlists.Members.getContentUri("external", id), true, mObserver);
+		mEntries = new ArrayList<Entry>();
+		notifyDataSetInvalidated();
 		mWorkerHandler.sendEmptyMessage(MSG_RUN_QUERY);
 	}
 
+	/**
+	 * Stop watching the playlist for changes and write pending edits
+	 * without waiting for further edits. The worker looper must not be quit
+	 * before the messages sent here have been handled.
+	 */
+	public void close()
+	{
+		mContext.getContentResolver().unregisterContentObserver(mObserver);
+		mWorkerHandler.removeMessages(MSG_PERSIST);
+		mWorkerHandler.sendEmptyMessage(MSG_PERSIST);
+	}
+
 	/**
 	 * Enabled or disable edit mode. Edit mode adds a drag grabber to the left
 	 * side a views and a delete button to the right side of views.
@@ -101,25 +209,44 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 		notifyDataSetInvalidated();
 	}
 
-	/**
-	 * Update the values in the given view.
-	 */
 	@Override
-	public void bindView(View view, Context context, Cursor cursor)
+	public int getCount()
 	{
-		TextView textView = (TextView)view;
-		textView.setText(cursor.getString(1));
-		textView.setCompoundDrawablesWithIntrinsicBounds(mEditable ? mExpander : null, null, null, null);
-		textView.setTag(cursor.getLong(3));
+		return mEntries.size();
+	}
+
+	@Override
+	public Object getItem(int position)
+	{
+		return mEntries.get(position);
 	}
 
-	/**
-	 * Generate a new view.
-	 */
 	@Override
-	public View newView(Context context, Cursor cursor, ViewGroup parent)
+	public long getItemId(int position)
 	{
-		return mInflater.inflate(R.layout.playlist_row, null);
+		return mEntries.get(position).memberId;
+	}
+
+	@Override
+	public boolean hasStableIds()
+	{
+		return true;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent)
+	{
+		TextView textView;
+		if (convertView == null)
+			textView = (TextView)mInflater.inflate(R.layout.playlist_row, null);
+		else
+			textView = (TextView)convertView;
+
+		Entry entry = mEntries.get(position);
+		textView.setText(entry.title);
+		textView.setCompoundDrawablesWithIntrinsicBounds(mEditable ? mExpander : null, null, null, null);
+		textView.setTag(entry.audioId);
+		return textView;
 	}
 
 	/**
@@ -127,21 +254,62 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 	 */
 	public static final int MSG_RUN_QUERY = 1;
 	/**
-	 * Update the cursor. Must be run on UI thread.
+	 * Replace the model with the one in obj. Must be run on UI thread.
 	 */
-	public static final int MSG_UPDATE_CURSOR = 2;
+	public static final int MSG_UPDATE_MODEL = 2;
+	/**
+	 * Write the pending edits. Should be run on worker thread.
+	 */
+	private static final int MSG_PERSIST = 3;
+	/**
+	 * Pending edits have been written. arg1 is the number of edits written
+	 * and arg2 is one of PERSIST_*. Must be run on UI thread.
+	 */
+	private static final int MSG_PERSISTED = 4;
+
+	/**
+	 * arg2 for {@link #MSG_PERSISTED}: the edits were written.
+	 */
+	private static final int PERSIST_OK = 0;
+	/**
+	 * arg2 for {@link #MSG_PERSISTED}: the provider refused the edits, so
+	 * the playlist was rewritten in the edited order instead. The member
+	 * rows have been replaced.
+	 */
+	private static final int PERSIST_REWRITTEN = 1;
+	/**
+	 * arg2 for {@link #MSG_PERSISTED}: the edits could not be written.
+	 */
+	private static final int PERSIST_FAILED = 2;
 
 	@Override
 	public boolean handleMessage(Message message)
 	{
 		switch (message.what) {
 		case MSG_RUN_QUERY: {
-			Cursor cursor = runQuery(mContext.getContentResolver());
-			mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_UPDATE_CURSOR, cursor));
+			ArrayList<Entry> entries = runQuery(mContext.getContentResolver(), mPlaylistId);
+			mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_UPDATE_MODEL, entries));
+			break;
+		}
+		case MSG_UPDATE_MODEL: {
+			@SuppressWarnings("unchecked")
+			ArrayList<Entry> entries = (ArrayList<Entry>)message.obj;
+			updateModel(entries);
 			break;
 		}
-		case MSG_UPDATE_CURSOR:
-			changeCursor((Cursor)message.obj);
+		case MSG_PERSIST:
+			persist();
+			break;
+		case MSG_PERSISTED:
+			mUnwrittenCount -= message.arg1;
+			if (message.arg2 == PERSIST_FAILED)
+				Toast.makeText(mContext, R.string.playlist_edit_failed, Toast.LENGTH_SHORT).show();
+			if (message.arg2 != PERSIST_OK)
+				mReloadNeeded = true;
+			if (mUnwrittenCount == 0 && mReloadNeeded) {
+				mReloadNeeded = false;
+				mWorkerHandler.sendEmptyMessage(MSG_RUN_QUERY);
+			}
 			break;
 		default:
 			return false;
@@ -154,12 +322,129 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 	 * Query the playlist songs.
 	 *
 	 * @param resolver A ContentResolver to query with.
-	 * @return The resulting cursor.
+	 * @param playlistId The id of the playlist to query.
+	 * @return The songs, in order.
+	 */
+	private static ArrayList<Entry> runQuery(ContentResolver resolver, long playlistId)
+	{
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		QueryTask query = MediaUtils.buildPlaylistQuery(playlistId, PROJECTION, null);
+		Cursor cursor = query.runQuery(resolver);
+		if (cursor != null) {
+			entries.ensureCapacity(cursor.getCount());
+			while (cursor.moveToNext())
+				entries.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getLong(3), cursor.getLong(4)));
+			cursor.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Replace the model with a freshly loaded one, unless there are edits
+	 * that have not been written yet; in that case, reload again once they
+	 * have been written.
+	 */
+	private void updateModel(ArrayList<Entry> entries)
+	{
+		if (mUnwrittenCount != 0) {
+			mReloadNeeded = true;
+			return;
+		}
+		mEntries = entries;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Queue an edit. {@link #schedulePersist()} must be called once the
+	 * model reflects the edit.
+	 */
+	private void queueOp(ContentProviderOperation op)
+	{
+		synchronized (mPendingOps) {
+			mPendingOps.add(op);
+		}
+		++mUnwrittenCount;
+	}
+
+	/**
+	 * Record the current order of the model and schedule the pending edits
+	 * to be written.
+	 */
+	private void schedulePersist()
+	{
+		ArrayList<Entry> entries = mEntries;
+		int count = entries.size();
+		long[] order = new long[count];
+		for (int i = 0; i != count; ++i)
+			order[i] = entries.get(i).audioId;
+
+		synchronized (mPendingOps) {
+			mPendingOrder = order;
+			mPendingPlaylistId = mPlaylistId;
+		}
+		mWorkerHandler.removeMessages(MSG_PERSIST);
+		mWorkerHandler.sendEmptyMessageDelayed(MSG_PERSIST, PERSIST_DELAY);
+	}
+
+	/**
+	 * Queue an edit setting the PLAY_ORDER of the given entry.
+	 */
+	private void queueOrder(Entry entry)
+	{
+		Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", mPlaylistId);
+		queueOp(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(uri, entry.memberId))
+			.withValue(MediaStore.Audio.Playlists.Members.PLAY_ORDER, Long.valueOf(entry.order))
+			.build());
+	}
+
+	/**
+	 * Write the pending edits to the MediaStore as one batch. Should be run
+	 * on the worker thread.
 	 */
-	private Cursor runQuery(ContentResolver resolver)
+	private void persist()
 	{
-		QueryTask query = MediaUtils.buildPlaylistQuery(mPlaylistId, PROJECTION, null);
-		return query.runQuery(resolver);
+		ArrayList<ContentProviderOperation> ops;
+		long[] order;
+		long playlistId;
+		synchronized (mPendingOps) {
+			if (mPendingOps.isEmpty())
+				return;
+			ops = new ArrayList<ContentProviderOperation>(mPendingOps);
+			mPendingOps.clear();
+			order = mPendingOrder;
+			playlistId = mPendingPlaylistId;
+			mPendingOrder = null;
+		}
+
+		ContentResolver resolver = mContext.getContentResolver();
+		int result = PERSIST_OK;
+		try {
+			resolver.applyBatch(MediaStore.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			Log.w("VanillaMusic", "Failed to update playlist", e);
+			result = PERSIST_FAILED;
+		} catch (OperationApplicationException e) {
+			Log.w("VanillaMusic", "Failed to update playlist", e);
+			result = PERSIST_FAILED;
+		} catch (UnsupportedOperationException e) {
+			Log.w("VanillaMusic", "Failed to update playlist", e);
+			result = PERSIST_FAILED;
+		}
+
+		// Some providers refuse PLAY_ORDER updates. Rewrite the playlist in
+		// the edited order instead, so the user's edits are not lost.
+		if (result == PERSIST_FAILED && order != null) {
+			try {
+				Playlist.renumberPlaylist(resolver, playlistId, order);
+				result = PERSIST_REWRITTEN;
+			} catch (UnsupportedOperationException e) {
+				Log.w("VanillaMusic", "Failed to rewrite playlist", e);
+			} catch (SecurityException e) {
+				Log.w("VanillaMusic", "Failed to rewrite playlist", e);
+			}
+		}
+
+		mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_PERSISTED, ops.size(), result));
 	}
 
 	@Override
@@ -169,7 +454,8 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 			// easy mode
 			return;
 
-		int count = getCount();
+		ArrayList<Entry> entries = mEntries;
+		int count = entries.size();
 		if (to >= count || from >= count)
 			// this can happen when the adapter changes during the drag
 			return;
@@ -177,51 +463,56 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback,
 		// The Android API contains a method to move a playlist item, however,
 		// it has only been available since Froyo and doesn't seem to work
 		// after a song has been removed from the playlist (I think?).
+		//
+		// Instead, PLAY_ORDER values are kept spaced apart (see
+		// Playlist.PLAY_ORDER_GAP) so the moved song can usually be given a
+		// value between its new neighbors, updating only its own row. When
+		// there is no room between the neighbors, the whole playlist is
+		// renumbered with fresh gaps.
 
-		ContentResolver resolver = mContext.getContentResolver();
-		Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", mPlaylistId);
-		Cursor cursor = getCursor();
+		Entry entry = entries.remove(from);
+		entries.add(to, entry);
 
-		int start = Math.min(from, to);
-		int end = Math.max(from, to);
+		boolean hasPrev = to > 0;
+		boolean hasNext = to < count - 1;
+		long prevOrder = hasPrev ? entries.get(to - 1).order : 0;
+		long nextOrder = hasNext ? entries.get(to + 1).order : 0;
 
-		long order;
-		if (start == 0) {
-			order = 0;
-		} else {
-			cursor.moveToPosition(start - 1);
-			order = cursor.getLong(4) + 1;
+		long order = -1;
+		if (hasPrev && hasNext) {
+			if (nextOrder - prevOrder >= 2)
+				order = prevOrder + (nextOrder - prevOrder) / 2;
+		} else if (hasPrev) {
+			order = prevOrder + Playlist.PLAY_ORDER_GAP;
+		} else if (nextOrder >= 1) {
+			order = nextOrder / 2;
 		}
 
-		cursor.moveToPosition(end);
-		long endOrder = cursor.getLong(4);
-
-		// clear the rows we are replacing
-		String[] args = new String[] { Long.toString(order), Long.toString(endOrder) };
-		resolver.delete(uri, "play_order >= ? AND play_order <= ?", args);
-
-		// create the new rows
-		ContentValues[] values = new ContentValues[end - start + 1];
-		for (int i = start, j = 0; i <= end; ++i, ++j, ++order) {
-			cursor.moveToPosition(i == to ? from : i > to ? i - 1 : i + 1);
-			ContentValues value = new ContentValues(2);
-			value.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, Long.valueOf(order));
-			value.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, cursor.getLong(3));
-			values[j] = value;
+		if (order != -1) {
+			entry.order = order;
+			queueOrder(entry);
+		} else {
+			for (int i = 0; i != count; ++i) {
+				Entry e = entries.get(i);
+				long newOrder = i * Playlist.PLAY_ORDER_GAP;
+				if (e.order != newOrder) {
+					e.order = newOrder;
+					queueOrder(e);
+				}
+			}
 		}
 
-		// insert the new rows
-		resolver.bulkInsert(uri, values);
-
-		changeCursor(runQuery(resolver));
+		schedulePersist();
+		notifyDataSetChanged();
 	}
 
 	@Override
 	public void remove(int position)
 	{
-		ContentResolver resolver = mContext.getContentResolver();
+		Entry entry = mEntries.remove(position);
 		Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", mPlaylistId);
-		resolver.delete(ContentUris.withAppendedId(uri, getItemId(position)), null, null);
-		changeCursor(runQuery(resolver));
+		queueOp(ContentProviderOperation.newDelete(ContentUris.withAppendedId(uri, entry.memberId)).build());
+		schedulePersist();
+		notifyDataSetChanged();
 	}
 }
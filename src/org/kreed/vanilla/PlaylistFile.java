@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Imports and exports playlists as M3U, M3U8 and PLS files.
+ *
+ * Files are read and written through NIO channels in one pass. Imported
+ * paths are resolved to song ids with {@link MediaPathIndex}, so no
+ * MediaStore query is needed per entry.
+ */
+public final class PlaylistFile {
+	/**
+	 * The result of an import.
+	 */
+	public static final class ImportResult {
+		/**
+		 * The id of the playlist that was created, or -1 if no songs were
+		 * found and no playlist was created.
+		 */
+		public long playlistId = -1;
+		/**
+		 * The name of the playlist that was created.
+		 */
+		public String name;
+		/**
+		 * The number of songs added to the playlist.
+		 */
+		public int added;
+		/**
+		 * The number of entries that did not match any song.
+		 */
+		public int missing;
+	}
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Returns true if the given file name has an extension this class can
+	 * import.
+	 */
+	public static boolean isPlaylistFile(String name)
+	{
+		String lower = name.toLowerCase();
+		return lower.endsWith(".m3u") || lower.endsWith(".m3u8") || lower.endsWith(".pls");
+	}
+
+	/**
+	 * Returns the name of the given playlist file without its extension.
+	 */
+	public static String getPlaylistName(File file)
+	{
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Read the given file and create a playlist with the songs it lists.
+	 * Existing playlists are never changed: if a playlist with the given name
+	 * exists (as it usually does, since the media scanner imports playlist
+	 * files itself), a number is appended to the name. If none of the songs
+	 * are found, no playlist is created. Should be run on a background
+	 * thread.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @param file The M3U, M3U8 or PLS file.
+	 * @param name The preferred name of the playlist to create.
+	 * @param listener A listener to report progress to. May be null.
+	 * @return The result of the import.
+	 * @throws IOException If the file could not be read.
+	 */
+	public static ImportResult importPlaylist(ContentResolver resolver, File file, String name, Playlist.ProgressListener listener) throws IOException
+	{
+		CharBuffer text = read(file, !file.getName().toLowerCase().endsWith(".m3u"));
+		ArrayList<String> entries = file.getName().toLowerCase().endsWith(".pls") ? parsePls(text) : parseM3u(text);
+
+		String base = file.getCanonicalFile().getParent();
+		MediaPathIndex index = MediaPathIndex.get(resolver);
+		ImportResult result = new ImportResult();
+
+		long[] ids = new long[entries.size()];
+		int count = 0;
+		for (String entry : entries) {
+			String path = resolvePath(base, entry);
+			long id = path == null || index == null ? -1 : index.getIdIgnoreCase(path);
+			if (id == -1)
+				++result.missing;
+			else
+				ids[count++] = id;
+		}
+
+		if (count == 0)
+			return result;
+
+		long[] found = new long[count];
+		System.arraycopy(ids, 0, found, 0, count);
+
+		String unique = name;
+		for (int i = 2; Playlist.getPlaylist(resolver, unique) != -1; ++i)
+			unique = name + " (" + i + ')';
+		result.name = unique;
+		result.playlistId = Playlist.createPlaylist(resolver, unique);
+		result.added = Playlist.addToPlaylist(resolver, result.playlistId, found, false, listener);
+		return result;
+	}
+
+	/**
+	 * Read the whole file and decode it.
+	 *
+	 * @param file The file to read.
+	 * @param utf8 If true, the file is decoded as UTF-8. Otherwise, it is
+	 * decoded as UTF-8 if valid, or ISO-8859-1 if not.
+	 */
+	private static CharBuffer read(File file, boolean utf8) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CharBuffer text;
+			if (utf8) {
+				text = UTF_8.decode(bytes);
+			} else {
+				try {
+					text = UTF_8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(bytes);
+				} catch (CharacterCodingException e) {
+					bytes.rewind();
+					text = ISO_8859_1.decode(bytes);
+				}
+			}
+			// Skip the byte order mark, if any.
+			if (text.hasRemaining() && text.get(text.position()) == '\ufeff')
+				text.get();
+			return text;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Split the given text into trimmed, non-empty lines.
+	 */
+	private static ArrayList<String> splitLines(CharBuffer text)
+	{
+		ArrayList<String> lines = new ArrayList<String>();
+		int start = text.position();
+		int end = text.limit();
+		for (int i = start; i <= end; ++i) {
+			if (i == end || text.get(i) == '\n' || text.get(i) == '\r') {
+				int s = start;
+				int e = i;
+				while (s < e && Character.isWhitespace(text.get(s)))
+					++s;
+				while (e > s && Character.isWhitespace(text.get(e - 1)))
+					--e;
+				if (e > s) {
+					char[] chars = new char[e - s];
+					for (int j = s; j != e; ++j)
+						chars[j - s] = text.get(j);
+					lines.add(new String(chars));
+				}
+				start = i + 1;
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Returns the paths listed in the given M3U text.
+	 */
+	private static ArrayList<String> parseM3u(CharBuffer text)
+	{
+		ArrayList<String> lines = splitLines(text);
+		ArrayList<String> entries = new ArrayList<String>(lines.size());
+		for (String line : lines) {
+			if (line.charAt(0) != '#')
+				entries.add(line);
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the paths listed in the given PLS text, in entry order.
+	 */
+	private static ArrayList<String> parsePls(CharBuffer text)
+	{
+		TreeMap<Integer, String> files = new TreeMap<Integer, String>();
+		for (String line : splitLines(text)) {
+			if (line.length() < 6 || !line.regionMatches(true, 0, "File", 0, 4))
+				continue;
+			int equals = line.indexOf('=');
+			if (equals == -1)
+				continue;
+			try {
+				int number = Integer.parseInt(line.substring(4, equals).trim());
+				files.put(number, line.substring(equals + 1).trim());
+			} catch (NumberFormatException e) {
+				// not a FileN entry
+			}
+		}
+		return new ArrayList<String>(files.values());
+	}
+
+	/**
+	 * Turn a playlist entry into a normalized absolute path.
+	 *
+	 * @param base The directory containing the playlist, for relative
+	 * entries.
+	 * @param entry The entry: an absolute or relative path, or a file URI.
+	 * @return The path, or null if the entry does not name a local file.
+	 */
+	static String resolvePath(String base, String entry)
+	{
+		if (entry.startsWith("file:")) {
+			// getPath() decodes the URI.
+			entry = Uri.parse(entry).getPath();
+			if (entry == null)
+				return null;
+		} else if (entry.indexOf("://") != -1) {
+			// a stream
+			return null;
+		}
+
+		entry = entry.replace('\\', '/');
+		if (entry.length() > 1 && entry.charAt(1) == ':') {
+			// A Windows drive letter; try the path relative to the
+			// playlist instead.
+			int start = 2;
+			while (start != entry.length() && entry.charAt(start) == '/')
+				++start;
+			entry = entry.substring(start);
+		}
+		if (entry.length() == 0)
+			return null;
+		if (entry.charAt(0) != '/')
+			entry = base + '/' + entry;
+
+		// Normalize . and .. segments without touching the filesystem.
+		String[] segments = entry.split("/");
+		ArrayList<String> parts = new ArrayList<String>(segments.length);
+		for (String segment : segments) {
+			if (segment.length() == 0 || segment.equals("."))
+				continue;
+			if (segment.equals("..")) {
+				if (!parts.isEmpty())
+					parts.remove(parts.size() - 1);
+			} else {
+				parts.add(segment);
+			}
+		}
+
+		StringBuilder path = new StringBuilder(entry.length());
+		for (String part : parts) {
+			path.append('/');
+			path.append(part);
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Write the given playlist to a file as M3U8 (extended M3U in UTF-8).
+	 * Songs inside the directory of the file are written with relative paths,
+	 * others with absolute paths. Should be run on a background thread.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @param playlistId The MediaStore id of the playlist.
+	 * @param file The file to write.
+	 * @return The number of songs written.
+	 * @throws IOException If the file could not be written.
+	 */
+	public static int exportPlaylist(ContentResolver resolver, long playlistId, File file) throws IOException
+	{
+		String[] projection = {
+			MediaStore.Audio.Playlists.Members.DATA,
+			MediaStore.Audio.Playlists.Members.DURATION,
+			MediaStore.Audio.Playlists.Members.ARTIST,
+			MediaStore.Audio.Playlists.Members.TITLE,
+		};
+		QueryTask query = MediaUtils.buildPlaylistQuery(playlistId, projection, null);
+		Cursor cursor = query.runQuery(resolver);
+		if (cursor == null)
+			throw new IOException("Failed to query playlist " + playlistId);
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Failed to create " + directory);
+		String prefix = directory == null ? null : directory.getCanonicalPath() + '/';
+
+		StringBuilder text = new StringBuilder(cursor.getCount() * 96);
+		text.append("#EXTM3U\n");
+		int count = 0;
+		while (cursor.moveToNext()) {
+			String path = cursor.getString(0);
+			if (path == null)
+				continue;
+			text.append("#EXTINF:");
+			text.append(cursor.getLong(1) / 1000);
+			text.append(',');
+			text.append(cursor.getString(2));
+			text.append(" - ");
+			text.append(cursor.getString(3));
+			text.append('\n');
+			if (prefix != null && path.startsWith(prefix))
+				path = path.substring(prefix.length());
+			text.append(path);
+			text.append('\n');
+			++count;
+		}
+		cursor.close();
+
+		ByteBuffer bytes = UTF_8.encode(CharBuffer.wrap(text));
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel channel = out.getChannel();
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Failed to rename " + temp);
+		}
+		return count;
+	}
+}
@@ -26,8 +26,10 @@ package org.kreed.vanilla;
  * SharedPreference keys. Must be kept in sync with keys in res/xml/prefs_*.xml.
  */
 public class PrefKeys {
+	public static final String BROADCAST_DWELL = "broadcast_dwell";
 	public static final String CONTROLS_IN_SELECTOR = "controls_in_selector";
 	public static final String COVER_LONGPRESS_ACTION = "cover_longpress_action";
+	public static final String COVER_PREFETCH = "cover_prefetch";
 	public static final String COVER_PRESS_ACTION = "cover_press_action";
 	public static final String DEFAULT_ACTION_INT = "default_action_int";
 	public static final String DEFAULT_PLAYLIST_ACTION = "default_playlist_action";
@@ -39,6 +41,7 @@ public class PrefKeys {
 	public static final String HEADSET_ONLY = "headset_only";
 	public static final String HEADSET_PAUSE = "headset_pause";
 	public static final String HEADSET_PLAY = "headset_play";
+	public static final String HIDE_EMPTY_FOLDERS = "hide_empty_folders";
 	public static final String IDLE_TIMEOUT = "idle_timeout";
 	public static final String LIBRARY_PAGE = "library_page";
 	public static final String MEDIA_BUTTON = "media_button";
@@ -47,6 +50,8 @@ public class PrefKeys {
 	public static final String NOTIFICATION_INVERTED_COLOR = "notification_inverted_color";
 	public static final String NOTIFICATION_MODE = "notification_mode";
 	public static final String PLAYBACK_ON_STARTUP = "playback_on_startup";
+	public static final String PLAYLIST_SKIP_DUPLICATES = "playlist_skip_duplicates";
+	public static final String SCAN_ROOTS = "scan_roots";
 	public static final String SCROBBLE = "scrobble";
 	public static final String SHAKE_ACTION = "shake_action";
 	public static final String SHAKE_THRESHOLD = "shake_threshold";
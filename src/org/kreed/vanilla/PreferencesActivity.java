@@ -24,6 +24,8 @@ package org.kreed.vanilla;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.Fragment;
+import android.content.Context;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
@@ -36,6 +38,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.WebView;
 import android.webkit.WebViewFragment;
+import android.widget.ScrollView;
+import android.widget.TextView;
 import java.util.List;
 
 /**
@@ -209,6 +213,65 @@ public class PreferencesActivity extends PreferenceActivity {
 		}
 	}
 
+	/**
+	 * Returns the text shown on the diagnostics screen.
+	 *
+	 * @param context A context to use.
+	 */
+	public static String getDiagnostics(Context context)
+	{
+		return Song.getCoverCacheStats(context) + "\n\n" + PlaybackService.getChangeBus().getStats();
+	}
+
+	/**
+	 * Create the view for the diagnostics screen.
+	 *
+	 * @param context A context to use.
+	 */
+	private static View createDiagnosticsView(Context context)
+	{
+		TextView text = new TextView(context);
+		int padding = (int)(10 * context.getResources().getDisplayMetrics().density);
+		text.setPadding(padding, padding, padding, padding);
+		text.setText(getDiagnostics(context));
+		text.setId(android.R.id.text1);
+		ScrollView view = new ScrollView(context);
+		view.addView(text);
+		return view;
+	}
+
+	public static class DiagnosticsActivity extends Activity {
+		@Override
+		public void onCreate(Bundle state)
+		{
+			super.onCreate(state);
+			setContentView(createDiagnosticsView(this));
+		}
+
+		@Override
+		public void onResume()
+		{
+			super.onResume();
+			((TextView)findViewById(android.R.id.text1)).setText(getDiagnostics(this));
+		}
+	}
+
+	@TargetApi(11)
+	public static class DiagnosticsFragment extends Fragment {
+		@Override
+		public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState)
+		{
+			return createDiagnosticsView(getActivity());
+		}
+
+		@Override
+		public void onResume()
+		{
+			super.onResume();
+			((TextView)getView().findViewById(android.R.id.text1)).setText(getDiagnostics(getActivity()));
+		}
+	}
+
 	@TargetApi(11)
 	public static class AboutFragment extends WebViewFragment {
 		@Override
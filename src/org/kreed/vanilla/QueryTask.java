@@ -24,6 +24,7 @@ package org.kreed.vanilla;
 
 import android.content.ContentResolver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 
 /**
@@ -53,6 +54,42 @@ public class QueryTask {
 	 */
 	public long data;
 
+	/**
+	 * Additional queries whose results will be appended, in order, to the
+	 * results of this query by {@link #runQuery(ContentResolver)}. Each must
+	 * use a projection with the same layout as this query. May be null.
+	 *
+	 * If uri is null, only these queries will be run.
+	 */
+	public QueryTask[] extra;
+
+	/**
+	 * Paths of files and folders whose songs are also matched by this query,
+	 * in addition to those matched by selection. Resolved to a selection by
+	 * {@link MediaPathIndex} when the query is run. May be null.
+	 */
+	public String[] paths;
+
+	/**
+	 * If non-zero, the id of a smart playlist whose songs are matched by this
+	 * query, further restricted by selection. Resolved to song ids through
+	 * {@link SmartPlaylistIndex} when the query is run.
+	 */
+	public long smartPlaylist;
+
+	/**
+	 * If non-null, the results are reordered so their groups appear in this
+	 * order, keeping the order of the rows within each group. The values are
+	 * the ids of the groups in groupColumn.
+	 */
+	public long[] groupOrder;
+
+	/**
+	 * The column holding the group id of each row, for groupOrder. Added to
+	 * the end of the projection if it is not already there.
+	 */
+	public String groupColumn;
+
 	/**
 	 * Create the tasks. All arguments are passed directly to
 	 * ContentResolver.query().
@@ -73,6 +110,67 @@ public class QueryTask {
 	 */
 	public Cursor runQuery(ContentResolver resolver)
 	{
-		return resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+		Cursor cursor = null;
+		if (uri != null) {
+			String[] projection = this.projection;
+			int groupIndex = -1;
+			if (groupOrder != null) {
+				for (int i = projection.length; --i != -1; ) {
+					if (projection[i].equals(groupColumn))
+						groupIndex = i;
+				}
+				if (groupIndex == -1) {
+					groupIndex = projection.length;
+					projection = new String[groupIndex + 1];
+					System.arraycopy(this.projection, 0, projection, 0, groupIndex);
+					projection[groupIndex] = groupColumn;
+				}
+			}
+
+			String selection = this.selection;
+			if (paths != null) {
+				StringBuilder builder = new StringBuilder();
+				if (selection != null) {
+					builder.append('(');
+					builder.append(selection);
+					builder.append(") OR ");
+				}
+				MediaPathIndex index = MediaPathIndex.get(resolver);
+				if (index != null) {
+					index.appendSelection(builder, paths);
+				} else {
+					builder.append("is_music!=0 AND (");
+					for (int i = 0; i != paths.length; ++i) {
+						if (i != 0)
+							builder.append(" OR ");
+						MediaUtils.appendFileSelection(builder, paths[i]);
+					}
+					builder.append(')');
+				}
+				selection = builder.toString();
+			}
+			SmartPlaylistIndex index = smartPlaylist == 0 ? null : SmartPlaylistIndex.peek();
+			if (index != null)
+				cursor = index.query(resolver, smartPlaylist, uri, projection, selection, selectionArgs, sortOrder);
+			else if (smartPlaylist != 0)
+				// The index is loaded before any smart playlist is listed, so
+				// this should not happen; return no songs.
+				cursor = resolver.query(uri, projection, "0", null, sortOrder);
+			else
+				cursor = resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+
+			if (cursor != null && groupOrder != null)
+				cursor = new GroupOrderCursor(cursor, groupIndex, groupOrder);
+		}
+
+		QueryTask[] extra = this.extra;
+		if (extra == null)
+			return cursor;
+
+		Cursor[] cursors = new Cursor[extra.length + 1];
+		cursors[0] = cursor;
+		for (int i = 0; i != extra.length; ++i)
+			cursors[i + 1] = extra[i].runQuery(resolver);
+		return new MergeCursor(cursors);
 	}
 }
@@ -22,51 +22,58 @@
 
 package org.kreed.vanilla;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.net.Uri;
-import android.os.Environment;
+import android.content.res.Resources;
 import android.preference.Preference;
 import android.util.AttributeSet;
 
 /**
- * A preference that allows the MediaScanner to be triggered.
+ * A preference that starts an incremental library scan and shows its
+ * progress.
+ *
+ * @see LibraryScanner
  */
-public class ScanPreference extends Preference {
-	private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
-		@Override
-		public void onReceive(Context context, Intent intent) {
-			String action = intent.getAction();
-			if (action.equals(Intent.ACTION_MEDIA_SCANNER_STARTED)) {
-				setSummary(R.string.scan_in_progress);
-				setEnabled(false);
-			} else if (intent.getAction().equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
-				setSummary(R.string.finished_scanning);
-				setEnabled(true);
-				context.unregisterReceiver(this);
-			}
-		}
-	};
-
+public class ScanPreference extends Preference implements LibraryScanner.Listener {
 	public ScanPreference(Context context, AttributeSet attrs)
 	{
 		super(context, attrs);
 		setTitle(R.string.media_scan);
 		setSummary(R.string.tap_to_scan);
+
+		LibraryScanner scanner = LibraryScanner.getScanner();
+		if (scanner != null && scanner.getState() != LibraryScanner.STATE_DONE) {
+			scanner.setListener(this);
+			onScanProgress(scanner);
+		}
 	}
 
 	@Override
 	public void onClick()
 	{
-		IntentFilter intentFilter = new IntentFilter();
-		intentFilter.addAction(Intent.ACTION_MEDIA_SCANNER_STARTED);
-		intentFilter.addAction(Intent.ACTION_MEDIA_SCANNER_FINISHED);
-		intentFilter.addDataScheme("file");
-		getContext().registerReceiver(mReceiver, intentFilter);
+		onScanProgress(LibraryScanner.start(getContext(), this));
+	}
 
-		Uri storage = Uri.parse("file://" + Environment.getExternalStorageDirectory());
-		getContext().sendBroadcast(new Intent(Intent.ACTION_MEDIA_MOUNTED, storage));
+	@Override
+	public void onScanProgress(LibraryScanner scanner)
+	{
+		Resources res = getContext().getResources();
+		switch (scanner.getState()) {
+		case LibraryScanner.STATE_WALKING:
+			setSummary(res.getString(R.string.scan_walking, scanner.getDirCount(), scanner.getFileCount(), scanner.getFilesPerSecond()));
+			setEnabled(false);
+			break;
+		case LibraryScanner.STATE_SCANNING:
+			setSummary(res.getString(R.string.scan_updating, scanner.getScannedCount(), scanner.getChangedCount()));
+			setEnabled(false);
+			break;
+		case LibraryScanner.STATE_DONE:
+			if (scanner.isVolumeRescan())
+				setSummary(res.getString(R.string.scan_volume, scanner.getFileCount()));
+			else
+				setSummary(res.getString(R.string.scan_finished, scanner.getFileCount(), scanner.getChangedCount(), scanner.getElapsedTime() / 1000f));
+			setEnabled(true);
+			scanner.setListener(null);
+			break;
+		}
 	}
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A playlist whose songs are chosen by a set of rules rather than stored
+ * in the MediaStore.
+ *
+ * Rules are written as a list of terms separated by spaces, all of which
+ * must match, e.g. <code>artist:beatles year&lt;1970 duration&gt;180</code>.
+ * Each term is a field, an operator and a value. Values containing spaces
+ * must be quoted; several values may be separated by commas, in which case
+ * any of them may match (or, for !=, none may match).
+ *
+ * The rules are compiled once when the playlist is created, so matching a
+ * song does no parsing or allocation. See {@link SmartPlaylistIndex} for
+ * how the rules are evaluated against the library.
+ */
+public final class SmartPlaylist {
+	/**
+	 * Artist name. Supports :, = and !=.
+	 */
+	public static final int FIELD_ARTIST = 0;
+	/**
+	 * Album name. Supports :, = and !=.
+	 */
+	public static final int FIELD_ALBUM = 1;
+	/**
+	 * Song title. Supports :, = and !=.
+	 */
+	public static final int FIELD_TITLE = 2;
+	/**
+	 * Genre name. Supports :, = and !=, all of which compare the whole name.
+	 */
+	public static final int FIELD_GENRE = 3;
+	/**
+	 * File path. Supports : and =, which match a path prefix, and !=.
+	 */
+	public static final int FIELD_PATH = 4;
+	/**
+	 * Release year. Supports all operators.
+	 */
+	public static final int FIELD_YEAR = 5;
+	/**
+	 * Duration, in seconds. Supports all operators.
+	 */
+	public static final int FIELD_DURATION = 6;
+	/**
+	 * Days since the song was added to the library. Supports all operators.
+	 */
+	public static final int FIELD_ADDED = 7;
+
+	/**
+	 * The names of the fields, indexed by FIELD_*.
+	 */
+	private static final String[] FIELD_NAMES = { "artist", "album", "title", "genre", "path", "year", "duration", "added" };
+
+	/**
+	 * Matches if the field contains any of the values (or, for numbers,
+	 * equals any of them).
+	 */
+	private static final int OP_CONTAINS = 0;
+	/**
+	 * Matches if the field equals any of the values.
+	 */
+	private static final int OP_EQUALS = 1;
+	/**
+	 * Matches if the field equals none of the values.
+	 */
+	private static final int OP_NOT_EQUALS = 2;
+	private static final int OP_LESS = 3;
+	private static final int OP_LESS_EQUAL = 4;
+	private static final int OP_GREATER = 5;
+	private static final int OP_GREATER_EQUAL = 6;
+
+	/**
+	 * The operators, indexed by OP_*.
+	 */
+	private static final String[] OP_NAMES = { ":", "=", "!=", "<", "<=", ">", ">=" };
+
+	/**
+	 * Matches one term: a field name, an operator and a possibly quoted
+	 * value.
+	 */
+	private static final Pattern TERM = Pattern.compile("(\\w+)\\s*(!=|<=|>=|[:=<>])\\s*(\"[^\"]*\"|[^\\s\"]+)");
+
+	/**
+	 * A compiled term.
+	 */
+	private static final class Rule {
+		public final int field;
+		public final int op;
+		/**
+		 * The values of text fields, lower case.
+		 */
+		public final String[] text;
+		/**
+		 * The values of numeric fields.
+		 */
+		public final long[] numbers;
+
+		public Rule(int field, int op, String[] text, long[] numbers)
+		{
+			this.field = field;
+			this.op = op;
+			this.text = text;
+			this.numbers = numbers;
+		}
+
+		/**
+		 * Returns the relative cost of evaluating this rule. Cheap rules are
+		 * evaluated first so most songs are rejected without string
+		 * comparisons.
+		 */
+		public int getCost()
+		{
+			if (numbers != null)
+				return 0;
+			if (field == FIELD_GENRE)
+				return 1;
+			return 2;
+		}
+	}
+
+	/**
+	 * Sorts rules by cost.
+	 */
+	private static final Comparator<Rule> COST_ORDER = new Comparator<Rule>() {
+		@Override
+		public int compare(Rule a, Rule b)
+		{
+			return a.getCost() - b.getCost();
+		}
+	};
+
+	/**
+	 * The id of this playlist. Always negative, so it can not collide with
+	 * MediaStore playlist ids.
+	 */
+	public final long id;
+	/**
+	 * The name of this playlist.
+	 */
+	public final String name;
+	/**
+	 * The rules, as entered by the user.
+	 */
+	public final String rules;
+	/**
+	 * The compiled rules, cheapest first.
+	 */
+	private final Rule[] mRules;
+	/**
+	 * The lower case genre names referenced by the rules.
+	 */
+	private final String[] mGenres;
+
+	/**
+	 * Create a smart playlist, compiling its rules.
+	 *
+	 * @param id The id of the playlist. Must be negative.
+	 * @param name The name of the playlist.
+	 * @param rules The rules, in the syntax described above.
+	 * @throws IllegalArgumentException If the rules are not valid.
+	 */
+	public SmartPlaylist(long id, String name, String rules)
+	{
+		this.id = id;
+		this.name = name;
+		this.rules = rules;
+		mRules = compile(rules);
+		Arrays.sort(mRules, COST_ORDER);
+
+		ArrayList<String> genres = new ArrayList<String>();
+		for (Rule rule : mRules) {
+			if (rule.field == FIELD_GENRE) {
+				for (String genre : rule.text)
+					genres.add(genre);
+			}
+		}
+		mGenres = genres.toArray(new String[genres.size()]);
+	}
+
+	/**
+	 * Parse the given rules.
+	 *
+	 * @throws IllegalArgumentException If the rules are not valid.
+	 */
+	private static Rule[] compile(String rules)
+	{
+		ArrayList<Rule> result = new ArrayList<Rule>();
+		Matcher matcher = TERM.matcher(rules);
+		int end = 0;
+		while (matcher.find()) {
+			if (rules.substring(end, matcher.start()).trim().length() != 0)
+				throw new IllegalArgumentException("Unexpected text: " + rules.substring(end, matcher.start()).trim());
+			end = matcher.end();
+
+			int field = indexOf(FIELD_NAMES, matcher.group(1).toLowerCase());
+			if (field == -1)
+				throw new IllegalArgumentException("Unknown field: " + matcher.group(1));
+			int op = indexOf(OP_NAMES, matcher.group(2));
+
+			String value = matcher.group(3);
+			if (value.charAt(0) == '"')
+				value = value.substring(1, value.length() - 1);
+			String[] values = value.split(",");
+
+			if (field >= FIELD_YEAR) {
+				if (values.length != 1 && op > OP_NOT_EQUALS)
+					throw new IllegalArgumentException("Only one value may be compared with " + OP_NAMES[op]);
+				long[] numbers = new long[values.length];
+				for (int i = values.length; --i != -1; ) {
+					try {
+						numbers[i] = Long.parseLong(values[i].trim());
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Not a number: " + values[i]);
+					}
+				}
+				result.add(new Rule(field, op, null, numbers));
+			} else {
+				if (op > OP_NOT_EQUALS)
+					throw new IllegalArgumentException(FIELD_NAMES[field] + " can not be compared with " + OP_NAMES[op]);
+				for (int i = values.length; --i != -1; )
+					values[i] = values[i].trim().toLowerCase();
+				result.add(new Rule(field, op, values, null));
+			}
+		}
+
+		if (rules.substring(end).trim().length() != 0)
+			throw new IllegalArgumentException("Unexpected text: " + rules.substring(end).trim());
+		if (result.isEmpty())
+			throw new IllegalArgumentException("No rules");
+		return result.toArray(new Rule[result.size()]);
+	}
+
+	private static int indexOf(String[] array, String value)
+	{
+		for (int i = array.length; --i != -1; ) {
+			if (array[i].equals(value))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the lower case names of the genres referenced by the rules.
+	 */
+	public String[] getGenres()
+	{
+		return mGenres;
+	}
+
+	/**
+	 * Returns true if the rules reference genres. Genre membership is stored
+	 * apart from the songs, so these playlists must be fully re-evaluated
+	 * when the genres change.
+	 */
+	public boolean usesGenres()
+	{
+		return mGenres.length != 0;
+	}
+
+	/**
+	 * Returns true if the rules depend on the current date. The members of
+	 * these playlists change as time passes, so they must be re-evaluated
+	 * when the day changes rather than carried over.
+	 */
+	public boolean usesTime()
+	{
+		for (Rule rule : mRules) {
+			if (rule.field == FIELD_ADDED)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the song at the given row of the snapshot matches all
+	 * the rules.
+	 *
+	 * @param library The library snapshot.
+	 * @param row The row of the song in the snapshot.
+	 * @param today The current day, in days since the epoch.
+	 */
+	boolean matches(SmartPlaylistIndex.Snapshot library, int row, long today)
+	{
+		for (Rule rule : mRules) {
+			boolean match;
+			switch (rule.field) {
+			case FIELD_ARTIST:
+				match = matchText(rule, library.artists[row]);
+				break;
+			case FIELD_ALBUM:
+				match = matchText(rule, library.albums[row]);
+				break;
+			case FIELD_TITLE:
+				match = matchText(rule, library.titles[row]);
+				break;
+			case FIELD_PATH:
+				match = matchPath(rule, library.paths[row]);
+				break;
+			case FIELD_GENRE:
+				match = matchGenre(rule, library, library.ids[row]);
+				break;
+			case FIELD_YEAR:
+				match = matchNumber(rule, library.years[row]);
+				break;
+			case FIELD_DURATION:
+				match = matchNumber(rule, library.durations[row] / 1000);
+				break;
+			case FIELD_ADDED:
+				// Count whole days so the result only changes when the day
+				// does.
+				match = matchNumber(rule, today - library.added[row] / 86400);
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+			if (!match)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean matchText(Rule rule, String value)
+	{
+		if (value == null)
+			return rule.op == OP_NOT_EQUALS;
+
+		boolean found = false;
+		for (String text : rule.text) {
+			if (rule.op == OP_CONTAINS ? value.indexOf(text) != -1 : value.equals(text)) {
+				found = true;
+				break;
+			}
+		}
+		return found != (rule.op == OP_NOT_EQUALS);
+	}
+
+	private static boolean matchPath(Rule rule, String value)
+	{
+		if (value == null)
+			return rule.op == OP_NOT_EQUALS;
+
+		boolean found = false;
+		for (String text : rule.text) {
+			if (value.startsWith(text)) {
+				found = true;
+				break;
+			}
+		}
+		return found != (rule.op == OP_NOT_EQUALS);
+	}
+
+	private static boolean matchGenre(Rule rule, SmartPlaylistIndex.Snapshot library, long id)
+	{
+		boolean found = false;
+		for (String genre : rule.text) {
+			LongHashSet members = library.genres.get(genre);
+			if (members != null && members.contains(id)) {
+				found = true;
+				break;
+			}
+		}
+		return found != (rule.op == OP_NOT_EQUALS);
+	}
+
+	private static boolean matchNumber(Rule rule, long value)
+	{
+		long[] numbers = rule.numbers;
+		switch (rule.op) {
+		case OP_CONTAINS:
+		case OP_EQUALS:
+		case OP_NOT_EQUALS: {
+			boolean found = false;
+			for (long number : numbers) {
+				if (value == number) {
+					found = true;
+					break;
+				}
+			}
+			return found != (rule.op == OP_NOT_EQUALS);
+		}
+		case OP_LESS:
+			return value < numbers[0];
+		case OP_LESS_EQUAL:
+			return value <= numbers[0];
+		case OP_GREATER:
+			return value > numbers[0];
+		case OP_GREATER_EQUAL:
+			return value >= numbers[0];
+		default:
+			throw new IllegalStateException();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.app.Dialog;
+import android.content.Context;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+
+/**
+ * Dialog to create or edit a smart playlist. Has EditTexts for the name and
+ * the rules, and two buttons, create (or save) and cancel. The rules are
+ * compiled as they are typed; the create button is disabled and the error
+ * shown while they are invalid.
+ */
+public class SmartPlaylistDialog extends Dialog implements TextWatcher, View.OnClickListener {
+	/**
+	 * The create/save button.
+	 */
+	private Button mPositiveButton;
+	/**
+	 * The name entry view.
+	 */
+	private EditText mName;
+	/**
+	 * The rules entry view.
+	 */
+	private EditText mRules;
+	/**
+	 * Shows the syntax of the rules, or the error in the current rules.
+	 */
+	private TextView mError;
+	/**
+	 * Whether the dialog has been accepted.
+	 */
+	private boolean mAccepted;
+	/**
+	 * The playlist being edited, or null if a new playlist is being created.
+	 */
+	private final SmartPlaylist mPlaylist;
+
+	/**
+	 * Create a SmartPlaylistDialog.
+	 *
+	 * @param context A Context to use.
+	 * @param playlist The playlist to edit, or null to create a new one.
+	 */
+	public SmartPlaylistDialog(Context context, SmartPlaylist playlist)
+	{
+		super(context);
+		mPlaylist = playlist;
+	}
+
+	@Override
+	protected void onCreate(Bundle state)
+	{
+		super.onCreate(state);
+
+		getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_VISIBLE);
+
+		setContentView(R.layout.smart_playlist_dialog);
+
+		setTitle(mPlaylist == null ? R.string.new_smart_playlist : R.string.edit_smart_playlist);
+
+		mPositiveButton = (Button)findViewById(R.id.create);
+		mPositiveButton.setOnClickListener(this);
+		mPositiveButton.setText(mPlaylist == null ? R.string.create : R.string.save);
+		View negativeButton = findViewById(R.id.cancel);
+		negativeButton.setOnClickListener(this);
+
+		mError = (TextView)findViewById(R.id.error);
+		mName = (EditText)findViewById(R.id.playlist_name);
+		mRules = (EditText)findViewById(R.id.rules);
+		if (mPlaylist != null) {
+			mName.setText(mPlaylist.name);
+			mRules.setText(mPlaylist.rules);
+		}
+		mName.addTextChangedListener(this);
+		mRules.addTextChangedListener(this);
+		mName.requestFocus();
+		validate();
+	}
+
+	/**
+	 * Enable the positive button if the name is not empty and the rules
+	 * compile, showing the compile error otherwise.
+	 */
+	private void validate()
+	{
+		boolean valid = mName.getText().toString().trim().length() != 0;
+		String rules = getRules();
+		if (rules.length() == 0) {
+			valid = false;
+			mError.setText(R.string.smart_playlist_rules_help);
+		} else {
+			try {
+				new SmartPlaylist(-1, "", rules);
+				mError.setText(R.string.smart_playlist_rules_help);
+			} catch (IllegalArgumentException e) {
+				valid = false;
+				mError.setText(e.getMessage());
+			}
+		}
+		mPositiveButton.setEnabled(valid);
+	}
+
+	/**
+	 * Returns the id of the playlist being edited, or 0 if a new playlist is
+	 * being created.
+	 */
+	public long getPlaylistId()
+	{
+		return mPlaylist == null ? 0 : mPlaylist.id;
+	}
+
+	/**
+	 * Returns the name currently entered in the dialog.
+	 */
+	public String getName()
+	{
+		return mName.getText().toString().trim();
+	}
+
+	/**
+	 * Returns the rules currently entered in the dialog.
+	 */
+	public String getRules()
+	{
+		return mRules.getText().toString().trim();
+	}
+
+	public void afterTextChanged(Editable s)
+	{
+		validate();
+	}
+
+	public void beforeTextChanged(CharSequence s, int start, int count, int after)
+	{
+		// do nothing
+	}
+
+	public void onTextChanged(CharSequence text, int start, int before, int count)
+	{
+		// do nothing
+	}
+
+	/**
+	 * Returns whether the dialog has been accepted. The dialog is accepted
+	 * when the create/save button is clicked.
+	 */
+	public boolean isAccepted()
+	{
+		return mAccepted;
+	}
+
+	public void onClick(View view)
+	{
+		switch (view.getId()) {
+		case R.id.create:
+			mAccepted = true;
+			// fall through
+		case R.id.cancel:
+			dismiss();
+			break;
+		}
+	}
+}
@@ -0,0 +1,744 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stores the smart playlists and evaluates them against an in-memory
+ * snapshot of the library.
+ *
+ * The snapshot holds the fields the rules can refer to for every song. When
+ * the MediaStore changes, only the ids and modification times of the songs
+ * are queried; full rows are fetched only for songs that are new or
+ * modified, and only those songs are re-evaluated. The members of each
+ * playlist are kept as a bit set over the snapshot rows, so listing or
+ * playing a smart playlist needs no query beyond fetching its songs.
+ */
+public final class SmartPlaylistIndex {
+	/**
+	 * The id given to the first smart playlist. Ids count down from here,
+	 * clear of LibraryAdapter.HEADER_ID and INVALID_ID.
+	 */
+	private static final long FIRST_ID = -100;
+	/**
+	 * Identifies the file format of the playlist definitions.
+	 */
+	private static final int MAGIC = 0x56535031;
+	/**
+	 * The number of ids in each "_id IN" query used to fetch changed rows.
+	 */
+	private static final int FETCH_CHUNK_SIZE = 500;
+	/**
+	 * The largest number of ids written into an "_id IN" selection by
+	 * {@link #query(ContentResolver, long, Uri, String[], String, String[], String)}.
+	 * Larger playlists are filtered from a query of all songs instead.
+	 */
+	private static final int MAX_INLINE_IDS = 1000;
+
+	/**
+	 * Columns queried to detect changes.
+	 */
+	private static final String[] CHANGE_PROJECTION = { MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED };
+	/**
+	 * Columns queried for new and changed songs.
+	 */
+	private static final String[] ROW_PROJECTION = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.DATE_MODIFIED,
+		MediaStore.Audio.Media.ARTIST,
+		MediaStore.Audio.Media.ALBUM,
+		MediaStore.Audio.Media.TITLE,
+		MediaStore.Audio.Media.DATA,
+		MediaStore.Audio.Media.YEAR,
+		MediaStore.Audio.Media.DURATION,
+		MediaStore.Audio.Media.DATE_ADDED,
+	};
+
+	/**
+	 * The fields of every song in the library, sorted by id. Text fields
+	 * are lower case.
+	 */
+	static final class Snapshot {
+		public final long[] ids;
+		public final long[] modified;
+		public final String[] artists;
+		public final String[] albums;
+		public final String[] titles;
+		public final String[] paths;
+		public final int[] years;
+		public final long[] durations;
+		public final long[] added;
+		/**
+		 * The members of the genres referenced by the rules, keyed by lower
+		 * case genre name.
+		 */
+		public final HashMap<String, LongHashSet> genres = new HashMap<String, LongHashSet>();
+
+		public Snapshot(int count)
+		{
+			ids = new long[count];
+			modified = new long[count];
+			artists = new String[count];
+			albums = new String[count];
+			titles = new String[count];
+			paths = new String[count];
+			years = new int[count];
+			durations = new long[count];
+			added = new long[count];
+		}
+
+		/**
+		 * Copy a row of the given snapshot to a row of this one.
+		 */
+		public void copy(Snapshot from, int fromRow, int to)
+		{
+			ids[to] = from.ids[fromRow];
+			modified[to] = from.modified[fromRow];
+			artists[to] = from.artists[fromRow];
+			albums[to] = from.albums[fromRow];
+			titles[to] = from.titles[fromRow];
+			paths[to] = from.paths[fromRow];
+			years[to] = from.years[fromRow];
+			durations[to] = from.durations[fromRow];
+			added[to] = from.added[fromRow];
+		}
+
+		/**
+		 * Fill a row from the current row of a cursor queried with
+		 * ROW_PROJECTION. The id of the row is not changed.
+		 */
+		public void fill(Cursor cursor, int row)
+		{
+			modified[row] = cursor.getLong(1);
+			artists[row] = lower(cursor.getString(2));
+			albums[row] = lower(cursor.getString(3));
+			titles[row] = lower(cursor.getString(4));
+			paths[row] = lower(cursor.getString(5));
+			years[row] = cursor.getInt(6);
+			durations[row] = cursor.getLong(7);
+			added[row] = cursor.getLong(8);
+		}
+
+		private static String lower(String value)
+		{
+			return value == null ? null : value.toLowerCase();
+		}
+	}
+
+	/**
+	 * The index, or null if it has not been loaded yet.
+	 */
+	private static SmartPlaylistIndex sInstance;
+	/**
+	 * Incremented each time the MediaStore changes.
+	 */
+	private static int sGeneration;
+
+	/**
+	 * The file the playlist definitions are stored in.
+	 */
+	private final File mFile;
+	/**
+	 * The playlists, sorted by name. Modified only while synchronized on
+	 * this index; may be read without locking, so the UI thread does not
+	 * wait while the snapshot is updated.
+	 */
+	private final CopyOnWriteArrayList<SmartPlaylist> mPlaylists = new CopyOnWriteArrayList<SmartPlaylist>();
+	/**
+	 * The members of each playlist, as bits over the rows of mSnapshot,
+	 * keyed by playlist id. A playlist without an entry must be evaluated.
+	 */
+	private final HashMap<Long, BitSet> mMembers = new HashMap<Long, BitSet>();
+	/**
+	 * The library snapshot, or null if it has not been loaded yet.
+	 */
+	private Snapshot mSnapshot;
+	/**
+	 * The value of sGeneration mSnapshot was loaded at.
+	 */
+	private int mGeneration;
+	/**
+	 * The day, in days since the epoch, the members of playlists that
+	 * depend on the date were evaluated on.
+	 */
+	private long mDay;
+	/**
+	 * The next id to give a new playlist.
+	 */
+	private long mNextId = FIRST_ID;
+
+	/**
+	 * Sorts playlists by name.
+	 */
+	private static final Comparator<SmartPlaylist> NAME_ORDER = new Comparator<SmartPlaylist>() {
+		@Override
+		public int compare(SmartPlaylist a, SmartPlaylist b)
+		{
+			return a.name.compareToIgnoreCase(b.name);
+		}
+	};
+
+	private SmartPlaylistIndex(Context context)
+	{
+		mFile = new File(context.getFilesDir(), "smart_playlists");
+		load();
+	}
+
+	/**
+	 * Returns the index, loading the playlist definitions if necessary.
+	 *
+	 * @param context A context to use.
+	 */
+	public static synchronized SmartPlaylistIndex get(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new SmartPlaylistIndex(context.getApplicationContext());
+		return sInstance;
+	}
+
+	/**
+	 * Returns the index if it has been loaded by {@link #get(Context)}, or
+	 * null otherwise.
+	 */
+	public static synchronized SmartPlaylistIndex peek()
+	{
+		return sInstance;
+	}
+
+	/**
+	 * Mark the library snapshot as outdated. It will be updated the next time
+	 * playlist members are requested. Call when the MediaStore changes.
+	 */
+	public static synchronized void onMediaChange()
+	{
+		++sGeneration;
+	}
+
+	/**
+	 * Load the playlist definitions from mFile.
+	 */
+	private void load()
+	{
+		if (!mFile.exists())
+			return;
+
+		ArrayList<SmartPlaylist> playlists = new ArrayList<SmartPlaylist>();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(mFile));
+			if (in.readInt() != MAGIC)
+				throw new IOException("Invalid smart playlist file");
+			for (int i = in.readInt(); --i >= 0; ) {
+				long id = in.readLong();
+				String name = in.readUTF();
+				String rules = in.readUTF();
+				try {
+					playlists.add(new SmartPlaylist(id, name, rules));
+				} catch (IllegalArgumentException e) {
+					Log.w("VanillaMusic", "Dropping invalid smart playlist " + name, e);
+				}
+				if (id <= mNextId)
+					mNextId = id - 1;
+			}
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to load smart playlists", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		Collections.sort(playlists, NAME_ORDER);
+		mPlaylists.addAll(playlists);
+	}
+
+	/**
+	 * Write the playlist definitions to mFile.
+	 */
+	private void save()
+	{
+		File temp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(temp));
+			out.writeInt(MAGIC);
+			out.writeInt(mPlaylists.size());
+			for (SmartPlaylist playlist : mPlaylists) {
+				out.writeLong(playlist.id);
+				out.writeUTF(playlist.name);
+				out.writeUTF(playlist.rules);
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(mFile))
+				throw new IOException("Failed to rename " + temp);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to save smart playlists", e);
+			temp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the playlist with the given id, or null if there is none.
+	 */
+	public SmartPlaylist getPlaylist(long id)
+	{
+		for (SmartPlaylist playlist : mPlaylists) {
+			if (playlist.id == id)
+				return playlist;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a cursor with _id and name columns listing the playlists whose
+	 * names contain all the words in the given constraint, sorted by name.
+	 *
+	 * @param projection The columns of the cursor. The first must be the id
+	 * and the second the name.
+	 * @param constraint The words to filter by. May be null.
+	 */
+	public Cursor queryPlaylists(String[] projection, String constraint)
+	{
+		String[] needles = null;
+		if (constraint != null && constraint.length() != 0)
+			needles = constraint.toLowerCase().split("\\s+");
+
+		MatrixCursor cursor = new MatrixCursor(projection, mPlaylists.size());
+		Object[] row = new Object[projection.length];
+		outer:
+		for (SmartPlaylist playlist : mPlaylists) {
+			if (needles != null) {
+				String name = playlist.name.toLowerCase();
+				for (String needle : needles) {
+					if (name.indexOf(needle) == -1)
+						continue outer;
+				}
+			}
+			row[0] = playlist.id;
+			row[1] = playlist.name;
+			cursor.addRow(row);
+		}
+		return cursor;
+	}
+
+	/**
+	 * Create or replace a playlist.
+	 *
+	 * @param id The id of the playlist to replace, or 0 to create a new one.
+	 * @param name The name of the playlist.
+	 * @param rules The rules of the playlist.
+	 * @return The id of the playlist.
+	 * @throws IllegalArgumentException If the rules are not valid.
+	 */
+	public synchronized long putPlaylist(long id, String name, String rules)
+	{
+		if (id == 0)
+			id = mNextId--;
+		SmartPlaylist playlist = new SmartPlaylist(id, name, rules);
+		removePlaylistLocked(id);
+		int i = 0;
+		int n = mPlaylists.size();
+		while (i != n && NAME_ORDER.compare(mPlaylists.get(i), playlist) <= 0)
+			++i;
+		mPlaylists.add(i, playlist);
+		// The snapshot only holds the genres referenced by the old rules.
+		if (playlist.usesGenres())
+			mGeneration = -1;
+		save();
+		return id;
+	}
+
+	/**
+	 * Delete the playlist with the given id.
+	 */
+	public synchronized void removePlaylist(long id)
+	{
+		if (removePlaylistLocked(id))
+			save();
+	}
+
+	private boolean removePlaylistLocked(long id)
+	{
+		mMembers.remove(id);
+		for (int i = mPlaylists.size(); --i != -1; ) {
+			if (mPlaylists.get(i).id == id) {
+				mPlaylists.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the ids of the songs in the given playlist, updating the
+	 * snapshot first if the MediaStore has changed. Should be called on a
+	 * background thread.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @param id The id of the playlist.
+	 * @return The song ids, in ascending order. Empty if there is no
+	 * playlist with the given id.
+	 */
+	public synchronized long[] getMembers(ContentResolver resolver, long id)
+	{
+		SmartPlaylist playlist = getPlaylist(id);
+		if (playlist == null)
+			return new long[0];
+
+		int generation;
+		synchronized (SmartPlaylistIndex.class) {
+			generation = sGeneration;
+		}
+		if (mSnapshot == null || generation != mGeneration) {
+			if (update(resolver))
+				mGeneration = generation;
+		}
+
+		Snapshot snapshot = mSnapshot;
+		if (snapshot == null)
+			return new long[0];
+
+		long today = getToday();
+		if (today != mDay) {
+			for (SmartPlaylist timed : mPlaylists) {
+				if (timed.usesTime())
+					mMembers.remove(timed.id);
+			}
+			mDay = today;
+		}
+
+		BitSet members = mMembers.get(id);
+		if (members == null) {
+			members = evaluate(playlist, snapshot, null, null);
+			mMembers.put(id, members);
+		}
+
+		long[] ids = new long[members.cardinality()];
+		int n = 0;
+		for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1))
+			ids[n++] = snapshot.ids[i];
+		return ids;
+	}
+
+	/**
+	 * Returns the current day, in days since the epoch.
+	 */
+	private static long getToday()
+	{
+		return System.currentTimeMillis() / 1000 / 86400;
+	}
+
+	/**
+	 * Query the songs of the given playlist. Small playlists are queried with
+	 * an "_id IN (...)" selection. For larger ones, that selection could
+	 * approach SQLite's statement size limit, so all songs are queried
+	 * instead and the members copied into a MatrixCursor.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @param id The id of the playlist.
+	 * @param uri The media table URI to query.
+	 * @param projection The columns to query.
+	 * @param selection An additional selection, or null.
+	 * @param selectionArgs Arguments for selection.
+	 * @param sort The sort order.
+	 * @return The cursor, or null if the query failed.
+	 */
+	public Cursor query(ContentResolver resolver, long id, Uri uri, String[] projection, String selection, String[] selectionArgs, String sort)
+	{
+		long[] ids = getMembers(resolver, id);
+
+		StringBuilder builder = new StringBuilder();
+		if (ids.length <= MAX_INLINE_IDS) {
+			if (ids.length == 0) {
+				builder.append('0');
+			} else {
+				builder.append(MediaStore.Audio.Media._ID);
+				builder.append(" IN (");
+				for (int i = 0; i != ids.length; ++i) {
+					if (i != 0)
+						builder.append(',');
+					builder.append(ids[i]);
+				}
+				builder.append(')');
+			}
+		} else {
+			builder.append("is_music!=0");
+		}
+		if (selection != null) {
+			builder.append(" AND (");
+			builder.append(selection);
+			builder.append(')');
+		}
+
+		if (ids.length <= MAX_INLINE_IDS)
+			return resolver.query(uri, projection, builder.toString(), selectionArgs, sort);
+
+		String[] columns = projection;
+		int idColumn = -1;
+		for (int i = projection.length; --i != -1; ) {
+			if (MediaStore.Audio.Media._ID.equals(projection[i]))
+				idColumn = i;
+		}
+		if (idColumn == -1) {
+			idColumn = projection.length;
+			columns = new String[projection.length + 1];
+			System.arraycopy(projection, 0, columns, 0, projection.length);
+			columns[idColumn] = MediaStore.Audio.Media._ID;
+		}
+
+		Cursor cursor = resolver.query(uri, columns, builder.toString(), selectionArgs, sort);
+		if (cursor == null)
+			return null;
+
+		MatrixCursor result = new MatrixCursor(projection, ids.length);
+		Object[] row = new Object[projection.length];
+		while (cursor.moveToNext()) {
+			if (Arrays.binarySearch(ids, cursor.getLong(idColumn)) < 0)
+				continue;
+			for (int i = 0; i != row.length; ++i)
+				row[i] = cursor.getString(i);
+			result.addRow(row);
+		}
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Evaluate a playlist against the snapshot.
+	 *
+	 * @param playlist The playlist to evaluate.
+	 * @param snapshot The snapshot to evaluate against.
+	 * @param previous The members of the playlist in the previous snapshot,
+	 * or null to evaluate every row.
+	 * @param oldRows For each row of snapshot, the row the song had in the
+	 * previous snapshot, or -1 if it is new or changed. Ignored if previous
+	 * is null.
+	 * @return The members of the playlist.
+	 */
+	private static BitSet evaluate(SmartPlaylist playlist, Snapshot snapshot, BitSet previous, int[] oldRows)
+	{
+		long today = getToday();
+		int count = snapshot.ids.length;
+		BitSet members = new BitSet(count);
+		for (int i = 0; i != count; ++i) {
+			boolean match;
+			if (previous != null && oldRows[i] != -1)
+				match = previous.get(oldRows[i]);
+			else
+				match = playlist.matches(snapshot, i, today);
+			if (match)
+				members.set(i);
+		}
+		return members;
+	}
+
+	/**
+	 * Bring the snapshot and the playlist members up to date with the
+	 * MediaStore.
+	 *
+	 * @return True if the snapshot was updated, false if the MediaStore
+	 * could not be queried.
+	 */
+	private boolean update(ContentResolver resolver)
+	{
+		Snapshot old = mSnapshot;
+		Snapshot snapshot;
+		int[] oldRows = null;
+
+		if (old == null) {
+			Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, ROW_PROJECTION, "is_music!=0", null, MediaStore.Audio.Media._ID);
+			if (cursor == null)
+				return false;
+			snapshot = new Snapshot(cursor.getCount());
+			for (int i = 0; cursor.moveToNext(); ++i) {
+				snapshot.ids[i] = cursor.getLong(0);
+				snapshot.fill(cursor, i);
+			}
+			cursor.close();
+		} else {
+			Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, CHANGE_PROJECTION, "is_music!=0", null, MediaStore.Audio.Media._ID);
+			if (cursor == null)
+				return false;
+
+			int count = cursor.getCount();
+			snapshot = new Snapshot(count);
+			oldRows = new int[count];
+			long[] changed = new long[count];
+			int changedCount = 0;
+			int j = 0;
+			long[] oldIds = old.ids;
+			for (int i = 0; cursor.moveToNext(); ++i) {
+				long id = cursor.getLong(0);
+				long modified = cursor.getLong(1);
+				while (j != oldIds.length && oldIds[j] < id)
+					++j;
+				if (j != oldIds.length && oldIds[j] == id && old.modified[j] == modified) {
+					snapshot.copy(old, j, i);
+					oldRows[i] = j;
+				} else {
+					snapshot.ids[i] = id;
+					oldRows[i] = -1;
+					changed[changedCount++] = id;
+				}
+			}
+			cursor.close();
+
+			if (!fetchRows(resolver, snapshot, changed, changedCount))
+				return false;
+		}
+
+		loadGenres(resolver, snapshot);
+
+		HashMap<Long, BitSet> members = new HashMap<Long, BitSet>();
+		for (SmartPlaylist playlist : mPlaylists) {
+			BitSet previous = mMembers.get(playlist.id);
+			if (oldRows == null || playlist.usesGenres() || playlist.usesTime())
+				previous = null;
+			members.put(playlist.id, evaluate(playlist, snapshot, previous, oldRows));
+		}
+		mMembers.clear();
+		mMembers.putAll(members);
+		mSnapshot = snapshot;
+		return true;
+	}
+
+	/**
+	 * Query the full rows for the given song ids and fill them into the
+	 * snapshot.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 * @param snapshot The snapshot to fill. Its ids must already be set.
+	 * @param ids The ids to fetch, in ascending order.
+	 * @param count The number of ids to fetch.
+	 * @return False if the MediaStore could not be queried.
+	 */
+	private static boolean fetchRows(ContentResolver resolver, Snapshot snapshot, long[] ids, int count)
+	{
+		StringBuilder selection = new StringBuilder();
+		for (int start = 0; start < count; start += FETCH_CHUNK_SIZE) {
+			int end = Math.min(start + FETCH_CHUNK_SIZE, count);
+			selection.setLength(0);
+			selection.append(MediaStore.Audio.Media._ID);
+			selection.append(" IN (");
+			for (int i = start; i != end; ++i) {
+				if (i != start)
+					selection.append(',');
+				selection.append(ids[i]);
+			}
+			selection.append(')');
+
+			Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, ROW_PROJECTION, selection.toString(), null, null);
+			if (cursor == null)
+				return false;
+			while (cursor.moveToNext()) {
+				int row = Arrays.binarySearch(snapshot.ids, cursor.getLong(0));
+				if (row >= 0)
+					snapshot.fill(cursor, row);
+			}
+			cursor.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Load the members of the genres referenced by the playlists into the
+	 * snapshot.
+	 */
+	private void loadGenres(ContentResolver resolver, Snapshot snapshot)
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		for (SmartPlaylist playlist : mPlaylists) {
+			for (String genre : playlist.getGenres()) {
+				if (!names.contains(genre))
+					names.add(genre);
+			}
+		}
+		if (names.isEmpty())
+			return;
+
+		String[] projection = { MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME };
+		Cursor cursor = resolver.query(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI, projection, null, null, null);
+		if (cursor == null)
+			return;
+		ArrayList<Long> genreIds = new ArrayList<Long>();
+		ArrayList<String> genreNames = new ArrayList<String>();
+		while (cursor.moveToNext()) {
+			String name = cursor.getString(1);
+			if (name != null && names.contains(name.toLowerCase())) {
+				genreIds.add(cursor.getLong(0));
+				genreNames.add(name.toLowerCase());
+			}
+		}
+		cursor.close();
+
+		String[] memberProjection = { MediaStore.Audio.Genres.Members.AUDIO_ID };
+		for (int i = 0, n = genreIds.size(); i != n; ++i) {
+			QueryTask query = MediaUtils.buildGenreQuery(genreIds.get(i), memberProjection, null, null, null);
+			cursor = query.runQuery(resolver);
+			if (cursor == null)
+				continue;
+			String name = genreNames.get(i);
+			LongHashSet members = snapshot.genres.get(name);
+			if (members == null) {
+				members = new LongHashSet(cursor.getCount());
+				snapshot.genres.put(name, members);
+			}
+			while (cursor.moveToNext())
+				members.add(cursor.getLong(0));
+			cursor.close();
+		}
+	}
+}
@@ -22,7 +22,10 @@
 
 package org.kreed.vanilla;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
@@ -30,8 +33,11 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
-import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
 import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashSet;
 
 /**
  * Represents a Song backed by the MediaStore. Includes basic metadata and
@@ -85,34 +91,301 @@ public class Song implements Comparable<Song> {
 	};
 
 	/**
-	 * A cache of 6 MiB of covers.
+	 * The content URI for album art, by album id.
 	 */
-	private static class CoverCache extends LruCache<Long, Bitmap> {
-		private final Context mContext;
+	private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
 
-		public CoverCache(Context context)
+	/**
+	 * A cache of covers, keyed by album id. The size of the cache is chosen
+	 * by {@link Song#getCoverCacheSize(Context)}.
+	 */
+	private static class CoverCache extends StripedLruCache<Long, Bitmap> {
+		/**
+		 * Decodes a cover for a given song and size.
+		 */
+		private class Decoder implements StripedLruCache.Creator<Long, Bitmap> {
+			private final long mId;
+			private final int mWidth;
+			private final int mHeight;
+			/**
+			 * True once this decoder has been run.
+			 */
+			public boolean ran;
+
+			public Decoder(long id, int width, int height)
+			{
+				mId = id;
+				mWidth = width;
+				mHeight = height;
+			}
+
+			@Override
+			public Bitmap create(Long key, Bitmap stale)
+			{
+				ran = true;
+				return decode(key, mId, mWidth, mHeight, stale, true);
+			}
+		}
+
+		private final Context mContext;
+		/**
+		 * Album ids of the cached covers that were decoded at the full
+		 * resolution of the source image. These can not be improved on by
+		 * decoding again.
+		 */
+		private final HashSet<Long> mFullSize = new HashSet<Long>();
+		/**
+		 * Scratch bitmaps that covers were decoded into before being scaled
+		 * down to the requested size, to be decoded into again.
+		 */
+		private final BitmapPool mPool = new BitmapPool(2);
+		/**
+		 * Albums known to have no cover art.
+		 */
+		private final NoCoverCache mNoCover;
+
+		/**
+		 * Create a cache.
+		 *
+		 * @param context A context to use.
+		 * @param maxSize The maximum size of the cache, in bytes.
+		 */
+		public CoverCache(Context context, int maxSize)
 		{
-			super(6 * 1024 * 1024);
+			// One segment: the budget is only a few covers, so splitting it
+			// would leave each segment room for less than one.
+			super(maxSize, 1);
 			mContext = context;
+			mNoCover = new NoCoverCache(context);
 		}
 
-		@Override
-		public Bitmap create(Long key)
+		/**
+		 * Return the cover for the given album, decoding it if no large
+		 * enough cover is cached. If another thread is already decoding the
+		 * cover for the album, wait for that decode to finish and share its
+		 * result instead of decoding again.
+		 *
+		 * @param albumId The MediaStore id of the album.
+		 * @param songId The MediaStore id of a song in the album to decode the
+		 * cover from, or -1 to use the album art of the album itself.
+		 * @param width The width the cover will be displayed at.
+		 * @param height The height the cover will be displayed at.
+		 * @return The cover, or null if the album has no cover.
+		 */
+		public Bitmap getCover(long albumId, long songId, int width, int height)
+		{
+			Long key = albumId;
+
+			// Only getOrCreate() counts hits and misses, so each lookup is
+			// counted once.
+			Bitmap cover = peek(key);
+			if (cover == null && mNoCover.contains(key))
+				return null;
+			if (cover != null && isLargeEnough(key, cover, width, height))
+				cover = null;
+
+			Decoder decoder = new Decoder(songId, width, height);
+			while (true) {
+				cover = getOrCreate(key, cover, decoder);
+				if (cover == null || decoder.ran || isLargeEnough(key, cover, width, height))
+					return cover;
+				// Another thread decoded for a smaller size; decode again.
+			}
+		}
+
+		/**
+		 * Decode the cover for the given album without adding it to the
+		 * cache. Used for small covers that would otherwise push out the
+		 * large covers the playback screen needs.
+		 *
+		 * @param albumId The MediaStore id of the album.
+		 * @param songId The MediaStore id of a song in the album to decode the
+		 * cover from, or -1 to use the album art of the album itself.
+		 * @param width The width the cover will be displayed at.
+		 * @param height The height the cover will be displayed at.
+		 * @return The cover, or null if the album has no cover.
+		 */
+		public Bitmap decodeUncached(long albumId, long songId, int width, int height)
+		{
+			Long key = albumId;
+			if (mNoCover.contains(key))
+				return null;
+			return decode(key, songId, width, height, null, false);
+		}
+
+		/**
+		 * Returns true if the given cached cover is large enough to be scaled
+		 * down to fit in the given size, or can not be made any larger.
+		 */
+		private boolean isLargeEnough(Long key, Bitmap cover, int width, int height)
 		{
-			Uri uri =  Uri.parse("content://media/external/audio/media/" + key + "/albumart");
+			if (cover.getWidth() >= width || cover.getHeight() >= height)
+				return true;
+			synchronized (mFullSize) {
+				return mFullSize.contains(key);
+			}
+		}
+
+		/**
+		 * Decode the cover art for the song with the given id, as close as
+		 * possible to the given size. The result is added to the cache by
+		 * {@link StripedLruCache#getOrCreate(Object, Object, StripedLruCache.Creator)}.
+		 *
+		 * The image bounds are read first to choose an inSampleSize that
+		 * keeps the decoded image at least as large as needed. If the decoded
+		 * image is still much larger than needed, it is scaled down and the
+		 * full decode is kept in the pool for reuse.
+		 *
+		 * @param key The album id to cache the cover under.
+		 * @param id The MediaStore id of the song, or -1 to use the album art
+		 * of the album.
+		 * @param width The width the cover will be displayed at.
+		 * @param height The height the cover will be displayed at.
+		 * @param cached The currently cached cover, or null if none.
+		 * @param cache True if the result will be added to the cache.
+		 * @return The decoded cover, or null if the song has no cover.
+		 */
+		private Bitmap decode(Long key, long id, int width, int height, Bitmap cached, boolean cache)
+		{
+			Uri uri;
+			if (id == -1)
+				uri = ContentUris.withAppendedId(ALBUM_ART_URI, key);
+			else
+				uri = Uri.parse("content://media/external/audio/media/" + id + "/albumart");
 			ContentResolver res = mContext.getContentResolver();
 
+			ParcelFileDescriptor parcelFileDescriptor = null;
 			try {
-				ParcelFileDescriptor parcelFileDescriptor = res.openFileDescriptor(uri, "r");
-				if (parcelFileDescriptor != null) {
-					FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-					return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, BITMAP_OPTIONS);
+				parcelFileDescriptor = res.openFileDescriptor(uri, "r");
+				if (parcelFileDescriptor == null) {
+					mNoCover.add(key);
+					return null;
+				}
+				FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
+
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+				int sourceWidth = options.outWidth;
+				int sourceHeight = options.outHeight;
+				if (sourceWidth <= 0 || sourceHeight <= 0) {
+					mNoCover.add(key);
+					return null;
+				}
+
+				boolean sized = width > 0 && height > 0;
+				int sample = 1;
+				while (sized && (sourceWidth / (sample * 2) >= width || sourceHeight / (sample * 2) >= height))
+					sample *= 2;
+
+				if (sample == 1 && cached != null && cached.getWidth() == sourceWidth) {
+					// Already have the best we can get.
+					synchronized (mFullSize) {
+						mFullSize.add(key);
+					}
+					return cached;
+				}
+
+				options.inJustDecodeBounds = false;
+				options.inSampleSize = sample;
+				options.inPreferredConfig = Bitmap.Config.RGB_565;
+				options.inDither = false;
+
+				int decodedWidth = (sourceWidth + sample - 1) / sample;
+				int decodedHeight = (sourceHeight + sample - 1) / sample;
+				Bitmap bitmap = null;
+				if (BitmapPool.isSupported()) {
+					Bitmap reuse = mPool.get(decodedWidth, decodedHeight, sample != 1);
+					CompatHoneycomb.setReuseOptions(options, reuse);
+					if (reuse != null) {
+						try {
+							bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+						} catch (IllegalArgumentException e) {
+							// The pooled bitmap was not suitable after all.
+						}
+						if (bitmap == null)
+							CompatHoneycomb.setReuseOptions(options, null);
+					}
+				}
+				if (bitmap == null)
+					bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+				if (bitmap == null)
+					return null;
+
+				Bitmap cover = bitmap;
+				float scale = sized ? Math.min((float)width / bitmap.getWidth(), (float)height / bitmap.getHeight()) : 1.0f;
+				if (scale < 0.75f) {
+					int scaledWidth = Math.max(1, (int)(bitmap.getWidth() * scale));
+					int scaledHeight = Math.max(1, (int)(bitmap.getHeight() * scale));
+					cover = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+					if (cover != bitmap)
+						mPool.put(bitmap);
+				}
+
+				if (cache) {
+					synchronized (mFullSize) {
+						if (sample == 1 && cover == bitmap)
+							mFullSize.add(key);
+						else
+							mFullSize.remove(key);
+					}
 				}
+				return cover;
+			} catch (FileNotFoundException e) {
+				// no cover art for this album
+				mNoCover.add(key);
+				return null;
 			} catch (Exception e) {
 				// no cover art found
+				return null;
+			} finally {
+				if (parcelFileDescriptor != null) {
+					try {
+						parcelFileDescriptor.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
 			}
+		}
 
-			return null;
+		/**
+		 * Forget which albums have no cover art among those that changed in
+		 * the MediaStore.
+		 */
+		public void invalidateNoCover()
+		{
+			mNoCover.onMediaChange();
+		}
+
+		/**
+		 * Save any unsaved changes to the albums known to have no cover art.
+		 */
+		public void flushNoCover()
+		{
+			mNoCover.flush();
+		}
+
+		/**
+		 * Evict the least recently used covers until the cache is no larger
+		 * than the given size.
+		 *
+		 * @param size The size to trim to, in bytes.
+		 */
+		public void trim(int size)
+		{
+			mPool.clear();
+			trimToSize(size);
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue)
+		{
+			if (newValue == null) {
+				synchronized (mFullSize) {
+					mFullSize.remove(key);
+				}
+			}
 		}
 
 		@Override
@@ -127,6 +400,78 @@ public class Song implements Comparable<Song> {
 	 */
 	private static CoverCache sCoverCache = null;
 
+	/**
+	 * Returns the cover cache, creating it if needed.
+	 *
+	 * @param context A context to use.
+	 */
+	private static CoverCache getCoverCache(Context context)
+	{
+		synchronized (Song.class) {
+			if (sCoverCache == null) {
+				context = context.getApplicationContext();
+				sCoverCache = new CoverCache(context, getCoverCacheSize(context));
+			}
+			return sCoverCache;
+		}
+	}
+
+	/**
+	 * Choose the size of the cover cache for this device: an eighth of the
+	 * memory class, but at least enough for a few screen-sized covers and at
+	 * most a quarter of the memory class.
+	 *
+	 * @param context A context to use.
+	 * @return The size in bytes.
+	 */
+	private static int getCoverCacheSize(Context context)
+	{
+		ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+		int memory = am.getMemoryClass() * 1024 * 1024;
+		DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+		// RGB_565 covers: 2 bytes per pixel
+		int screen = metrics.widthPixels * metrics.heightPixels * 2;
+		return Math.min(Math.max(memory / 8, screen * 3), memory / 4);
+	}
+
+	/**
+	 * Release cached covers in response to memory pressure.
+	 *
+	 * @param level The level passed to
+	 * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}, or
+	 * TRIM_MEMORY_COMPLETE for onLowMemory().
+	 */
+	public static void trimCoverCache(int level)
+	{
+		CoverCache cache = sCoverCache;
+		if (cache == null)
+			return;
+
+		// Memory pressure may be followed by the process being killed, so
+		// write out the batched no-cover changes now.
+		cache.flushNoCover();
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			cache.trim(-1);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			cache.trim(cache.maxSize() / 2);
+		}
+	}
+
+	/**
+	 * Returns a human-readable summary of the cover cache statistics, for
+	 * the diagnostics screen.
+	 *
+	 * @param context A context to use.
+	 */
+	public static String getCoverCacheStats(Context context)
+	{
+		CoverCache cache = getCoverCache(context);
+		return String.format("Cover cache: %d KiB of %d KiB\nHits: %d\nMisses: %d\nCreates: %d\nPuts: %d\nEvictions: %d",
+			cache.size() / 1024, cache.maxSize() / 1024, cache.hitCount(), cache.missCount(),
+			cache.createCount(), cache.putCount(), cache.evictionCount());
+	}
+
 	/**
 	 * If true, will not attempt to load any cover art in getCover()
 	 */
@@ -235,33 +580,73 @@ public class Song implements Comparable<Song> {
 		return song.id;
 	}
 
-	static final BitmapFactory.Options BITMAP_OPTIONS = new BitmapFactory.Options();
-
-	static {
-		BITMAP_OPTIONS.inPreferredConfig = Bitmap.Config.RGB_565;
-		BITMAP_OPTIONS.inDither = false;
+	/**
+	 * Query the album art for this song, large enough to fill the screen.
+	 *
+	 * @param context A context to use.
+	 * @return The album art or null if no album art could be found
+	 */
+	public Bitmap getCover(Context context)
+	{
+		DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+		return getCover(context, metrics.widthPixels, metrics.heightPixels);
 	}
 
 	/**
-	 * Query the album art for this song.
+	 * Query the album art for this song. The returned bitmap will be at least
+	 * large enough to be scaled to fit in the given size (unless the source
+	 * image is smaller), though it may be larger.
+	 *
+	 * The returned bitmap is shared and must not be modified or recycled.
 	 *
 	 * @param context A context to use.
+	 * @param width The width the cover will be displayed at.
+	 * @param height The height the cover will be displayed at.
 	 * @return The album art or null if no album art could be found
 	 */
-	public Bitmap getCover(Context context)
+	public Bitmap getCover(Context context, int width, int height)
 	{
 		if (mDisableCoverArt || id == -1 || (flags & FLAG_NO_COVER) != 0)
 			return null;
 
-		if (sCoverCache == null)
-			sCoverCache = new CoverCache(context.getApplicationContext());
-
-		Bitmap cover = sCoverCache.get(id);
+		Bitmap cover = getCoverCache(context).getCover(albumId, id, width, height);
 		if (cover == null)
 			flags |= FLAG_NO_COVER;
 		return cover;
 	}
 
+	/**
+	 * Decode the album art for the given album. Unlike
+	 * {@link #getCover(Context, int, int)}, the result is not added to the
+	 * cover cache, so decoding many small covers does not evict the covers
+	 * in use elsewhere. The returned bitmap is owned by the caller.
+	 *
+	 * @param context A context to use.
+	 * @param albumId The MediaStore id of the album.
+	 * @param songId The MediaStore id of a song in the album, or -1 if not
+	 * known.
+	 * @param width The width the cover will be displayed at.
+	 * @param height The height the cover will be displayed at.
+	 * @return The album art or null if no album art could be found
+	 */
+	public static Bitmap decodeAlbumCover(Context context, long albumId, long songId, int width, int height)
+	{
+		if (mDisableCoverArt)
+			return null;
+		return getCoverCache(context).decodeUncached(albumId, songId, width, height);
+	}
+
+	/**
+	 * Called when the MediaStore changes. Forgets which of the changed albums
+	 * are known to have no cover art, since art may have been added.
+	 *
+	 * @param context A context to use.
+	 */
+	public static void onMediaChange(Context context)
+	{
+		getCoverCache(context).invalidateNoCover();
+	}
+
 	@Override
 	public String toString()
 	{
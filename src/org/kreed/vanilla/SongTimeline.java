@@ -528,6 +528,29 @@ public final class SongTimeline {
 		return song;
 	}
 
+	/**
+	 * Returns the songs within <code>radius</code> places of the current
+	 * position, for prefetching. Unlike {@link #getSong(int)}, this has no
+	 * side effects: random songs are not added and the end of the timeline is
+	 * not wrapped around.
+	 *
+	 * @param radius The number of songs to return on each side of the current
+	 * song.
+	 * @return An array of 2 * radius + 1 songs, with the current song at index
+	 * radius. Positions outside the timeline are null.
+	 */
+	public Song[] getSongWindow(int radius)
+	{
+		Song[] songs = new Song[radius * 2 + 1];
+		synchronized (this) {
+			ArrayList<Song> timeline = mSongs;
+			int start = mCurrentPos - radius;
+			for (int i = Math.max(0, -start), n = Math.min(songs.length, timeline.size() - start); i < n; ++i)
+				songs[i] = timeline.get(start + i);
+		}
+		return songs;
+	}
+
 	/**
 	 * Internal implementation for shiftCurrentSong. Does all the work except
 	 * broadcasting the timeline change: updates mCurrentPos and handles
@@ -602,6 +625,7 @@ public final class SongTimeline {
 
 		int count = cursor.getCount();
 		if (count == 0) {
+			cursor.close();
 			return 0;
 		}
 
@@ -671,6 +695,8 @@ public final class SongTimeline {
 				}
 			}
 
+			cursor.close();
+
 			if (mShuffleMode != SHUFFLE_NONE)
 				MediaUtils.shuffle(timeline.subList(start, timeline.size()), mShuffleMode == SHUFFLE_ALBUMS);
 
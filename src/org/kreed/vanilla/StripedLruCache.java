@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded LRU cache split into independently locked segments, so
+ * threads working on different keys rarely contend. Each segment evicts its
+ * own least recently used entries once it holds more than its share of the
+ * maximum size. An entry larger than a segment's share is still kept until
+ * another entry is added to the segment.
+ *
+ * Values can be created with {@link #getOrCreate(Object, Object, Creator)},
+ * which guarantees that only one thread creates the value for a key at a
+ * time; other threads asking for the same key wait for and share the result.
+ */
+public class StripedLruCache<K, V> {
+	/**
+	 * Creates values for {@link StripedLruCache#getOrCreate(Object, Object, Creator)}.
+	 */
+	public interface Creator<K, V> {
+		/**
+		 * Create the value for the given key. Called without any locks held.
+		 *
+		 * @param key The key to create the value for.
+		 * @param stale The value currently cached, which the caller asked to
+		 * replace, or null if none.
+		 * @return The new value, or null if none could be created. A non-null
+		 * value is added to the cache.
+		 */
+		V create(K key, V stale);
+	}
+
+	/**
+	 * A value being created. Threads waiting for the value wait on this
+	 * object.
+	 */
+	private static final class Pending<V> {
+		/**
+		 * True once creation has finished.
+		 */
+		public boolean done;
+		/**
+		 * The created value, or null if none was created.
+		 */
+		public V value;
+	}
+
+	/**
+	 * An entry removed from a segment, to be passed to entryRemoved once the
+	 * segment lock is released.
+	 */
+	private static final class Evicted<K, V> {
+		public final K key;
+		public final V value;
+
+		public Evicted(K key, V value)
+		{
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * One independently locked part of the cache. All fields are guarded by
+	 * the segment's monitor.
+	 */
+	private static final class Segment<K, V> {
+		/**
+		 * The entries, in access order: least recently used first.
+		 */
+		public final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+		/**
+		 * Values being created, keyed by key.
+		 */
+		public final HashMap<K, Pending<V>> pending = new HashMap<K, Pending<V>>();
+		/**
+		 * The total size of the entries in map.
+		 */
+		public int size;
+		/**
+		 * The maximum size of the entries in map.
+		 */
+		public int maxSize;
+		public int hitCount;
+		public int missCount;
+		public int createCount;
+		public int putCount;
+		public int evictionCount;
+	}
+
+	/**
+	 * The segments. The length is a power of two.
+	 */
+	private final Segment<K, V>[] mSegments;
+	/**
+	 * The maximum total size of the cache.
+	 */
+	private final int mMaxSize;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param maxSize The maximum total size of the entries, as measured by
+	 * {@link #sizeOf(Object, Object)}.
+	 * @param concurrency The number of segments to use. Rounded up to a
+	 * power of two. Each segment is limited to an equal share of maxSize, so
+	 * caches whose values are large compared to maxSize should use a single
+	 * segment; otherwise a segment may hold only one value while the rest of
+	 * the budget is unused.
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLruCache(int maxSize, int concurrency)
+	{
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("maxSize <= 0");
+
+		int count = 1;
+		while (count < concurrency)
+			count <<= 1;
+
+		Segment<K, V>[] segments = new Segment[count];
+		for (int i = 0; i != count; ++i) {
+			segments[i] = new Segment<K, V>();
+			segments[i].maxSize = maxSize / count;
+		}
+		mSegments = segments;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Returns the segment responsible for the given key.
+	 */
+	private Segment<K, V> segmentFor(Object key)
+	{
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		hash ^= (hash >>> 7);
+		return mSegments[hash & (mSegments.length - 1)];
+	}
+
+	/**
+	 * Returns the cached value for the given key, or null if there is none.
+	 * The entry becomes the most recently used entry of its segment.
+	 */
+	public final V get(K key)
+	{
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			V value = segment.map.get(key);
+			if (value == null)
+				++segment.missCount;
+			else
+				++segment.hitCount;
+			return value;
+		}
+	}
+
+	/**
+	 * Returns the cached value for the given key, or null if there is none,
+	 * without counting a hit or miss. For callers that inspect the cached
+	 * value before deciding how to call
+	 * {@link #getOrCreate(Object, Object, Creator)}, which does the
+	 * counting.
+	 */
+	public final V peek(K key)
+	{
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.map.get(key);
+		}
+	}
+
+	/**
+	 * Returns the cached value for the given key, creating it if it is not
+	 * cached or is the given stale value.
+	 *
+	 * If another thread is already creating a value for the key, waits for it
+	 * to finish and returns its result (which may be null) instead of creating
+	 * the value again.
+	 *
+	 * @param key The key to look up.
+	 * @param stale A cached value that should be replaced, or null.
+	 * @param creator Creates the value if needed.
+	 */
+	public final V getOrCreate(K key, V stale, Creator<K, V> creator)
+	{
+		Segment<K, V> segment = segmentFor(key);
+		Pending<V> pending;
+		boolean owner;
+		synchronized (segment) {
+			pending = segment.pending.get(key);
+			owner = pending == null;
+			if (owner) {
+				V value = segment.map.get(key);
+				if (value != null && value != stale) {
+					++segment.hitCount;
+					return value;
+				}
+				++segment.missCount;
+				pending = new Pending<V>();
+				segment.pending.put(key, pending);
+			}
+		}
+
+		if (!owner) {
+			synchronized (pending) {
+				try {
+					while (!pending.done)
+						pending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return pending.value;
+			}
+		}
+
+		V value = null;
+		try {
+			value = creator.create(key, stale);
+		} finally {
+			// Put the value before removing the pending entry, so no other
+			// thread can miss both.
+			if (value != null)
+				put(key, value);
+			synchronized (segment) {
+				segment.pending.remove(key);
+				++segment.createCount;
+			}
+			synchronized (pending) {
+				pending.value = value;
+				pending.done = true;
+				pending.notifyAll();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Add the given value to the cache, replacing any value for the key, and
+	 * evict entries from its segment as needed.
+	 *
+	 * @return The replaced value, or null if there was none.
+	 */
+	public final V put(K key, V value)
+	{
+		if (key == null || value == null)
+			throw new NullPointerException("key == null || value == null");
+
+		Segment<K, V> segment = segmentFor(key);
+		V previous;
+		ArrayList<Evicted<K, V>> evicted = null;
+		synchronized (segment) {
+			++segment.putCount;
+			segment.size += safeSizeOf(key, value);
+			previous = segment.map.put(key, value);
+			if (previous != null)
+				segment.size -= safeSizeOf(key, previous);
+			evicted = trimSegment(segment, segment.maxSize, key);
+		}
+
+		if (previous != null && previous != value)
+			entryRemoved(false, key, previous, value);
+		notifyEvicted(evicted);
+		return previous;
+	}
+
+	/**
+	 * Remove the entry for the given key, if any.
+	 *
+	 * @return The removed value, or null if there was none.
+	 */
+	public final V remove(K key)
+	{
+		Segment<K, V> segment = segmentFor(key);
+		V previous;
+		synchronized (segment) {
+			previous = segment.map.remove(key);
+			if (previous != null)
+				segment.size -= safeSizeOf(key, previous);
+		}
+
+		if (previous != null)
+			entryRemoved(false, key, previous, null);
+		return previous;
+	}
+
+	/**
+	 * Evict least recently used entries from each segment until the total
+	 * size of the cache is no more than the given size.
+	 *
+	 * @param maxSize The size to trim to. Pass -1 to evict all entries.
+	 */
+	public final void trimToSize(int maxSize)
+	{
+		Segment<K, V>[] segments = mSegments;
+		int segmentSize = maxSize < 0 ? -1 : maxSize / segments.length;
+		for (Segment<K, V> segment : segments) {
+			ArrayList<Evicted<K, V>> evicted;
+			synchronized (segment) {
+				evicted = trimSegment(segment, segmentSize, null);
+			}
+			notifyEvicted(evicted);
+		}
+	}
+
+	/**
+	 * Evict all entries.
+	 */
+	public final void evictAll()
+	{
+		trimToSize(-1);
+	}
+
+	/**
+	 * Evict least recently used entries from the given segment until its
+	 * size is no more than maxSize. Must be called with the segment lock
+	 * held.
+	 *
+	 * @param segment The segment to trim.
+	 * @param maxSize The size to trim to, or -1 to remove all entries.
+	 * @param keep A key that should not be evicted, or null.
+	 * @return The evicted entries, or null if there were none.
+	 */
+	private ArrayList<Evicted<K, V>> trimSegment(Segment<K, V> segment, int maxSize, K keep)
+	{
+		ArrayList<Evicted<K, V>> evicted = null;
+		Iterator<Map.Entry<K, V>> it = segment.map.entrySet().iterator();
+		while (segment.size > maxSize && it.hasNext()) {
+			Map.Entry<K, V> entry = it.next();
+			K key = entry.getKey();
+			if (keep != null && keep.equals(key))
+				continue;
+			V value = entry.getValue();
+			it.remove();
+			segment.size -= safeSizeOf(key, value);
+			++segment.evictionCount;
+			if (evicted == null)
+				evicted = new ArrayList<Evicted<K, V>>();
+			evicted.add(new Evicted<K, V>(key, value));
+		}
+		return evicted;
+	}
+
+	/**
+	 * Call {@link #entryRemoved(boolean, Object, Object, Object)} for each of
+	 * the given evicted entries. Must be called without any locks held.
+	 */
+	private void notifyEvicted(ArrayList<Evicted<K, V>> evicted)
+	{
+		if (evicted == null)
+			return;
+		for (int i = 0, n = evicted.size(); i != n; ++i) {
+			Evicted<K, V> entry = evicted.get(i);
+			entryRemoved(true, entry.key, entry.value, null);
+		}
+	}
+
+	/**
+	 * Returns the size of the given entry, checking that it is not negative.
+	 */
+	private int safeSizeOf(K key, V value)
+	{
+		int size = sizeOf(key, value);
+		if (size < 0)
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		return size;
+	}
+
+	/**
+	 * Called after an entry is evicted, removed or replaced. Called without
+	 * any locks held. The default implementation does nothing.
+	 *
+	 * @param evicted True if the entry was evicted to make space, false if
+	 * it was removed or replaced.
+	 * @param key The key of the entry.
+	 * @param oldValue The value that was removed.
+	 * @param newValue The value that replaced it, or null if it was evicted
+	 * or removed.
+	 */
+	protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue)
+	{
+	}
+
+	/**
+	 * Returns the size of the given entry, in the same units as the maximum
+	 * size. The default implementation returns 1, so the maximum size is the
+	 * maximum number of entries.
+	 */
+	protected int sizeOf(K key, V value)
+	{
+		return 1;
+	}
+
+	/**
+	 * Returns the total size of the entries in the cache.
+	 */
+	public final int size()
+	{
+		int size = 0;
+		for (Segment<K, V> segment : mSegments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the maximum total size of the entries in the cache.
+	 */
+	public final int maxSize()
+	{
+		return mMaxSize;
+	}
+
+	/**
+	 * Returns the number of lookups that found a value.
+	 */
+	public final int hitCount()
+	{
+		int count = 0;
+		for (Segment<K, V> segment : mSegments) {
+			synchronized (segment) {
+				count += segment.hitCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of lookups that found no value (or a stale value).
+	 */
+	public final int missCount()
+	{
+		int count = 0;
+		for (Segment<K, V> segment : mSegments) {
+			synchronized (segment) {
+				count += segment.missCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of times a Creator was run.
+	 */
+	public final int createCount()
+	{
+		int count = 0;
+		for (Segment<K, V> segment : mSegments) {
+			synchronized (segment) {
+				count += segment.createCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of values added to the cache.
+	 */
+	public final int putCount()
+	{
+		int count = 0;
+		for (Segment<K, V> segment : mSegments) {
+			synchronized (segment) {
+				count += segment.putCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of entries evicted to make space.
+	 */
+	public final int evictionCount()
+	{
+		int count = 0;
+		for (Segment<K, V> segment : mSegments) {
+			synchronized (segment) {
+				count += segment.evictionCount;
+			}
+		}
+		return count;
+	}
+}
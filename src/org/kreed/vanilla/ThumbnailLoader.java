@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.widget.TextView;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Loads small album art thumbnails for library rows in the background and
+ * shows them as the left compound drawable of the row's TextView.
+ *
+ * Thumbnails are cached in memory and on disk, and dropped when
+ * {@link CoverInvalidator} reports that the art of their album may have
+ * changed. Covers are decoded through
+ * {@link Song#decodeAlbumCover(Context, long, long, int, int)}, which keeps
+ * them out of the cover cache used by the playback screen. Loading can be
+ * paused while a list is flinging, and requests for rows that have been
+ * recycled are dropped.
+ *
+ * All public methods must be called on the UI thread.
+ */
+public final class ThumbnailLoader implements Handler.Callback, CoverInvalidator.Listener {
+	/**
+	 * The size of thumbnails, in dip.
+	 */
+	private static final int THUMBNAIL_SIZE = 40;
+
+	/**
+	 * A request to load the thumbnail for an album into a view.
+	 */
+	private static final class Request {
+		public final TextView view;
+		public final long albumId;
+		public final long songId;
+		/**
+		 * The loaded thumbnail, or null if the album has no art. Set on the
+		 * worker thread.
+		 */
+		public Bitmap bitmap;
+
+		public Request(TextView view, long albumId, long songId)
+		{
+			this.view = view;
+			this.albumId = albumId;
+			this.songId = songId;
+		}
+	}
+
+	/**
+	 * Load the next pending thumbnail. Run on the worker thread.
+	 */
+	private static final int MSG_LOAD = 0;
+	/**
+	 * Show the thumbnail from the Request in obj. Run on the UI thread.
+	 */
+	private static final int MSG_LOADED = 1;
+	/**
+	 * Forget which thumbnails are shown for the albums in obj (a sorted
+	 * long[], or null for all albums), so they are loaded again on the next
+	 * bind. Run on the UI thread.
+	 */
+	private static final int MSG_INVALIDATE = 2;
+
+	private final Context mContext;
+	/**
+	 * The size of thumbnails, in pixels.
+	 */
+	private final int mSize;
+	/**
+	 * Handler for the worker thread.
+	 */
+	private final Handler mHandler;
+	/**
+	 * Handler for the UI thread.
+	 */
+	private final Handler mUiHandler;
+	/**
+	 * Thumbnails in memory, keyed by album id.
+	 */
+	private final StripedLruCache<Long, Bitmap> mCache;
+	/**
+	 * Thumbnails on disk.
+	 */
+	private final CoverDiskCache mDiskCache;
+	/**
+	 * Requests that have not been started yet, keyed by the view they are
+	 * for. Access must be synchronized on the map.
+	 */
+	private final LinkedHashMap<TextView, Request> mPending = new LinkedHashMap<TextView, Request>();
+	/**
+	 * The latest request for each view. Only the result of the latest request
+	 * is shown. Only accessed on the UI thread.
+	 */
+	private final HashMap<TextView, Request> mBound = new HashMap<TextView, Request>();
+	/**
+	 * Drawable shown while a thumbnail is loading or if an album has no art,
+	 * so row text stays aligned.
+	 */
+	private final Drawable mPlaceholder;
+	/**
+	 * If true, no new thumbnails are loaded. Access must be synchronized on
+	 * mPending.
+	 */
+	private boolean mPaused;
+	/**
+	 * Incremented each time cached thumbnails are dropped, so a thumbnail
+	 * loaded from outdated art is not cached.
+	 */
+	private volatile int mGeneration;
+
+	/**
+	 * Create a loader with its own worker thread.
+	 *
+	 * @param context A context to use.
+	 */
+	public ThumbnailLoader(Context context)
+	{
+		mContext = context.getApplicationContext();
+		mSize = (int)(THUMBNAIL_SIZE * context.getResources().getDisplayMetrics().density);
+
+		HandlerThread thread = new HandlerThread("ThumbnailLoader", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper(), this);
+		mUiHandler = new Handler(this);
+
+		ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+		int maxSize = am.getMemoryClass() * 1024 * 1024 / 16;
+		mCache = new StripedLruCache<Long, Bitmap>(maxSize, 2) {
+			@Override
+			protected int sizeOf(Long key, Bitmap value)
+			{
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+		mDiskCache = CoverDiskCache.get(mContext, "thumbnails", 4 * 1024 * 1024);
+		CoverInvalidator.get(mContext).addListener(this);
+
+		Drawable placeholder = new ColorDrawable(Color.TRANSPARENT);
+		placeholder.setBounds(0, 0, mSize, mSize);
+		mPlaceholder = placeholder;
+	}
+
+	/**
+	 * Show the thumbnail for the given album in the given view, loading it in
+	 * the background if needed. Cancels any earlier request for the view.
+	 *
+	 * @param view The view to show the thumbnail in.
+	 * @param albumId The MediaStore id of the album.
+	 * @param songId The MediaStore id of a song in the album, or -1 if not
+	 * known.
+	 */
+	public void bind(TextView view, long albumId, long songId)
+	{
+		Request request = new Request(view, albumId, songId);
+		Request old = mBound.put(view, request);
+		if (old != null && old.albumId == albumId && view.getCompoundDrawables()[0] != mPlaceholder) {
+			// Already showing this album's thumbnail.
+			return;
+		}
+
+		Bitmap bitmap = mCache.get(albumId);
+		if (bitmap != null) {
+			synchronized (mPending) {
+				mPending.remove(view);
+			}
+			setThumbnail(view, bitmap);
+			return;
+		}
+
+		setThumbnail(view, null);
+		boolean paused;
+		synchronized (mPending) {
+			// Re-insert so the newest requests are at the end.
+			mPending.remove(view);
+			mPending.put(view, request);
+			paused = mPaused;
+		}
+		if (!paused && !mHandler.hasMessages(MSG_LOAD))
+			mHandler.sendEmptyMessage(MSG_LOAD);
+	}
+
+	/**
+	 * Pause or resume loading. Loading should be paused while a list is
+	 * flinging so decoding does not compete with drawing.
+	 */
+	public void setPaused(boolean paused)
+	{
+		synchronized (mPending) {
+			if (paused == mPaused)
+				return;
+			mPaused = paused;
+		}
+		if (!paused)
+			mHandler.sendEmptyMessage(MSG_LOAD);
+	}
+
+	/**
+	 * Stop the worker thread and drop all pending requests.
+	 */
+	public void quit()
+	{
+		synchronized (mPending) {
+			mPending.clear();
+		}
+		mBound.clear();
+		mHandler.getLooper().quit();
+		CoverInvalidator.get(mContext).removeListener(this);
+	}
+
+	/**
+	 * Show the given thumbnail in the given view.
+	 *
+	 * @param bitmap The thumbnail, or null to show the placeholder.
+	 */
+	private void setThumbnail(TextView view, Bitmap bitmap)
+	{
+		Drawable drawable;
+		if (bitmap == null) {
+			drawable = mPlaceholder;
+		} else {
+			drawable = new BitmapDrawable(view.getResources(), bitmap);
+			drawable.setBounds(0, 0, mSize, mSize);
+		}
+		view.setCompoundDrawables(drawable, null, null, null);
+	}
+
+	/**
+	 * Load the thumbnail for the given album, from memory, disk, or by
+	 * decoding the album art. Run on the worker thread.
+	 *
+	 * @return The thumbnail, or null if the album has no art.
+	 */
+	private Bitmap loadThumbnail(long albumId, long songId)
+	{
+		Bitmap bitmap = mCache.get(albumId);
+		if (bitmap != null)
+			return bitmap;
+
+		int generation = mGeneration;
+		int size = mSize;
+		String key = albumId + "_" + size;
+		bitmap = mDiskCache.get(key);
+		if (bitmap == null) {
+			Bitmap cover = Song.decodeAlbumCover(mContext, albumId, songId, size, size);
+			if (cover == null)
+				return null;
+
+			int width = cover.getWidth();
+			int height = cover.getHeight();
+			float scale = Math.min((float)size / width, (float)size / height);
+			if (scale < 1.0f) {
+				width = Math.max(1, (int)(width * scale));
+				height = Math.max(1, (int)(height * scale));
+			}
+			bitmap = Bitmap.createScaledBitmap(cover, width, height, true);
+			if (bitmap != cover)
+				cover.recycle();
+			if (generation != mGeneration)
+				// The art changed while decoding; show it, but don't cache it.
+				return bitmap;
+			mDiskCache.put(key, bitmap);
+		}
+
+		if (generation == mGeneration)
+			mCache.put(albumId, bitmap);
+		return bitmap;
+	}
+
+	@Override
+	public void onCoversChanged(long[] albumIds)
+	{
+		++mGeneration;
+		if (albumIds == null) {
+			mCache.evictAll();
+		} else {
+			for (long albumId : albumIds)
+				mCache.remove(albumId);
+		}
+		mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_INVALIDATE, albumIds));
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_LOAD: {
+			Request request;
+			synchronized (mPending) {
+				if (mPaused || mPending.isEmpty())
+					break;
+				Iterator<Request> it = mPending.values().iterator();
+				request = it.next();
+				it.remove();
+			}
+			request.bitmap = loadThumbnail(request.albumId, request.songId);
+			mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_LOADED, request));
+			mHandler.sendEmptyMessage(MSG_LOAD);
+			break;
+		}
+		case MSG_LOADED: {
+			Request request = (Request)message.obj;
+			if (mBound.get(request.view) == request)
+				setThumbnail(request.view, request.bitmap);
+			break;
+		}
+		case MSG_INVALIDATE: {
+			long[] albumIds = (long[])message.obj;
+			Iterator<Request> it = mBound.values().iterator();
+			while (it.hasNext()) {
+				long albumId = it.next().albumId;
+				if (albumIds == null || Arrays.binarySearch(albumIds, albumId) >= 0)
+					it.remove();
+			}
+			break;
+		}
+		default:
+			return false;
+		}
+		return true;
+	}
+}
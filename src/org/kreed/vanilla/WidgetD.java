@@ -29,6 +29,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.os.Bundle;
 import android.view.View;
 import android.widget.RemoteViews;
 
@@ -51,9 +52,20 @@ public class WidgetD extends AppWidgetProvider {
 		sEnabled = false;
 	}
 
+	/**
+	 * Called on API 16+ when a widget is resized. Not annotated with
+	 * Override since older SDKs do not have this method.
+	 */
+	public void onAppWidgetOptionsChanged(Context context, AppWidgetManager manager, int id, Bundle options)
+	{
+		WidgetUpdater.onOptionsChanged(context);
+	}
+
 	@Override
 	public void onUpdate(Context context, AppWidgetManager manager, int[] ids)
 	{
+		// A new widget may have been placed; size its cover again.
+		WidgetUpdater.clearCovers();
 		Song song = null;
 		int state = 0;
 
@@ -105,7 +117,7 @@ public class WidgetD extends AppWidgetProvider {
 			views.setViewVisibility(R.id.buttons, View.VISIBLE);
 			views.setTextViewText(R.id.title, song.title);
 			views.setTextViewText(R.id.artist, song.artist);
-			cover = song.getCover(context);
+			cover = WidgetUpdater.getCover(context, manager, song, WidgetD.class);
 		}
 
 		if (cover == null) {
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2012 Christopher Eby <kreed@kreed.org>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.kreed.vanilla;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.SparseArray;
+import java.util.HashMap;
+
+/**
+ * Updates all the widgets from PlaybackService.
+ *
+ * Changes are coalesced: a burst of song and state changes results in a
+ * single update, sent after a short delay. Each widget is only updated if
+ * something it displays has changed since its last update. Covers are sent
+ * scaled down to the size of each widget rather than at full size.
+ */
+public final class WidgetUpdater implements Handler.Callback {
+	/**
+	 * How long to wait for further changes before updating the widgets, in
+	 * milliseconds. About one frame.
+	 */
+	private static final long COALESCE_DELAY = 16;
+	/**
+	 * Update the widgets with the latest song and state.
+	 */
+	private static final int MSG_UPDATE = 0;
+
+	private static final int ONE_CELL = 0;
+	private static final int FOUR_LONG = 1;
+	private static final int FOUR_SQUARE = 2;
+	private static final int FOUR_WHITE = 3;
+	private static final int WIDGET_D = 4;
+	private static final int WIDGET_E = 5;
+	/**
+	 * The number of widget types.
+	 */
+	private static final int WIDGET_COUNT = 6;
+	/**
+	 * The state flags displayed by each widget type.
+	 */
+	private static final int[] STATE_MASKS;
+	static {
+		int basic = PlaybackService.FLAG_PLAYING | PlaybackService.FLAG_NO_MEDIA;
+		int full = basic | PlaybackService.MASK_SHUFFLE | PlaybackService.MASK_FINISH;
+		STATE_MASKS = new int[] { basic, basic, basic, basic, full, full };
+	}
+
+	private final Context mContext;
+	private final Handler mHandler;
+	/**
+	 * The latest song, to be sent with the next update.
+	 */
+	private Song mSong;
+	/**
+	 * The latest state, to be sent with the next update.
+	 */
+	private int mState;
+	/**
+	 * The song each widget type was last updated with.
+	 */
+	private final Song[] mSentSongs = new Song[WIDGET_COUNT];
+	/**
+	 * The masked state each widget type was last updated with, or -1 if the
+	 * widget type has not been updated yet.
+	 */
+	private final int[] mSentStates = new int[WIDGET_COUNT];
+	/**
+	 * The double tap setting the one cell widget was last updated with.
+	 */
+	private boolean mSentDoubleTap;
+
+	/**
+	 * The song the covers in sCovers belong to. Access must be synchronized
+	 * on sCovers.
+	 */
+	private static Song sCoverSong;
+	/**
+	 * Scaled covers for sCoverSong, keyed by size in pixels.
+	 */
+	private static final SparseArray<Bitmap> sCovers = new SparseArray<Bitmap>();
+	/**
+	 * Cover sizes for each widget provider class, in pixels.
+	 */
+	private static final HashMap<Class<?>, Integer> sCoverSizes = new HashMap<Class<?>, Integer>();
+
+	/**
+	 * Create an updater.
+	 *
+	 * @param context A context to use.
+	 * @param looper The looper to update widgets on.
+	 */
+	public WidgetUpdater(Context context, Looper looper)
+	{
+		mContext = context;
+		mHandler = new Handler(looper, this);
+		invalidate();
+	}
+
+	/**
+	 * Forget what was sent to the widgets, along with the scaled covers and
+	 * cover sizes, so the next update redraws all of them. Call when
+	 * something the widgets display changes other than the song or state,
+	 * such as a preference, the cover art or the size of a widget.
+	 */
+	public void invalidate()
+	{
+		synchronized (this) {
+			for (int i = 0; i != WIDGET_COUNT; ++i) {
+				mSentSongs[i] = null;
+				mSentStates[i] = -1;
+			}
+		}
+		clearCovers();
+	}
+
+	/**
+	 * Drop the scaled covers and the cover sizes, so they are computed again
+	 * on the next update.
+	 */
+	public static void clearCovers()
+	{
+		synchronized (sCovers) {
+			sCoverSong = null;
+			sCovers.clear();
+		}
+		synchronized (sCoverSizes) {
+			sCoverSizes.clear();
+		}
+	}
+
+	/**
+	 * Redraw the widgets after their size or options change. Called from
+	 * onAppWidgetOptionsChanged() of the widget providers.
+	 *
+	 * @param context A context to use.
+	 */
+	public static void onOptionsChanged(Context context)
+	{
+		if (PlaybackService.hasInstance())
+			PlaybackService.get(context).invalidateWidgets();
+		else
+			clearCovers();
+	}
+
+	/**
+	 * Schedule an update of the widgets with the given song and state.
+	 * Updates requested before the scheduled update runs are merged into it.
+	 *
+	 * @param song The current song.
+	 * @param state The current PlaybackService state.
+	 */
+	public void update(Song song, int state)
+	{
+		synchronized (this) {
+			mSong = song;
+			mState = state;
+		}
+		if (!mHandler.hasMessages(MSG_UPDATE))
+			mHandler.sendEmptyMessageDelayed(MSG_UPDATE, COALESCE_DELAY);
+	}
+
+	/**
+	 * Update each widget whose displayed information has changed.
+	 */
+	private void flush()
+	{
+		Song song;
+		int state;
+		synchronized (this) {
+			song = mSong;
+			state = mState;
+		}
+
+		Context context = mContext;
+		AppWidgetManager manager = AppWidgetManager.getInstance(context);
+		boolean doubleTap = PlaybackService.getSettings(context).getBoolean(PrefKeys.DOUBLE_TAP, false);
+
+		for (int i = 0; i != WIDGET_COUNT; ++i) {
+			int masked = state & STATE_MASKS[i];
+			boolean changed;
+			synchronized (this) {
+				changed = mSentSongs[i] != song || mSentStates[i] != masked
+					|| (i == ONE_CELL && mSentDoubleTap != doubleTap);
+				mSentSongs[i] = song;
+				mSentStates[i] = masked;
+				if (i == ONE_CELL)
+					mSentDoubleTap = doubleTap;
+			}
+			if (!changed)
+				continue;
+
+			switch (i) {
+			case ONE_CELL:
+				OneCellWidget.updateWidget(context, manager, song, state);
+				break;
+			case FOUR_LONG:
+				FourLongWidget.updateWidget(context, manager, song, state);
+				break;
+			case FOUR_SQUARE:
+				FourSquareWidget.updateWidget(context, manager, song, state);
+				break;
+			case FOUR_WHITE:
+				FourWhiteWidget.updateWidget(context, manager, song, state);
+				break;
+			case WIDGET_D:
+				WidgetD.updateWidget(context, manager, song, state);
+				break;
+			case WIDGET_E:
+				WidgetE.updateWidget(context, manager, song, state);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the cover for the given song, scaled down to fit the given
+	 * widget. Covers are sent to the home screen through a binder
+	 * transaction, so sending them at full size is wasteful.
+	 *
+	 * The size used is the smaller dimension of the widget's minimum size,
+	 * plus the padding of a home screen cell.
+	 *
+	 * @param context A context to use.
+	 * @param manager The AppWidgetManager.
+	 * @param song The song to get the cover for.
+	 * @param provider The widget provider class.
+	 * @return The scaled cover, or null if the song has no cover.
+	 */
+	public static Bitmap getCover(Context context, AppWidgetManager manager, Song song, Class<?> provider)
+	{
+		int size = getCoverSize(context, manager, provider);
+
+		synchronized (sCovers) {
+			if (sCoverSong != song) {
+				sCoverSong = song;
+				sCovers.clear();
+			}
+			Bitmap cover = sCovers.get(size);
+			if (cover != null)
+				return cover;
+		}
+
+		Bitmap cover = song.getCover(context, size, size);
+		if (cover == null)
+			return null;
+
+		int width = cover.getWidth();
+		int height = cover.getHeight();
+		float scale = Math.min((float)size / width, (float)size / height);
+		if (scale < 1.0f) {
+			cover = Bitmap.createScaledBitmap(cover, Math.max(1, (int)(width * scale)), Math.max(1, (int)(height * scale)), true);
+		}
+
+		synchronized (sCovers) {
+			if (sCoverSong == song)
+				sCovers.put(size, cover);
+		}
+		return cover;
+	}
+
+	/**
+	 * Returns the size to scale covers to for the given widget, in pixels.
+	 */
+	private static int getCoverSize(Context context, AppWidgetManager manager, Class<?> provider)
+	{
+		synchronized (sCoverSizes) {
+			Integer cached = sCoverSizes.get(provider);
+			if (cached != null)
+				return cached;
+		}
+
+		float density = context.getResources().getDisplayMetrics().density;
+		int[] ids = manager.getAppWidgetIds(new ComponentName(context, provider));
+		int size = 0;
+		if (ids.length != 0) {
+			AppWidgetProviderInfo info = manager.getAppWidgetInfo(ids[0]);
+			if (info != null)
+				size = Math.min(info.minWidth, info.minHeight);
+		}
+		if (size <= 0)
+			size = (int)(110 * density);
+		size += (int)(30 * density);
+
+		synchronized (sCoverSizes) {
+			sCoverSizes.put(provider, size);
+		}
+		return size;
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_UPDATE:
+			flush();
+			return true;
+		}
+		return false;
+	}
+}